@@ -2,10 +2,13 @@ package org.general.data;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A generic data module class that stores data persistently. By design, data
@@ -19,16 +22,26 @@ import java.nio.ByteBuffer;
  * All methods throw IOExceptions which may or may not be permanent errors.
  * Because this is a generic module, handling of these exceptions is left to the caller. 
  * 
+ * Appends reach the operating system right away but not necessarily the disk.
+ * Call {@link #sync()}, or {@link #closeAll()} when the program stops, to
+ * make them durable. Closing waits for an append in progress, so an orderly
+ * shutdown never leaves a partial entry behind.
+ * 
  * @author Guoxing Li
  *
  */
 public class DataStorage<Entry extends DataEntry> {
 
     protected static String pathToWorkspace = "";
+    // every storage not yet closed, for closeAll()
+    private static final List<DataStorage<?>> storages = new CopyOnWriteArrayList<>();
 
     private Class<Entry> entryClazz;
     private int entrySize;
     private File storage;
+    // opened on the first append; guarded by this
+    private FileChannel appendChannel;
+    private boolean closed;
 
     public static void setPathToWorkspace(String path) {
         pathToWorkspace = path;
@@ -62,15 +75,85 @@ public class DataStorage<Entry extends DataEntry> {
                     + storage.getAbsolutePath()
                     + " is malformated. File length is mismatched.");
         }
+        storages.add(this);
+    }
+
+    /**
+     * Syncs and closes every storage still open. Meant to be called once
+     * when the program stops; appends fail afterwards.
+     */
+    public static void closeAll() throws IOException {
+        IOException error = null;
+        for (DataStorage<?> storage : storages) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Forces the entries appended so far to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (appendChannel != null) {
+            // the file length is metadata
+            appendChannel.force(true);
+        }
+    }
+
+    /**
+     * Syncs the file and stops accepting appends. Readers are unaffected.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        storages.remove(this);
+        if (appendChannel != null) {
+            try {
+                appendChannel.force(true);
+            } finally {
+                appendChannel.close();
+                appendChannel = null;
+            }
+        }
     }
 
     /**
-     * Append an entry to the end of the underlying file.
+     * Append an entry to the end of the underlying file. Appends from
+     * concurrent callers are serialized, so entries are never interleaved.
      * 
      * @param entry
      *            Entry to be appended
      */
-    public void appendToFile(Entry entry) throws IOException {
+    public synchronized void appendToFile(Entry entry) throws IOException {
+        append(ByteBuffer.wrap(marshal(entry)));
+    }
+
+    /**
+     * Append entries to the end of the underlying file, in order, with one
+     * sequential write instead of one per entry. Nothing is appended if an
+     * entry fails to marshal.
+     * 
+     * @param entries
+     *            Entries to be appended
+     */
+    public synchronized void appendAllToFile(List<? extends Entry> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.size() * entrySize);
+        for (Entry entry : entries) {
+            buffer.put(marshal(entry));
+        }
+        buffer.flip();
+        append(buffer);
+    }
+
+    private byte[] marshal(Entry entry) {
         byte[] data = entry.marshal().array();
         if (data.length != entrySize) {
             throw new IllegalArgumentException(
@@ -78,10 +161,22 @@ public class DataStorage<Entry extends DataEntry> {
                             + " Number of marshalled bytes differs from expected. Expected: "
                             + entrySize + ". Received: " + data.length + ".");
         }
+        return data;
+    }
 
-        FileOutputStream out = new FileOutputStream(storage, true);
-        out.write(data);
-        out.close();
+    private void append(ByteBuffer buffer) throws IOException {
+        if (closed) {
+            throw new IOException("The storage file " + storage.getAbsolutePath()
+                    + " is closed.");
+        }
+        // an interrupted write closes the channel
+        if (appendChannel == null || !appendChannel.isOpen()) {
+            appendChannel = FileChannel.open(storage.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        while (buffer.hasRemaining()) {
+            appendChannel.write(buffer);
+        }
     }
 
     /**
@@ -0,0 +1,404 @@
+package org.general.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.general.http.HTTPRequest.InvalidHttpFormattingException;
+import org.general.http.HTTPRequest.RequestLimitException;
+import org.general.util.Logger;
+
+/**
+ * Serves one connection of the blocking transport on an executor thread until
+ * the client or the server ends it.
+ *
+ * Requests that the client has pipelined, i.e. that are already buffered when
+ * a request has been read, are read as one batch. A run of consecutive GETs in
+ * a batch is handled concurrently: the first on this thread, writing straight
+ * to the socket, the rest on the executor into buffers that are copied to the
+ * socket in request order. Any other method waits for the requests before it
+ * and holds back the requests after it.
+ *
+ * Reads wait at most until the deadline of the request being read, writes
+ * are watched by the server, which closes the socket if one is stuck.
+ *
+ * If the server speaks HTTP/2, a connection that starts with the HTTP/2
+ * preface, or whose first request asks to upgrade to h2c, is handed over to
+ * an {@link HTTP2Connection}.
+ *
+ * @author Guoxing Li
+ *
+ */
+class BlockingConnection implements Runnable {
+
+    private final HTTPServer server;
+    private final ServerConfig config;
+    private final Socket socket;
+    // number of requests read off of this connection
+    private int served;
+    // set when the client stopped sending in the middle of a batch
+    private boolean inputEnded;
+    private final HTTPRequestParser parser;
+    // when the write in progress started, 0 while not writing
+    private volatile long writingSince;
+    // set while waiting for the first byte of the next request
+    private volatile boolean idle;
+
+    BlockingConnection(HTTPServer server, ServerConfig config, Socket socket) {
+        this.server = server;
+        this.config = config;
+        this.socket = socket;
+        this.parser = new HTTPRequestParser(config);
+    }
+
+    /**
+     * A request read off of the connection, or the error that prevented it
+     * from being read.
+     */
+    private static class Exchange {
+        HTTPRequest request;
+        Exception parseError;
+        boolean mayKeepAlive;
+
+        boolean isConcurrent() {
+            return request != null && request.getMethod() == HTTPRequest.Method.GET;
+        }
+    }
+
+    @Override
+    public void run() {
+        server.connectionStarted(this);
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(new WatchedOutputStream(
+                    socket.getOutputStream()));
+            if (config.isHttp2()) {
+                PushbackInputStream pushback = new PushbackInputStream(in,
+                        HTTP2Connection.PREFACE.length);
+                in = pushback;
+                if (readsPreface(pushback)) {
+                    new HTTP2Connection(server, config, this, socket, in, out).serve(null, null);
+                    return;
+                }
+            }
+            boolean open = true;
+            while (open) {
+                List<Exchange> batch = readBatch(in);
+                byte[] settings = upgradeSettings(batch);
+                if (settings != null) {
+                    out.write(HTTP2Connection.SWITCHING_PROTOCOLS);
+                    out.flush();
+                    byte[] buffered = parser.takeBufferedBytes();
+                    if (buffered.length > 0) {
+                        in = new SequenceInputStream(new ByteArrayInputStream(buffered), in);
+                    }
+                    new HTTP2Connection(server, config, this, socket, in, out).serve(
+                            batch.get(0).request, settings);
+                    return;
+                }
+                open = !batch.isEmpty() && respondInOrder(batch, out) && !inputEnded;
+                if (!socket.isClosed()) {
+                    // a response that closed the connection closed the socket
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            Logger.log("IOException when serving connection: " + e.getMessage());
+        } finally {
+            HTTPServer.closeQuietly(socket);
+            server.connectionEnded(this);
+        }
+    }
+
+    /**
+     * Closes the socket if the connection is waiting for its next request.
+     * Called by a draining server.
+     */
+    void closeIfIdle() {
+        if (idle) {
+            close();
+        }
+    }
+
+    /**
+     * Marks whether the connection waits for its next request, for
+     * {@link #closeIfIdle()}.
+     */
+    void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * Closes the socket, failing any read or write in progress.
+     */
+    void close() {
+        HTTPServer.closeQuietly(socket);
+    }
+
+    /**
+     * Closes the socket if a write has been stuck longer than the given
+     * timeout because the client does not read. Called by the server's
+     * watchdog.
+     */
+    void closeIfWriteStuck(long now, int writeTimeout) {
+        long since = writingSince;
+        if (since != 0 && now - since > writeTimeout) {
+            Logger.log("Closing connection whose client stopped reading");
+            HTTPServer.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Reads the HTTP/2 preface if the connection starts with it. Otherwise
+     * pushes back what was read for the HTTP/1.1 parser.
+     */
+    private boolean readsPreface(PushbackInputStream in) throws IOException {
+        byte[] preface = HTTP2Connection.PREFACE;
+        byte[] read = new byte[preface.length];
+        int count = 0;
+        boolean matches = true;
+        socket.setSoTimeout(config.getKeepAliveTimeout());
+        idle = true;
+        try {
+            while (matches && count < read.length) {
+                int n = in.read(read, count, read.length - count);
+                if (n == -1) {
+                    break;
+                }
+                for (int end = count + n; count < end; count++) {
+                    matches &= read[count] == preface[count];
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the HTTP/1.1 path times the connection out
+        } finally {
+            idle = false;
+        }
+        if (matches && count == read.length) {
+            return true;
+        }
+        in.unread(read, 0, count);
+        return false;
+    }
+
+    /**
+     * Returns the HTTP/2 settings of a lone request that asks to upgrade to
+     * h2c, or null to stay on HTTP/1.1.
+     */
+    private byte[] upgradeSettings(List<Exchange> batch) {
+        if (!config.isHttp2() || batch.size() != 1 || batch.get(0).request == null
+                || !batch.get(0).mayKeepAlive) {
+            return null;
+        }
+        return HTTP2Connection.upgradeSettings(batch.get(0).request);
+    }
+
+    /**
+     * Blocks until a request arrives, then also reads the requests pipelined
+     * behind it. Returns an empty batch if the client hung up or stayed idle
+     * past the keep-alive timeout.
+     */
+    private List<Exchange> readBatch(InputStream in) throws IOException {
+        List<Exchange> batch = new ArrayList<>();
+        do {
+            Exchange exchange = new Exchange();
+            exchange.mayKeepAlive = ++served < config.getMaxRequestsPerConnection();
+            try {
+                exchange.request = readRequest(in);
+                if (exchange.request == null) {
+                    inputEnded = true;
+                    return batch;
+                }
+            } catch (InvalidHttpFormattingException | IOException e) {
+                exchange.parseError = e;
+                batch.add(exchange);
+                return batch;
+            }
+            batch.add(exchange);
+            if (!exchange.mayKeepAlive || !exchange.request.isKeepAlive()) {
+                // nothing after this request will be answered
+                return batch;
+            }
+        } while (batch.size() < config.getMaxPipelinedRequests()
+                && (parser.hasBufferedBytes() || in.available() > 0));
+        return batch;
+    }
+
+    /**
+     * Reads until the parser has a complete request. Returns null if the
+     * client hung up or stayed idle past the keep-alive timeout.
+     *
+     * @throws RequestLimitException
+     *             if the request started arriving but missed its deadline
+     */
+    private HTTPRequest readRequest(InputStream in)
+            throws IOException, InvalidHttpFormattingException {
+        HTTPRequest request;
+        while ((request = parser.next()) == null) {
+            long deadline = parser.getReadDeadline(System.currentTimeMillis());
+            int timeout = config.getKeepAliveTimeout();
+            if (deadline != 0) {
+                timeout = (int) Math.max(1, deadline - System.currentTimeMillis());
+            }
+            socket.setSoTimeout(timeout);
+            idle = deadline == 0;
+            if (idle && server.isDraining()) {
+                return null;
+            }
+            try {
+                if (parser.readFrom(in) == -1) {
+                    return null;
+                }
+            } catch (SocketTimeoutException e) {
+                if (deadline == 0) {
+                    return null;
+                }
+                throw parser.timedOut();
+            } catch (SocketException e) {
+                if (idle && server.isDraining()) {
+                    // closed by the draining server
+                    return null;
+                }
+                throw e;
+            } finally {
+                idle = false;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Responds to every request of the batch in order.
+     *
+     * @return whether the connection should be kept open
+     */
+    private boolean respondInOrder(List<Exchange> batch, OutputStream out)
+            throws IOException {
+        int i = 0;
+        while (i < batch.size()) {
+            Exchange first = batch.get(i);
+            if (first.parseError != null) {
+                server.respondToMalformed(new HTTPResponse(out, server.getName()),
+                        first.parseError);
+                return false;
+            }
+            int end = i + 1;
+            if (first.isConcurrent()) {
+                while (end < batch.size() && batch.get(end).isConcurrent()) {
+                    end++;
+                }
+            }
+            if (!respondConcurrently(batch.subList(i, end), out)) {
+                return false;
+            }
+            i = end;
+        }
+        return true;
+    }
+
+    /**
+     * Responds to the given requests concurrently and writes the responses in
+     * order.
+     *
+     * @return whether the connection should be kept open
+     */
+    private boolean respondConcurrently(List<Exchange> run, OutputStream out)
+            throws IOException {
+        List<FutureTask<Boolean>> tasks = new ArrayList<>(run.size() - 1);
+        List<HTTPResponse> responses = new ArrayList<>(run.size() - 1);
+        List<Boolean> admitted = new ArrayList<>(run.size() - 1);
+        for (Exchange exchange : run.subList(1, run.size())) {
+            HTTPResponse response = new HTTPResponse(server.getName());
+            boolean offered = server.offer();
+            FutureTask<Boolean> task = new FutureTask<>(() -> respond(exchange,
+                    response, offered));
+            try {
+                config.getExecutor().execute(task);
+            } catch (RejectedExecutionException e) {
+                // will be run on this thread below
+            }
+            tasks.add(task);
+            responses.add(response);
+            admitted.add(offered);
+        }
+
+        Exchange first = run.get(0);
+        boolean persistent = respond(first, new HTTPResponse(out, server.getName()),
+                server.offer());
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<Boolean> task = tasks.get(i);
+            if (!persistent) {
+                if (task.cancel(false) && admitted.get(i)) {
+                    server.withdraw();
+                }
+                continue;
+            }
+            // no-op if the executor already started it. Running it here
+            // otherwise keeps this thread from waiting on a queue that may be
+            // full of other connections waiting the same way.
+            task.run();
+            try {
+                persistent = task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                persistent = false;
+                continue;
+            }
+            if (responses.get(i).isSent()) {
+                responses.get(i).writeTo(out);
+            }
+        }
+        return persistent;
+    }
+
+    /**
+     * Responds to the request, or sheds it if it was not admitted.
+     *
+     * @return whether the connection should be kept open
+     */
+    private boolean respond(Exchange exchange, HTTPResponse response, boolean admitted) {
+        if (!admitted) {
+            return server.respondOverloaded(response);
+        }
+        // this thread owns the socket, so it waits for an asynchronous handler
+        return server.respond(exchange.request, response, exchange.mayKeepAlive).join();
+    }
+
+    /**
+     * Notes when a write to the socket starts and ends, for
+     * {@link #closeIfWriteStuck(long, int)}.
+     */
+    private class WatchedOutputStream extends FilterOutputStream {
+
+        WatchedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } finally {
+                writingSince = 0;
+            }
+        }
+    }
+}
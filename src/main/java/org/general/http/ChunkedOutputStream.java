@@ -0,0 +1,56 @@
+package org.general.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames what is written to it as HTTP/1.1 chunked transfer coding: every
+ * write becomes one chunk, sent and flushed right away. Closing writes the
+ * last, empty chunk but leaves the underlying stream open, since the
+ * connection may carry more responses.
+ *
+ * @author Guoxing Li
+ *
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            // an empty chunk would end the body
+            return;
+        }
+        out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(b, off, len);
+        out.write(CRLF);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.write(LAST_CHUNK);
+    }
+}
@@ -0,0 +1,231 @@
+package org.general.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Content codings the server can compress response bodies with, chosen from
+ * the client's Accept-Encoding header.
+ *
+ * Deflaters hold native zlib state that is only freed by end() or garbage
+ * collection, so they are pooled and reset between bodies instead of
+ * allocated per response.
+ *
+ * @author Guoxing Li
+ *
+ */
+enum Compression {
+    GZIP("gzip", true), DEFLATE("deflate", false);
+
+    // deflaters kept per coding; more than this in use at once are ended
+    // after use
+    private static final int MAX_POOLED = 64;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+            0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final String token;
+    // gzip wraps a raw deflate stream; "deflate" is the zlib format
+    private final boolean nowrap;
+    private final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private Compression(String token, boolean nowrap) {
+        this.token = token;
+        this.nowrap = nowrap;
+    }
+
+    /**
+     * The value of the Content-Encoding header.
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * Picks the coding to use for a client that sent the given Accept-Encoding
+     * header, preferring gzip. Returns null if the client accepts neither or
+     * sent no header.
+     */
+    static Compression negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = 0;
+        float deflate = 0;
+        float any = 0;
+        boolean gzipListed = false;
+        boolean deflateListed = false;
+        for (String coding : acceptEncoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String token = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            float q = semicolon < 0 ? 1 : quality(coding.substring(semicolon + 1));
+            if (token.equalsIgnoreCase(GZIP.token) || token.equalsIgnoreCase("x-gzip")) {
+                gzip = q;
+                gzipListed = true;
+            } else if (token.equalsIgnoreCase(DEFLATE.token)) {
+                deflate = q;
+                deflateListed = true;
+            } else if (token.equals("*")) {
+                any = q;
+            }
+        }
+        if (!gzipListed) {
+            gzip = any;
+        }
+        if (!deflateListed) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Parses "q=0.5" out of the parameters of a coding. Malformed values count
+     * as 1, as if no q was given.
+     */
+    private static float quality(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q')
+                    && param.charAt(1) == '=') {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Compresses the given body with this coding at the given level (1-9).
+     */
+    byte[] compress(byte[] body, int level) {
+        Deflater deflater = borrow(level);
+        try {
+            int offset = nowrap ? GZIP_HEADER.length : 0;
+            // JSON usually shrinks to well under half
+            byte[] out = new byte[offset + body.length / 2 + 64];
+            if (nowrap) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            }
+            deflater.setInput(body);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (offset == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                offset += deflater.deflate(out, offset, out.length - offset);
+            }
+            if (nowrap) {
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, body.length);
+                if (out.length - offset < GZIP_TRAILER_LENGTH) {
+                    out = Arrays.copyOf(out, offset + GZIP_TRAILER_LENGTH);
+                }
+                offset = writeIntLE(out, offset, (int) crc.getValue());
+                offset = writeIntLE(out, offset, body.length);
+            }
+            return Arrays.copyOf(out, offset);
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /**
+     * Returns a stream that compresses what is written to it with this coding
+     * at the given level (1-9) and writes it to out. Closing it closes out.
+     */
+    OutputStream compressTo(OutputStream out, int level) throws IOException {
+        return new CompressingStream(out, borrow(level));
+    }
+
+    private Deflater borrow(int level) {
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            return new Deflater(level, nowrap);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * A DeflaterOutputStream that frames its output as gzip if the coding
+     * asks for it, and returns its deflater to the pool once closed.
+     */
+    private class CompressingStream extends DeflaterOutputStream {
+        private static final int BUFFER_SIZE = 8 * 1024;
+        // null for deflate
+        private final CRC32 crc;
+        private boolean closed;
+
+        CompressingStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, BUFFER_SIZE);
+            if (nowrap) {
+                crc = new CRC32();
+                out.write(GZIP_HEADER);
+            } else {
+                crc = null;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (def.finished()) {
+                return;
+            }
+            super.finish();
+            if (crc != null) {
+                byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+                writeIntLE(trailer, 0, (int) crc.getValue());
+                writeIntLE(trailer, 4, (int) def.getBytesRead());
+                out.write(trailer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(def);
+            }
+        }
+    }
+
+    private static int writeIntLE(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+}
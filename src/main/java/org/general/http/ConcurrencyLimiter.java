@@ -0,0 +1,223 @@
+package org.general.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many requests an {@link HTTPServer} handles at once. Requests
+ * over the limit wait in a bounded queue for a short while. Requests that
+ * find the queue full, or that wait too long, are shed: the server answers
+ * them with 503 Service Unavailable instead of handling them.
+ *
+ * The limit is adaptive unless configured otherwise. It follows the gradient
+ * between the long-term average latency and the latency of recent requests:
+ * while recent requests are as fast as usual the limit grows by about the
+ * square root of itself, and once requests slow down because the server is
+ * saturated it shrinks in proportion, down to half per update. Latency is
+ * measured from admission until the handler returns, so time spent waiting in
+ * the queue does not feed back into the limit.
+ *
+ * Thread-safe. The counters are meant for monitoring and are not updated
+ * atomically with one another.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class ConcurrencyLimiter {
+
+    // latencies averaged into one update of the limit
+    private static final int SAMPLE_WINDOW = 16;
+    // number of updates the long-term latency averages over
+    private static final int LONG_WINDOW = 100;
+    // how much slower than usual requests may get before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // weight of a new limit against the old one
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long windowNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private double longLatency;
+
+    private volatile long admitted;
+    private volatile long shed;
+
+    /**
+     * @param initialLimit
+     *            requests handled at once to begin with
+     * @param maxLimit
+     *            the most requests handled at once. Equal to initialLimit for
+     *            a fixed limit.
+     * @param maxQueued
+     *            requests that may wait for the limit at once
+     * @param queueTimeout
+     *            milliseconds a request waits before it is shed
+     */
+    public ConcurrencyLimiter(int initialLimit, int maxLimit, int maxQueued, int queueTimeout) {
+        if (initialLimit <= 0 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Concurrency limit must be positive and at most "
+                    + maxLimit + ". Was: " + initialLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = 1;
+        this.maxLimit = maxLimit;
+        this.adaptive = maxLimit > initialLimit;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+    }
+
+    /**
+     * Reserves a place in the queue for a request about to be handed to a
+     * thread that will call {@link #acquire()}. Never blocks, so transports
+     * call it before handing a request to the executor and shed the request
+     * right away if there is no room, instead of letting work pile up in the
+     * executor's queue.
+     *
+     * @return false if the limit is reached and the queue is full, in which
+     *         case the request is counted as shed and must not be acquired
+     */
+    public synchronized boolean offer() {
+        if (inFlight + queued >= (int) limit + maxQueued) {
+            shed++;
+            return false;
+        }
+        queued++;
+        return true;
+    }
+
+    /**
+     * Gives up the place of an offered request that will not be acquired
+     * after all, e.g. because the connection closed first.
+     */
+    public synchronized void withdraw() {
+        queued--;
+    }
+
+    /**
+     * Admits a request offered with {@link #offer()}, waiting if the limit is
+     * reached.
+     *
+     * @return the time of admission in nanoseconds, to be passed to
+     *         {@link #release(long)} once the request has been handled, or -1
+     *         if the request waited too long and is shed
+     */
+    public long acquire() {
+        synchronized (this) {
+            try {
+                long deadline = System.nanoTime() + queueTimeoutNanos;
+                long remaining = queueTimeoutNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        shed++;
+                        return -1;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shed++;
+                return -1;
+            } finally {
+                queued--;
+            }
+            inFlight++;
+            admitted++;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a request admitted at the given time and lets a queued request in.
+     */
+    public void release(long admittedAt) {
+        long latency = System.nanoTime() - admittedAt;
+        synchronized (this) {
+            inFlight--;
+            if (adaptive) {
+                sample(latency);
+            }
+            if (queued > 0) {
+                // the limit may have grown by more than one
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Counts a request that was turned away before it reached the limiter.
+     */
+    void recordShed() {
+        synchronized (this) {
+            shed++;
+        }
+    }
+
+    // guarded by this
+    private void sample(long latency) {
+        windowNanos += latency;
+        if (++windowSamples < SAMPLE_WINDOW) {
+            return;
+        }
+        double shortLatency = (double) windowNanos / windowSamples;
+        boolean saturated = windowMaxInFlight >= (int) limit / 2;
+        windowNanos = 0;
+        windowSamples = 0;
+        windowMaxInFlight = inFlight;
+
+        if (longLatency == 0) {
+            longLatency = shortLatency;
+            return;
+        }
+        longLatency += (shortLatency - longLatency) / LONG_WINDOW;
+        if (longLatency > 2 * shortLatency) {
+            // load dropped off; forget the slow past sooner
+            longLatency *= 0.95;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        // an idle server learns nothing about how much more it can take
+        double headroom = saturated ? Math.sqrt(limit) : 0;
+        double newLimit = limit * gradient + headroom;
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    /**
+     * Number of requests handled at once before requests queue up.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Number of requests admitted since the server started.
+     */
+    public long getAdmittedCount() {
+        return admitted;
+    }
+
+    /**
+     * Number of requests answered with 503 since the server started.
+     */
+    public long getShedCount() {
+        return shed;
+    }
+}
@@ -0,0 +1,611 @@
+package org.general.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.general.http.HTTPRequest.InvalidHttpFormattingException;
+import org.general.util.Logger;
+
+/**
+ * A selector thread of the NIO transport. Owns a set of non-blocking
+ * connections: reads requests off of them, hands complete requests to the
+ * server's handler and writes the responses back without blocking.
+ *
+ * Every request already in a connection's read buffer is parsed, so
+ * pipelined GETs are handled concurrently. Other methods wait for the
+ * requests before them and hold back the requests after them. Responses are
+ * written strictly in request order.
+ *
+ * Only the loop thread touches selection keys, pipelines and read state.
+ * Other threads talk to the loop through {@link #register(SocketChannel)} and
+ * a queue of connections with finished responses, waking the selector.
+ *
+ * @author Guoxing Li
+ *
+ */
+class EventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // bytes of a streamed response waiting to be written before the thread
+    // producing it has to wait
+    private static final int MAX_QUEUED_BYTES = 64 * 1024;
+    // how often idle and slow connections are looked for
+    private static final long SWEEP_INTERVAL_MILLIS = 1_000;
+
+    private final HTTPServer server;
+    private final ExecutorService executor;
+    private final int keepAliveTimeout;
+    private final int maxRequestsPerConnection;
+    private final int maxPipelinedRequests;
+    private final int writeTimeout;
+    private final ServerConfig config;
+    private final Selector selector;
+    // reused for every read on this loop; the bytes read are copied into
+    // the connection's parser
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile boolean draining;
+    // open connections, for a draining server to wait on
+    private volatile int connectionCount;
+    private Thread thread;
+    private long lastSweep;
+
+    EventLoop(HTTPServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.executor = config.getExecutor();
+        this.keepAliveTimeout = config.getKeepAliveTimeout();
+        this.maxRequestsPerConnection = config.getMaxRequestsPerConnection();
+        this.maxPipelinedRequests = config.getMaxPipelinedRequests();
+        this.writeTimeout = config.getWriteTimeout();
+        this.config = config;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop. Called from the accepting
+     * thread.
+     */
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Closes connections as soon as they have no request left to answer.
+     */
+    void drain() {
+        draining = true;
+        selector.wakeup();
+    }
+
+    int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Stops the loop and closes all of its connections.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                registerPending();
+                writePending();
+                closeIdleAndSlow();
+                if (draining) {
+                    closeIdle();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        flush(conn);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(conn);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.log("IOException in event loop: " + e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                connectionCount++;
+            } catch (IOException e) {
+                Logger.log("Unable to register connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes connections that have waited for their next request longer than
+     * the keep-alive timeout or whose client stopped reading responses, and
+     * answers clients that missed the deadline of a request with 408.
+     */
+    private void closeIdleAndSlow() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (conn.writeBlocked && now - conn.lastWriteProgress > writeTimeout) {
+                Logger.log("Closing connection whose client stopped reading");
+                conn.close();
+            } else if (conn.readDeadline != 0 && now > conn.readDeadline) {
+                // answered in order, then the connection is closed
+                Exchange exchange = new Exchange();
+                exchange.parseError = conn.parser.timedOut();
+                conn.readDeadline = 0;
+                conn.closing = true;
+                conn.pipeline.add(exchange);
+                startReady(conn);
+                updateInterest(conn);
+            } else if (conn.pipeline.isEmpty() && !conn.parser.hasBufferedBytes()
+                    && now - conn.lastActive > keepAliveTimeout) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Closes every connection that has no request to answer and is not
+     * receiving one.
+     */
+    private void closeIdle() {
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (conn.pipeline.isEmpty() && !conn.parser.hasBufferedBytes()) {
+                conn.close();
+            }
+        }
+    }
+
+    private void writePending() {
+        Connection conn;
+        while ((conn = pendingWrites.poll()) != null) {
+            flush(conn);
+        }
+    }
+
+    private void read(Connection conn) {
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = conn.channel.read(readBuffer);
+        } catch (IOException e) {
+            conn.close();
+            return;
+        }
+        if (bytesRead == -1) {
+            // answer what the client already sent before hanging up
+            conn.closing = true;
+            if (conn.pipeline.isEmpty()) {
+                conn.close();
+            } else {
+                updateInterest(conn);
+            }
+            return;
+        }
+        readBuffer.flip();
+        conn.parser.append(readBuffer);
+        conn.lastActive = System.currentTimeMillis();
+        parseBuffered(conn);
+        startReady(conn);
+        updateInterest(conn);
+    }
+
+    /**
+     * Turns every complete request in the connection's buffer into an
+     * exchange at the end of its pipeline, up to the pipeline limit.
+     */
+    private void parseBuffered(Connection conn) {
+        while (!conn.closing && conn.pipeline.size() < maxPipelinedRequests) {
+            Exchange exchange = new Exchange();
+            try {
+                exchange.request = conn.parser.next();
+                if (exchange.request == null) {
+                    break;
+                }
+                exchange.mayKeepAlive = ++conn.served < maxRequestsPerConnection;
+                if (!exchange.mayKeepAlive || !exchange.request.isKeepAlive()) {
+                    // nothing after this request will be answered
+                    conn.closing = true;
+                }
+            } catch (InvalidHttpFormattingException e) {
+                // answered in order, then the connection is closed
+                exchange.parseError = e;
+                conn.closing = true;
+            }
+            conn.pipeline.add(exchange);
+        }
+        if (conn.pipeline.isEmpty()) {
+            // idle connections hold no buffer
+            conn.parser.release();
+        }
+        // only a client that is sending a request while the pipeline has
+        // room is held to a deadline
+        conn.readDeadline = !conn.closing && conn.pipeline.size() < maxPipelinedRequests
+                ? conn.parser.getReadDeadline(System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * Starts every exchange that no longer has to wait: a GET once no other
+     * method is pending before it, any other method once everything before it
+     * has finished.
+     */
+    private void startReady(Connection conn) {
+        boolean earlierUnfinished = false;
+        boolean earlierExclusive = false;
+        for (Exchange exchange : conn.pipeline) {
+            boolean concurrent = exchange.isConcurrent();
+            if (!exchange.started
+                    && (concurrent ? !earlierExclusive : !earlierUnfinished)) {
+                start(conn, exchange);
+            }
+            if (!exchange.done) {
+                earlierUnfinished = true;
+                earlierExclusive |= !concurrent;
+            }
+        }
+    }
+
+    private void start(Connection conn, Exchange exchange) {
+        exchange.started = true;
+        exchange.output = new ResponseOutput(conn);
+        // shed before the executor, so that its queue stays short
+        boolean admitted = exchange.parseError == null && server.offer();
+        Runnable task = () -> {
+            HTTPResponse response = new HTTPResponse(server.getName());
+            response.setStreamTarget(exchange.output);
+            if (exchange.parseError != null) {
+                server.respondToMalformed(response, exchange.parseError);
+                finish(exchange, response, false);
+            } else if (!admitted) {
+                finish(exchange, response, server.respondOverloaded(response));
+            } else {
+                // an asynchronous handler frees this thread and finishes on
+                // whichever thread completes it
+                server.respond(exchange.request, response, exchange.mayKeepAlive)
+                        .thenAccept(persistent -> finish(exchange, response, persistent));
+            }
+        };
+        if (executor == null || !admitted) {
+            task.run();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Logger.log("Executor rejected request: " + e.getMessage());
+            server.withdraw();
+            conn.close();
+        }
+    }
+
+    /**
+     * Hands a sent response to the loop, which writes it in order once
+     * everything before it is written.
+     */
+    private void finish(Exchange exchange, HTTPResponse response, boolean persistent) {
+        exchange.persistent = persistent;
+        if (response.isSent() && !response.isStreamed()) {
+            exchange.output.add(response.toByteBuffers());
+        }
+        exchange.done = true;
+        exchange.output.notifyLoop();
+    }
+
+    /**
+     * Writes the finished responses at the head of the pipeline, then lets
+     * more requests in.
+     */
+    private void flush(Connection conn) {
+        if (!conn.channel.isOpen()) {
+            return;
+        }
+        try {
+            Exchange head;
+            while ((head = conn.pipeline.peek()) != null && head.started) {
+                // read first: everything added before done was set is
+                // written below
+                boolean done = head.done;
+                if (!head.output.writeTo(conn.channel)) {
+                    // socket buffer is full, continue once it drains
+                    if (!conn.writeBlocked) {
+                        conn.writeBlocked = true;
+                        conn.lastWriteProgress = System.currentTimeMillis();
+                    }
+                    updateInterest(conn);
+                    return;
+                }
+                if (!done) {
+                    // the handler is still streaming the body
+                    break;
+                }
+                conn.pipeline.poll();
+                if (!head.persistent) {
+                    conn.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            conn.close();
+            return;
+        }
+        conn.writeBlocked = false;
+        if (conn.closing && conn.pipeline.isEmpty()) {
+            conn.close();
+            return;
+        }
+        conn.lastActive = System.currentTimeMillis();
+        // the client may already have sent its next requests
+        parseBuffered(conn);
+        startReady(conn);
+        updateInterest(conn);
+    }
+
+    /**
+     * Reads while the pipeline has room, writes while a response is stuck.
+     */
+    private void updateInterest(Connection conn) {
+        if (!conn.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (conn.writeBlocked) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!conn.closing && conn.pipeline.size() < maxPipelinedRequests) {
+            ops |= SelectionKey.OP_READ;
+        }
+        conn.key.interestOps(ops);
+    }
+
+    /**
+     * A request of a connection's pipeline and, once handled, its response.
+     */
+    private static class Exchange {
+        HTTPRequest request;
+        // set instead of request if the request could not be parsed
+        Exception parseError;
+        boolean mayKeepAlive;
+        boolean started;
+        // set when started
+        ResponseOutput output;
+        // written by the thread handling the request, read by the loop
+        volatile boolean persistent;
+        // whether the response has been completely handed to output
+        volatile boolean done;
+
+        boolean isConcurrent() {
+            return request != null && request.getMethod() == HTTPRequest.Method.GET;
+        }
+    }
+
+    /**
+     * The bytes of one response on their way from the thread handling the
+     * request to the loop, which writes them once all earlier responses of the
+     * connection are written.
+     *
+     * A thread streaming a body waits while more than
+     * {@value #MAX_QUEUED_BYTES} bytes are queued, so a slow client holds back
+     * the handler instead of filling the heap. A complete response is queued
+     * without waiting; its bytes are already in memory.
+     */
+    private class ResponseOutput extends OutputStream {
+        // buffers written by one gathering write
+        private static final int MAX_GATHER = 16;
+
+        private final Connection conn;
+        private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        // guarded by this
+        private long queuedBytes;
+        private boolean aborted;
+
+        ResponseOutput(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (this) {
+                // the loop itself must never wait for itself to drain
+                while (queuedBytes >= MAX_QUEUED_BYTES && !aborted
+                        && Thread.currentThread() != thread) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while streaming");
+                    }
+                }
+                if (aborted) {
+                    throw new IOException("Connection closed");
+                }
+                queuedBytes += len;
+            }
+            queue.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            notifyLoop();
+        }
+
+        /**
+         * Queues buffers that are not written to afterwards, without copying
+         * or waiting.
+         */
+        void add(ByteBuffer[] buffers) {
+            long length = 0;
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    length += buffer.remaining();
+                    queue.add(buffer);
+                }
+            }
+            synchronized (this) {
+                queuedBytes += length;
+            }
+        }
+
+        void notifyLoop() {
+            pendingWrites.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Writes queued bytes to the channel. Called on the loop.
+         *
+         * @return false if the channel could not take all of them
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+            while (true) {
+                int count = 0;
+                long gathered = 0;
+                for (ByteBuffer buffer : queue) {
+                    if (!buffer.hasRemaining()) {
+                        continue;
+                    }
+                    gathered += buffer.remaining();
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    return true;
+                }
+                long written = channel.write(gather, 0, count);
+                if (written > 0 && conn.writeBlocked) {
+                    // a slow reader is not a stuck one
+                    conn.lastWriteProgress = System.currentTimeMillis();
+                }
+                while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                    queue.poll();
+                }
+                synchronized (this) {
+                    queuedBytes -= written;
+                    notifyAll();
+                }
+                // a gathered buffer left with bytes, whichever one, means the
+                // socket is full
+                if (written < gathered) {
+                    return false;
+                }
+            }
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * State of one client connection.
+     */
+    class Connection {
+        final SocketChannel channel;
+        // requests in arrival order, removed once their response is written
+        final Deque<Exchange> pipeline = new ArrayDeque<>();
+        SelectionKey key;
+        // number of requests read off of this connection
+        int served;
+        long lastActive = System.currentTimeMillis();
+        // no more requests will be read; close once the pipeline is empty
+        boolean closing;
+        boolean writeBlocked;
+        // last time bytes were written while writes are blocked
+        long lastWriteProgress;
+        // time the request being received must have arrived by, 0 if none
+        long readDeadline;
+        boolean closed;
+
+        final HTTPRequestParser parser = new HTTPRequestParser(config);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+                connectionCount--;
+            }
+            for (Exchange exchange : pipeline) {
+                if (exchange.output != null) {
+                    // wakes handlers waiting to stream more
+                    exchange.output.abort();
+                }
+            }
+            try {
+                channel.close();
+            } catch (ClosedChannelException e) {
+                // already closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package org.general.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2, as defined in
+ * https://tools.ietf.org/html/rfc7541.
+ *
+ * A {@link Decoder} reads the header blocks of one connection and keeps the
+ * dynamic table that the client fills. Headers are encoded without touching
+ * the client's dynamic table: the status is indexed when the static table has
+ * it, other headers are literals with an indexed name where possible, and no
+ * string is Huffman coded. That costs a few bytes per response but keeps the
+ * encoder free of state, so responses of concurrent streams can be encoded
+ * in any order.
+ *
+ * Names and values are Strings of ISO-8859-1 characters, one per byte, so
+ * that bytes pass through unchanged.
+ *
+ * @author Guoxing Li
+ *
+ */
+class HPACK {
+
+    /**
+     * Size of the dynamic table unless the settings say otherwise.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // bytes each table entry costs on top of its name and value
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int STATUS_INDEX = 8;
+
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+            { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" },
+            { ":scheme", "https" }, { ":status", "200" }, { ":status", "204" },
+            { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+            { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+            { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+            { "content-disposition", "" }, { "content-encoding", "" },
+            { "content-language", "" }, { "content-length", "" }, { "content-location", "" },
+            { "content-range", "" }, { "content-type", "" }, { "cookie", "" }, { "date", "" },
+            { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+            { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+            { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+            { "link", "" }, { "location", "" }, { "max-forwards", "" },
+            { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+            { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" },
+            { "set-cookie", "" }, { "strict-transport-security", "" },
+            { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+            { "www-authenticate", "" } };
+    // index of the first static entry of each name
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    // Huffman code of each byte, and of EOS at 256, right-aligned
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int EOS = 256;
+    // Huffman codes as a binary trie: the children of node n are at 2n (bit
+    // 0) and 2n + 1 (bit 1). A positive child is a node, a negative child
+    // is the leaf of symbol -child - 1, and 0 is no child.
+    private static final short[] HUFFMAN_TRIE = new short[2 * EOS];
+    static {
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int child = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+                if (HUFFMAN_TRIE[child] == 0) {
+                    HUFFMAN_TRIE[child] = (short) nodes++;
+                }
+                node = HUFFMAN_TRIE[child];
+            }
+            HUFFMAN_TRIE[2 * node + (HUFFMAN_CODES[symbol] & 1)] = (short) (-symbol - 1);
+        }
+    }
+
+    /**
+     * Appends the :status pseudo-header.
+     */
+    static void encodeStatus(ByteArrayOutputStream out, int status) {
+        String code = Integer.toString(status);
+        for (int i = STATUS_INDEX - 1; i < STATIC_TABLE.length
+                && STATIC_TABLE[i][0].equals(":status"); i++) {
+            if (STATIC_TABLE[i][1].equals(code)) {
+                // indexed header field
+                encodeInteger(out, 0x80, 7, i + 1);
+                return;
+            }
+        }
+        encodeLiteral(out, STATUS_INDEX, code);
+    }
+
+    /**
+     * Appends a header as a literal that is not added to the dynamic table.
+     * The name must be lower case.
+     */
+    static void encode(ByteArrayOutputStream out, String name, String value) {
+        Integer index = STATIC_NAMES.get(name);
+        if (index != null) {
+            encodeLiteral(out, index, value);
+            return;
+        }
+        out.write(0);
+        encodeString(out, name);
+        encodeString(out, value);
+    }
+
+    private static void encodeLiteral(ByteArrayOutputStream out, int nameIndex, String value) {
+        // literal header field without indexing, indexed name
+        encodeInteger(out, 0, 4, nameIndex);
+        encodeString(out, value);
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        encodeInteger(out, 0, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends value with an N-bit prefix, the other bits of the first byte
+     * being flags.
+     */
+    static void encodeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they were
+     * sent.
+     *
+     * Not thread-safe; owned by the thread reading the connection.
+     */
+    static class Decoder {
+        // the dynamic table, oldest entry first
+        private final List<String[]> table = new ArrayList<>();
+        private int tableSize;
+        private int maxTableSize;
+        // the largest size the client may ask for, from our settings
+        private final int tableSizeLimit;
+
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        Decoder(int tableSizeLimit) {
+            this.tableSizeLimit = tableSizeLimit;
+            this.maxTableSize = tableSizeLimit;
+        }
+
+        /**
+         * Decodes the given header block into names and values, in turns.
+         *
+         * @param maxListSize
+         *            most bytes the decoded headers may take, counted as in
+         *            SETTINGS_MAX_HEADER_LIST_SIZE
+         * @return the headers, or null if they take more than maxListSize.
+         *         The block is still decoded to keep the table in step.
+         * @throws HPACKException
+         *             if the block is malformed, in which case the connection
+         *             can't decode any more blocks
+         */
+        List<String> decode(byte[] block, int offset, int length, int maxListSize)
+                throws HPACKException {
+            this.block = block;
+            this.pos = offset;
+            this.end = offset + length;
+            List<String> headers = new ArrayList<>();
+            int listSize = 0;
+            while (pos < end) {
+                int b = block[pos] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    // indexed header field
+                    String[] entry = entry(decodeInteger(7));
+                    name = entry[0];
+                    value = entry[1];
+                } else if ((b & 0xc0) == 0x40) {
+                    // literal with incremental indexing
+                    int index = decodeInteger(6);
+                    name = index == 0 ? decodeString() : entry(index)[0];
+                    value = decodeString();
+                    add(name, value);
+                } else if ((b & 0xe0) == 0x20) {
+                    // dynamic table size update, only before the first header
+                    int size = decodeInteger(5);
+                    if (size > tableSizeLimit || listSize > 0) {
+                        throw new HPACKException("Invalid dynamic table size update: " + size);
+                    }
+                    maxTableSize = size;
+                    evict(0);
+                    continue;
+                } else {
+                    // literal without indexing or never indexed
+                    int index = decodeInteger(4);
+                    name = index == 0 ? decodeString() : entry(index)[0];
+                    value = decodeString();
+                }
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if (listSize <= maxListSize) {
+                    headers.add(name);
+                    headers.add(value);
+                }
+            }
+            this.block = null;
+            return listSize <= maxListSize ? headers : null;
+        }
+
+        private String[] entry(int index) throws HPACKException {
+            if (index <= 0) {
+                throw new HPACKException("Invalid index: " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length;
+            if (dynamicIndex > table.size()) {
+                throw new HPACKException("Invalid index: " + index);
+            }
+            // the newest entry has the lowest index
+            return table.get(table.size() - dynamicIndex);
+        }
+
+        private void add(String name, String value) {
+            int size = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(size);
+            if (size <= maxTableSize) {
+                table.add(new String[] { name, value });
+                tableSize += size;
+            }
+        }
+
+        /**
+         * Evicts the oldest entries until there is room for the given size.
+         */
+        private void evict(int room) {
+            while (!table.isEmpty() && tableSize + room > maxTableSize) {
+                String[] oldest = table.remove(0);
+                tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+
+        private int decodeInteger(int prefixBits) throws HPACKException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift <= 21; shift += 7) {
+                if (pos >= end) {
+                    break;
+                }
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new HPACKException("Invalid integer");
+        }
+
+        private String decodeString() throws HPACKException {
+            if (pos >= end) {
+                throw new HPACKException("Missing string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = decodeInteger(7);
+            if (length > end - pos) {
+                throw new HPACKException("String is longer than the block");
+            }
+            int start = pos;
+            pos += length;
+            if (!huffman) {
+                return new String(block, start, length, StandardCharsets.ISO_8859_1);
+            }
+            return decodeHuffman(block, start, length);
+        }
+    }
+
+    /**
+     * Decodes a Huffman coded string.
+     */
+    static String decodeHuffman(byte[] bytes, int start, int length) throws HPACKException {
+        StringBuilder s = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // bits read since the last symbol, and whether they were all 1s
+        int pending = 0;
+        boolean ones = true;
+        for (int i = start; i < start + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int b = bytes[i] >>> bit & 1;
+                int child = HUFFMAN_TRIE[2 * node + b];
+                pending++;
+                ones &= b == 1;
+                if (child < 0) {
+                    int symbol = -child - 1;
+                    if (symbol == EOS) {
+                        throw new HPACKException("EOS in Huffman coded string");
+                    }
+                    s.append((char) symbol);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else {
+                    node = child;
+                }
+            }
+        }
+        // the padding is the most significant bits of EOS, less than a byte
+        if (pending > 7 || !ones) {
+            throw new HPACKException("Invalid Huffman padding");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Thrown when a header block can't be decoded.
+     */
+    static class HPACKException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        HPACKException(String msg) {
+            super(msg);
+        }
+    }
+}
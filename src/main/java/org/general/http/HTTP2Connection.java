@@ -0,0 +1,1080 @@
+package org.general.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.general.http.HTTPRequest.InvalidHttpFormattingException;
+import org.general.http.HTTPRequest.RequestLimitException;
+import org.general.http.HTTPResponse.StatusCode;
+import org.general.util.Logger;
+
+/**
+ * Serves one HTTP/2 connection over cleartext TCP (h2c), as defined in
+ * https://tools.ietf.org/html/rfc7540, for the blocking transport. The
+ * connection either started with the HTTP/2 preface or was upgraded from an
+ * HTTP/1.1 request with "Upgrade: h2c".
+ *
+ * The thread serving the connection reads frames. Once a stream's request
+ * has fully arrived, it is handed to the executor and handled like an
+ * HTTP/1.1 request, so many requests of one connection are handled at once
+ * and answered in whatever order they finish. Requests are passed to the
+ * handler as the HTTP/1.1 requests they stand for, and responses are kept in
+ * memory and then framed, so handlers don't know which protocol they serve.
+ * Before the reading thread waits for the client, it handles the requests
+ * that no executor thread has picked up yet, so a busy executor doesn't
+ * leave them waiting.
+ *
+ * Responses are sent within the flow-control windows of the client: what
+ * does not fit waits, without holding a thread, until the client opens the
+ * windows again. The client's windows for request bodies are opened as soon
+ * as bytes arrive, since bodies are bounded by the maximum body size anyway.
+ *
+ * Streams beyond {@link ServerConfig#getMaxConcurrentStreams()} are refused,
+ * and the connection is closed once it has been idle for the keep-alive
+ * timeout, has served the maximum number of requests per connection or the
+ * server drains.
+ *
+ * @author Guoxing Li
+ *
+ */
+class HTTP2Connection {
+
+    /**
+     * What a client sends first on an HTTP/2 connection.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The response to an HTTP/1.1 request that upgrades to h2c.
+     */
+    static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final String HEADER_UPGRADE_KEY = "Upgrade";
+    private static final String HEADER_SETTINGS_KEY = "HTTP2-Settings";
+    private static final String VERSION = "HTTP/2.0";
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // settings
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65_535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    // frames we accept and, until the client allows more, send
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    private static final int MAX_MAX_FRAME_SIZE = (1 << 24) - 1;
+
+    // headers that only mean something to an HTTP/1.1 connection
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    private final HTTPServer server;
+    private final ServerConfig config;
+    private final BlockingConnection connection;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final int maxHeaderListSize;
+
+    // owned by the reading thread
+    private final HTTPRequestParser parser;
+    private final HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private int lastStreamId;
+    private int served;
+    // whether the connection ends once its streams are done, and whether
+    // this side said so with a GOAWAY
+    private boolean goingAway;
+    private boolean goAwaySent;
+    // streams whose request was handed to the executor
+    private final List<Stream> queued = new ArrayList<>();
+    // header block that continues in CONTINUATION frames, null if none
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndsStream;
+    // set while waiting for the first byte of a frame
+    private volatile boolean betweenFrames;
+
+    // open streams, and the ones with a response to send in order; guarded
+    // by this, as are the windows and writes to out
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final List<Stream> sending = new ArrayList<>();
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private long initialStreamWindow = DEFAULT_WINDOW_SIZE;
+    private int maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    HTTP2Connection(HTTPServer server, ServerConfig config, BlockingConnection connection,
+            Socket socket, InputStream in, OutputStream out) {
+        this.server = server;
+        this.config = config;
+        this.connection = connection;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.parser = new HTTPRequestParser(config);
+        // as much as the HTTP/1.1 parser accepts
+        this.maxHeaderListSize = (int) Math.min(Integer.MAX_VALUE,
+                (long) config.getMaxRequestLineLength() * (config.getMaxHeaderCount() + 1));
+    }
+
+    /**
+     * Returns the settings of an HTTP/1.1 request that asks to upgrade to
+     * h2c, or null if the request does not ask for it.
+     */
+    static byte[] upgradeSettings(HTTPRequest request) {
+        String upgrade = request.getHeaderValue(HEADER_UPGRADE_KEY);
+        String settings = request.getHeaderValue(HEADER_SETTINGS_KEY);
+        if (upgrade == null || settings == null || !"h2c".equalsIgnoreCase(upgrade.trim())
+                || !"HTTP/1.1".equalsIgnoreCase(request.getVersion())) {
+            return null;
+        }
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(settings.trim());
+            return bytes.length % 6 == 0 ? bytes : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serves the connection until the client or the server ends it.
+     *
+     * @param upgraded
+     *            the HTTP/1.1 request that upgraded the connection, which
+     *            becomes stream 1, or null if the client sent the preface
+     *            and it has been read
+     * @param upgradeSettings
+     *            the settings of the upgrade request
+     */
+    void serve(HTTPRequest upgraded, byte[] upgradeSettings) throws IOException {
+        boolean ended = false;
+        try {
+            socket.setSoTimeout(config.getKeepAliveTimeout());
+            writeSettings();
+            if (upgraded != null) {
+                applySettings(upgradeSettings);
+                Stream stream = open(1);
+                stream.remoteClosed = true;
+                lastStreamId = 1;
+                served++;
+                start(stream, upgraded);
+                readPreface();
+            }
+            while (readFrame()) {
+                // next frame
+            }
+            ended = true;
+        } catch (ConnectionError e) {
+            Logger.log("HTTP/2 connection error: " + e.getMessage());
+            goAway(e.errorCode, e.getMessage());
+            ended = true;
+        } finally {
+            finish(ended);
+        }
+    }
+
+    /**
+     * Withdraws the requests that no thread has started, and says goodbye if
+     * the connection is still usable.
+     */
+    private void finish(boolean ended) {
+        for (Stream stream : queued) {
+            if (stream.started.compareAndSet(false, true) && stream.offered) {
+                server.withdraw();
+            }
+        }
+        queued.clear();
+        if (ended && !goAwaySent) {
+            try {
+                goAway(NO_ERROR, null);
+            } catch (IOException e) {
+                // the client is gone
+            }
+        }
+    }
+
+    private void readPreface() throws IOException, ConnectionError {
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface, preface.length);
+        if (!Arrays.equals(preface, PREFACE)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads and handles one frame.
+     *
+     * @return false once the connection should be closed
+     */
+    private boolean readFrame() throws IOException, ConnectionError {
+        if (server.isDraining() && !goAwaySent) {
+            goAway(NO_ERROR, null);
+        }
+        if (goingAway && !hasStreams()) {
+            return false;
+        }
+        if (in.available() == 0) {
+            runQueued();
+        }
+        if (!readFrameHeader()) {
+            return false;
+        }
+        int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8
+                | frameHeader[2] & 0xff;
+        int type = frameHeader[3] & 0xff;
+        int flags = frameHeader[4] & 0xff;
+        int streamId = readInt(frameHeader, 5) & Integer.MAX_VALUE;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        byte[] payload = new byte[length];
+        readFully(payload, length);
+        if (headerBlock != null && type != CONTINUATION) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block was not continued");
+        }
+        switch (type) {
+        case DATA:
+            onData(streamId, flags, payload);
+            break;
+        case HEADERS:
+            onHeaders(streamId, flags, payload);
+            break;
+        case CONTINUATION:
+            onContinuation(streamId, flags, payload);
+            break;
+        case PRIORITY:
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+            }
+            if (length != 5) {
+                reset(streamId, FRAME_SIZE_ERROR);
+            }
+            // every stream is served as soon as it can be
+            break;
+        case RST_STREAM:
+            onReset(streamId, payload);
+            break;
+        case SETTINGS:
+            onSettings(streamId, flags, payload);
+            break;
+        case PUSH_PROMISE:
+            throw new ConnectionError(PROTOCOL_ERROR, "Clients can't push");
+        case PING:
+            if (streamId != 0 || length != 8) {
+                throw new ConnectionError(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR,
+                        "Invalid PING");
+            }
+            if ((flags & FLAG_ACK) == 0) {
+                writeControl(PING, FLAG_ACK, 0, payload);
+            }
+            break;
+        case GOAWAY:
+            if (streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+            }
+            // the client opens no more streams; finish the ones it has
+            goingAway = true;
+            break;
+        case WINDOW_UPDATE:
+            onWindowUpdate(streamId, payload);
+            break;
+        default:
+            // unknown frame types are ignored
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the header of the next frame.
+     *
+     * @return false if the client hung up, or stayed idle past the keep-alive
+     *         timeout while no stream was open
+     */
+    private boolean readFrameHeader() throws IOException {
+        int count = 0;
+        while (count < FRAME_HEADER_LENGTH) {
+            betweenFrames = count == 0;
+            updateIdle();
+            int read;
+            try {
+                read = in.read(frameHeader, count, FRAME_HEADER_LENGTH - count);
+            } catch (SocketTimeoutException e) {
+                if (count > 0) {
+                    throw e;
+                }
+                if (!hasStreams()) {
+                    return false;
+                }
+                // handlers are still at work
+                continue;
+            } catch (SocketException e) {
+                if (count == 0 && server.isDraining()) {
+                    // closed by the draining server
+                    return false;
+                }
+                throw e;
+            } finally {
+                betweenFrames = false;
+                connection.setIdle(false);
+            }
+            if (read == -1) {
+                if (count == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            count += read;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int read = in.read(bytes, count, length - count);
+            if (read == -1) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            count += read;
+        }
+    }
+
+    /**
+     * Lets a draining server close the connection while it waits for a frame
+     * and has no request in flight.
+     */
+    private void updateIdle() {
+        connection.setIdle(betweenFrames && !hasStreams());
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload)
+            throws IOException, ConnectionError {
+        if (streamId % 2 == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = payload.length - (start > 0 && payload.length > 0 ? payload[0] & 0xff : 0);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+        }
+        headerBlock = new ByteArrayOutputStream(end - start);
+        headerBlock.write(payload, start, end - start);
+        headerBlockStreamId = streamId;
+        headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload)
+            throws IOException, ConnectionError {
+        if (headerBlock == null || streamId != headerBlockStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        if (headerBlock.size() + payload.length > maxHeaderListSize) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block is too large");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    /**
+     * Decodes a complete header block, which opens a stream or ends one with
+     * trailers.
+     */
+    private void endHeaders() throws IOException, ConnectionError {
+        byte[] block = headerBlock.toByteArray();
+        int streamId = headerBlockStreamId;
+        boolean endStream = headerBlockEndsStream;
+        headerBlock = null;
+        List<String> headers;
+        try {
+            // the table must be kept in step even for streams that are refused
+            headers = decoder.decode(block, 0, block.length, maxHeaderListSize);
+        } catch (HPACK.HPACKException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Stream stream = getStream(streamId);
+        if (stream != null) {
+            if (stream.remoteClosed || !endStream) {
+                reset(streamId, stream.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+                return;
+            }
+            // trailers, which no handler reads
+            stream.remoteClosed = true;
+            if (stream.body != null) {
+                dispatch(stream);
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        if (goAwaySent) {
+            // beyond the last stream that the GOAWAY promised to serve
+            return;
+        }
+        lastStreamId = streamId;
+        synchronized (this) {
+            if (streams.size() >= config.getMaxConcurrentStreams()) {
+                stream = null;
+            } else {
+                stream = open(streamId);
+            }
+        }
+        if (stream == null) {
+            reset(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (++served >= config.getMaxRequestsPerConnection()) {
+            goAway(NO_ERROR, null);
+        }
+        stream.remoteClosed = endStream;
+        if (headers == null) {
+            respondNow(stream, new RequestLimitException(StatusCode.HEADER_FIELDS_TOO_LARGE,
+                    "Request headers are larger than " + maxHeaderListSize + " bytes"));
+            return;
+        }
+        if (declaredLength(headers) > config.getMaxBodySize()) {
+            // before the client sends the body
+            respondNow(stream, new RequestLimitException(StatusCode.PAYLOAD_TOO_LARGE,
+                    "Request body is larger than " + config.getMaxBodySize() + " bytes"));
+            return;
+        }
+        stream.headers = headers;
+        stream.body = new ByteArrayOutputStream();
+        if (endStream) {
+            dispatch(stream);
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload)
+            throws IOException, ConnectionError {
+        if (streamId % 2 == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream " + streamId);
+        }
+        int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = payload.length - (start > 0 && payload.length > 0 ? payload[0] & 0xff : 0);
+        if (end < start) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+        }
+        if (payload.length > 0) {
+            // padding counts against the window as well
+            windowUpdate(0, payload.length);
+        }
+        Stream stream = getStream(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // a stream that was reset or answered early; the client may not
+            // know yet
+            return;
+        }
+        if (stream.remoteClosed) {
+            reset(streamId, STREAM_CLOSED);
+            return;
+        }
+        if (stream.body != null) {
+            if (stream.body.size() + end - start > config.getMaxBodySize()) {
+                stream.body = null;
+                respondNow(stream, new RequestLimitException(StatusCode.PAYLOAD_TOO_LARGE,
+                        "Request body is larger than " + config.getMaxBodySize() + " bytes"));
+            } else {
+                stream.body.write(payload, start, end - start);
+            }
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            if (stream.body != null) {
+                dispatch(stream);
+            }
+        } else if (payload.length > 0) {
+            windowUpdate(streamId, payload.length);
+        }
+    }
+
+    private void onReset(int streamId, byte[] payload) throws ConnectionError {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        close(streamId);
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload)
+            throws IOException, ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+        }
+        applySettings(payload);
+        writeControl(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(byte[] payload) throws IOException, ConnectionError {
+        synchronized (this) {
+            for (int i = 0; i < payload.length; i += 6) {
+                int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+                long value = readInt(payload, i + 2) & 0xffffffffL;
+                switch (id) {
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid window size");
+                    }
+                    // applies to the streams that are open as well
+                    for (Stream stream : streams.values()) {
+                        stream.window += value - initialStreamWindow;
+                        if (stream.window > MAX_WINDOW_SIZE) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Window overflow");
+                        }
+                    }
+                    initialStreamWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE");
+                    }
+                    maxSendFrameSize = (int) value;
+                    break;
+                default:
+                    // the response encoding needs no other setting
+                    break;
+                }
+            }
+            flushPending();
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload)
+            throws IOException, ConnectionError {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+        }
+        int increment = readInt(payload, 0) & Integer.MAX_VALUE;
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Window increment of 0");
+            }
+            reset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow = false;
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.window += increment;
+                    overflow = stream.window > MAX_WINDOW_SIZE;
+                }
+            }
+            if (!overflow) {
+                flushPending();
+            }
+        }
+        if (overflow) {
+            reset(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Parses the request of a stream whose request has fully arrived and
+     * hands it to the executor.
+     */
+    private void dispatch(Stream stream) throws IOException {
+        byte[] bytes = requestBytes(stream.headers, stream.body.toByteArray());
+        stream.headers = null;
+        stream.body = null;
+        if (bytes == null) {
+            reset(stream.id, PROTOCOL_ERROR);
+            return;
+        }
+        HTTPRequest request;
+        try {
+            parser.append(ByteBuffer.wrap(bytes));
+            request = parser.next();
+        } catch (InvalidHttpFormattingException e) {
+            respondNow(stream, e);
+            return;
+        }
+        start(stream, request);
+    }
+
+    private void start(Stream stream, HTTPRequest request) {
+        stream.offered = server.offer();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            respond(stream, request);
+            return null;
+        });
+        stream.task = task;
+        queued.add(stream);
+        try {
+            config.getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // will be run by the reading thread
+        }
+    }
+
+    /**
+     * Runs the requests that no executor thread has started yet.
+     */
+    private void runQueued() {
+        for (Stream stream : queued) {
+            // no-op if the executor already started it
+            stream.task.run();
+        }
+        queued.clear();
+    }
+
+    private void respond(Stream stream, HTTPRequest request) {
+        if (!stream.started.compareAndSet(false, true)) {
+            // reset before it started
+            return;
+        }
+        HTTPResponse response = new HTTPResponse(server.getName());
+        // DATA frames carry the body; chunks would end up in it
+        response.setChunkedAllowed(false);
+        if (stream.offered) {
+            // whether to keep the connection open is up to this connection
+            server.respond(request, response, true).join();
+        } else {
+            server.respondOverloaded(response);
+        }
+        send(stream, response);
+    }
+
+    /**
+     * Answers a request that can't be handled, e.g. because it is too large.
+     */
+    private void respondNow(Stream stream, InvalidHttpFormattingException e) {
+        stream.started.set(true);
+        HTTPResponse response = new HTTPResponse(server.getName());
+        server.respondToMalformed(response, e);
+        send(stream, response);
+    }
+
+    /**
+     * Queues the response of a stream and sends as much of it as the windows
+     * allow. Called on any thread.
+     */
+    private void send(Stream stream, HTTPResponse response) {
+        try {
+            if (!response.isSent()) {
+                reset(stream.id, INTERNAL_ERROR);
+                return;
+            }
+            ByteBuffer[] buffers = response.toByteBuffers();
+            byte[] block = encodeHeaders(buffers[0]);
+            synchronized (this) {
+                if (streams.get(stream.id) != stream) {
+                    // reset by the client meanwhile
+                    return;
+                }
+                stream.headerBlock = block;
+                stream.data = buffers[1];
+                sending.add(stream);
+                flushPending();
+            }
+        } catch (IOException e) {
+            Logger.log("IOException when sending HTTP/2 response: " + e.getMessage());
+            HTTPServer.closeQuietly(socket);
+        }
+        updateIdle();
+    }
+
+    /**
+     * Writes the queued responses as far as the flow-control windows allow,
+     * in the order they were queued.
+     */
+    private void flushPending() throws IOException {
+        Iterator<Stream> pending = sending.iterator();
+        while (pending.hasNext()) {
+            Stream stream = pending.next();
+            ByteBuffer data = stream.data;
+            if (stream.headerBlock != null) {
+                writeHeaders(stream.id, stream.headerBlock, !data.hasRemaining());
+                stream.headerBlock = null;
+            }
+            while (data.hasRemaining() && sendWindow > 0 && stream.window > 0) {
+                int length = (int) Math.min(Math.min(data.remaining(), maxSendFrameSize),
+                        Math.min(sendWindow, stream.window));
+                boolean last = length == data.remaining();
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data.array(),
+                        data.arrayOffset() + data.position(), length);
+                data.position(data.position() + length);
+                sendWindow -= length;
+                stream.window -= length;
+            }
+            if (!data.hasRemaining()) {
+                pending.remove();
+                streams.remove(stream.id);
+                if (!stream.remoteClosed) {
+                    // answered early; the rest of the request is not needed
+                    writeFrame(RST_STREAM, 0, stream.id, intBytes(NO_ERROR), 0, 4);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int offset = 0;
+        int type = HEADERS;
+        do {
+            int length = Math.min(block.length - offset, maxSendFrameSize);
+            int flags = type == HEADERS && endStream ? FLAG_END_STREAM : 0;
+            if (offset + length == block.length) {
+                flags |= FLAG_END_HEADERS;
+            }
+            writeFrame(type, flags, streamId, block, offset, length);
+            offset += length;
+            type = CONTINUATION;
+        } while (offset < block.length);
+    }
+
+    /**
+     * Translates the head of an HTTP/1.1 response into a header block.
+     */
+    private static byte[] encodeHeaders(ByteBuffer head) {
+        String text = new String(head.array(), head.arrayOffset() + head.position(),
+                head.remaining(), StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        // "HTTP/1.1 200 OK"
+        int codeStart = text.indexOf(' ') + 1;
+        HPACK.encodeStatus(block, Integer.parseInt(text.substring(codeStart, codeStart + 3)));
+        int start = text.indexOf("\r\n") + 2;
+        int end;
+        while ((end = text.indexOf("\r\n", start)) > start) {
+            int colon = text.indexOf(':', start);
+            String name = text.substring(start, colon).trim().toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                HPACK.encode(block, name, text.substring(colon + 1, end).trim());
+            }
+            start = end + 2;
+        }
+        return block.toByteArray();
+    }
+
+    /**
+     * Writes the request of a stream as an HTTP/1.1 client would have sent
+     * it, for the {@link HTTPRequestParser}.
+     *
+     * @return the bytes, or null if the headers are malformed
+     */
+    private static byte[] requestBytes(List<String> headers, byte[] body) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        StringBuilder fields = new StringBuilder();
+        boolean pseudo = true;
+        for (int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            if (!isValidHeader(name, value)) {
+                return null;
+            }
+            if (name.charAt(0) == ':') {
+                // pseudo-headers come first, once each
+                if (!pseudo) {
+                    return null;
+                }
+                if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else if (!name.equals(":scheme")) {
+                    return null;
+                }
+                continue;
+            }
+            pseudo = false;
+            if (CONNECTION_HEADERS.contains(name)) {
+                return null;
+            }
+            if (name.equals("content-length") || name.equals("host") && authority != null) {
+                continue;
+            }
+            fields.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            return null;
+        }
+        StringBuilder head = new StringBuilder(method).append(' ').append(path).append(' ')
+                .append(VERSION).append("\r\n");
+        if (authority != null) {
+            head.append("Host: ").append(authority).append("\r\n");
+        }
+        head.append(fields);
+        if (body.length > 0) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bytes = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+        return bytes;
+    }
+
+    /**
+     * Returns the content-length the client declared, or -1 if none or an
+     * invalid one. The length actually sent is what counts.
+     */
+    private static long declaredLength(List<String> headers) {
+        for (int i = 0; i < headers.size(); i += 2) {
+            if (headers.get(i).equals("content-length")) {
+                try {
+                    return Long.parseLong(headers.get(i + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Names must be lower case tokens, and values must not break the lines
+     * of the request they are written into.
+     */
+    private static boolean isValidHeader(String name, String value) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || c >= 'A' && c <= 'Z' || c == ':' && i > 0) {
+                return false;
+            }
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a stream with the client's initial window.
+     */
+    private synchronized Stream open(int streamId) {
+        Stream stream = new Stream(streamId, initialStreamWindow);
+        streams.put(streamId, stream);
+        return stream;
+    }
+
+    private synchronized Stream getStream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    private synchronized boolean hasStreams() {
+        return !streams.isEmpty();
+    }
+
+    /**
+     * Forgets a stream, and withdraws its request if no thread has started
+     * it.
+     */
+    private void close(int streamId) {
+        Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            sending.remove(stream);
+        }
+        if (stream != null && stream.started.compareAndSet(false, true) && stream.offered) {
+            server.withdraw();
+        }
+    }
+
+    private void reset(int streamId, int errorCode) throws IOException {
+        close(streamId);
+        writeControl(RST_STREAM, 0, streamId, intBytes(errorCode));
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        writeControl(WINDOW_UPDATE, 0, streamId, intBytes(increment));
+    }
+
+    /**
+     * Tells the client that no stream after the last one it opened will be
+     * served.
+     */
+    private void goAway(int errorCode, String message) throws IOException {
+        goingAway = true;
+        goAwaySent = true;
+        byte[] debug = message == null ? new byte[0]
+                : message.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = Arrays.copyOf(intBytes(lastStreamId), 8 + debug.length);
+        System.arraycopy(intBytes(errorCode), 0, payload, 4, 4);
+        System.arraycopy(debug, 0, payload, 8, debug.length);
+        writeControl(GOAWAY, 0, 0, payload);
+    }
+
+    private void writeSettings() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(12);
+        writeSetting(payload, SETTINGS_MAX_CONCURRENT_STREAMS, config.getMaxConcurrentStreams());
+        writeSetting(payload, SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListSize);
+        writeControl(SETTINGS, 0, 0, payload.toByteArray());
+    }
+
+    private static void writeSetting(ByteArrayOutputStream payload, int id, int value) {
+        payload.write(id >>> 8);
+        payload.write(id);
+        payload.write(intBytes(value), 0, 4);
+    }
+
+    private synchronized void writeControl(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+        out.flush();
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset,
+            int length) throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, header, 5, 4);
+        out.write(header);
+        out.write(payload, offset, length);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff;
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+                (byte) (value >>> 8), (byte) value };
+    }
+
+    /**
+     * One request and its response.
+     */
+    private static class Stream {
+        final int id;
+        // set once the request is responded to, or withdrawn
+        final AtomicBoolean started = new AtomicBoolean();
+        boolean offered;
+        FutureTask<Void> task;
+
+        // the request so far, owned by the reading thread. The body is null
+        // once the request is complete or was answered early.
+        List<String> headers;
+        ByteArrayOutputStream body;
+        volatile boolean remoteClosed;
+
+        // the response, guarded by the connection
+        long window;
+        byte[] headerBlock;
+        ByteBuffer data;
+
+        Stream(int id, long window) {
+            this.id = id;
+            this.window = window;
+        }
+    }
+
+    /**
+     * An error that ends the connection with a GOAWAY.
+     */
+    private static class ConnectionError extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int errorCode;
+
+        ConnectionError(int errorCode, String msg) {
+            super(msg);
+            this.errorCode = errorCode;
+        }
+    }
+}
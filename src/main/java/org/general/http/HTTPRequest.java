@@ -1,16 +1,23 @@
 package org.general.http;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class that represents an HTTP request.
+ *
+ * The request keeps the bytes it was parsed from and only the offsets of its
+ * parts. The path, headers and params are decoded when first asked for.
+ * Not thread-safe.
  * 
  * Provides utilities for retrieving required/optional parameters,
  * throwing exceptions when parameters do not exist or are of
@@ -32,116 +39,484 @@ public class HTTPRequest {
         }
     }
 
-    // URIREGEX is used to extract the path from an absolute URI
-    private static final String URIREGEX = "^https?://[^/]+(.+)";
-    // QUERYREGEX is used to separate path and query string
-    private static final String QUERYREGEX = "([^?]+)(?:\\?(.+))?";
+    /**
+     * Media type of a body that is JSON rather than form params.
+     */
+    public static final String JSON_MEDIA_TYPE = "application/json";
+
+    private static final byte[] GET = bytes("GET");
+    private static final byte[] POST = bytes("POST");
+    private static final byte[] HTTP = bytes("http://");
+    private static final byte[] HTTPS = bytes("https://");
+    private static final byte[] HTTP_1_0 = bytes("HTTP/1.0");
+    private static final byte[] CONTENT_LENGTH = bytes("Content-Length");
+    private static final byte[] CONNECTION = bytes("Connection");
+    private static final byte[] CLOSE = bytes("close");
+    private static final byte[] KEEP_ALIVE = bytes("keep-alive");
 
+    // Request line, headers and body as received. Everything below is an
+    // offset into these bytes; strings are only decoded when asked for.
+    private byte[] raw;
     private Method method;
-    private String absoluteURI;
+    private int targetStart;
+    private int targetEnd;
+    private int pathStart;
+    private int pathEnd;
+    // -1 if the target has no query string
+    private int queryStart = -1;
+    private int versionStart;
+    private int versionEnd;
+    // name start, name end, value start, value end of each header
+    private int[] headers = new int[4 * 8];
+    private int headerCount;
+    private int bodyStart;
+    private int contentLength;
+
+    // decoded on first use
     private String URI;
-    @SuppressWarnings("unused")
-    private String version;
     private Map<String, String> queryParams;
-    private Map<String, String> headers;
+    // set by the router for routes like /statuses/show/{id}.json
+    private Map<String, String> pathParams;
 
     /**
-     * Constructor for HTTPRequest.
+     * Constructor for HTTPRequest. Reads exactly one request (request line,
+     * headers and a body of Content-Length bytes) so that the stream can be
+     * reused for the next request on a persistent connection. Wrap socket
+     * streams in a BufferedInputStream, since the head is read byte by byte.
+     * The transports use {@link HTTPRequestParser} instead, which reads in
+     * bulk.
      * 
      * @param in
      *            The InputStream where the data of this HTTPRequest comes from.
+     * @throws EOFException
+     *             if the stream ends before the request line begins, i.e. the
+     *             client closed the connection between requests
      * @throws IOException
      * @throws InvalidHttpFormattingException
      */
     public HTTPRequest(InputStream in) throws IOException, InvalidHttpFormattingException {
-        BufferedReader inReader = new BufferedReader(new InputStreamReader(in));
-        
-        // Read in first line of request
-        String requestLine = inReader.readLine();
-        String[] splitted = requestLine.split("\\s+");
-        
-        if (splitted.length != 3) 
-            throw new InvalidHttpFormattingException(InvalidHttpFormattingException.INVALID_FIRST_LINE + 
-                    " was given: " + requestLine);
-        method = Method.valueOf(splitted[0]);
-        absoluteURI = splitted[1];
-        version = splitted[2];
-
-        // process URI/queryString
-        Pattern uriP = Pattern.compile(URIREGEX);
-        Matcher uriM = uriP.matcher(splitted[1]);
-        String fullURI;
-        if (uriM.find()) {
-            fullURI = uriM.group(1);
+        byte[] head = readHead(in);
+        parseHead(head, 0, head.length);
+        byte[] bytes = head;
+        if (contentLength > 0) {
+            bytes = Arrays.copyOf(head, head.length + contentLength);
+            int read = head.length;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count == -1) {
+                    throw new EOFException("Connection closed before end of body");
+                }
+                read += count;
+            }
+        }
+        setBytes(bytes);
+    }
+
+    /**
+     * Used by {@link HTTPRequestParser}, which calls
+     * {@link #parseHead(byte[], int, int)} and {@link #setBytes(byte[])}.
+     */
+    HTTPRequest() {
+    }
+
+    /**
+     * Reads up to and including the empty line that ends the headers,
+     * skipping empty lines before the request line.
+     */
+    private static byte[] readHead(InputStream in) throws IOException {
+        byte[] head = new byte[256];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (length == 0 && (b == '\r' || b == '\n')) {
+                continue;
+            }
+            if (length == head.length) {
+                head = Arrays.copyOf(head, length * 2);
+            }
+            head[length++] = (byte) b;
+            if (b == '\n' && isHeadEnd(head, length)) {
+                return Arrays.copyOf(head, length);
+            }
+        }
+        if (length == 0) {
+            throw new EOFException("Connection closed before request line");
+        }
+        throw new EOFException("Connection closed before end of headers");
+    }
+
+    /**
+     * Whether the first length bytes, the last of which is LF, end with an
+     * empty line.
+     */
+    private static boolean isHeadEnd(byte[] bytes, int length) {
+        return length >= 2 && bytes[length - 2] == '\n'
+                || length >= 3 && bytes[length - 2] == '\r' && bytes[length - 3] == '\n';
+    }
+
+    /**
+     * Parses the request line and headers in bytes[offset, headEnd), where
+     * headEnd is just past the empty line. Lines end with LF or CRLF. Offsets
+     * are stored relative to offset, where the bytes given to
+     * {@link #setBytes(byte[])} will begin.
+     */
+    void parseHead(byte[] bytes, int offset, int headEnd)
+            throws InvalidHttpFormattingException {
+        int lineEnd = indexOf(bytes, offset, headEnd, '\n');
+        int lineStop = trimCR(bytes, offset, lineEnd);
+        // METHOD SP target SP version, separated by runs of whitespace
+        int methodEnd = skip(bytes, offset, lineStop, false);
+        int targetStart = skip(bytes, methodEnd, lineStop, true);
+        int targetEnd = skip(bytes, targetStart, lineStop, false);
+        int versionStart = skip(bytes, targetEnd, lineStop, true);
+        int versionEnd = skip(bytes, versionStart, lineStop, false);
+        if (methodEnd == offset || targetStart == targetEnd
+                || versionStart == versionEnd || versionEnd != lineStop) {
+            throw new InvalidHttpFormattingException(
+                    InvalidHttpFormattingException.INVALID_FIRST_LINE
+                            + " was given: " + string(bytes, offset, lineStop));
+        }
+        if (matches(bytes, offset, methodEnd, GET)) {
+            method = Method.GET;
+        } else if (matches(bytes, offset, methodEnd, POST)) {
+            method = Method.POST;
         } else {
-            fullURI = new String(absoluteURI);
-        }
-        Pattern queryP = Pattern.compile(QUERYREGEX);
-        Matcher queryM = queryP.matcher(fullURI);
-        queryM.find();
-        URI = URLDecoder.decode(queryM.group(1));
-        String queryString = queryM.group(2);
-        queryParams = new HashMap<String, String>();
-        if (queryString != null) {
-            addQueryParams(queryString);
-        }
-
-        // populate headers
-        headers = new HashMap<String, String>();
-        String line = inReader.readLine();
-        while (line != null && !line.isEmpty()) {
-            String[] lineSplit = line.split(":");
-            if (lineSplit.length != 2) {
+            throw new InvalidHttpFormattingException("Unsupported method: "
+                    + string(bytes, offset, methodEnd));
+        }
+
+        // an absolute URI is reduced to its path
+        int pathStart = targetStart;
+        int schemeLength = startsWith(bytes, targetStart, targetEnd, HTTP) ? HTTP.length
+                : startsWith(bytes, targetStart, targetEnd, HTTPS) ? HTTPS.length : 0;
+        if (schemeLength > 0) {
+            int slash = indexOf(bytes, targetStart + schemeLength + 1, targetEnd, '/');
+            if (slash < targetEnd) {
+                pathStart = slash;
+            }
+        }
+        int question = indexOf(bytes, pathStart, targetEnd, '?');
+        if (question < targetEnd - 1) {
+            validateParams(bytes, question + 1, targetEnd);
+            queryStart = question + 1 - offset;
+        }
+        this.targetStart = targetStart - offset;
+        this.targetEnd = targetEnd - offset;
+        this.pathStart = pathStart - offset;
+        this.pathEnd = question - offset;
+        this.versionStart = versionStart - offset;
+        this.versionEnd = versionEnd - offset;
+
+        for (int lineStart = lineEnd + 1; lineStart < headEnd; lineStart = lineEnd + 1) {
+            lineEnd = indexOf(bytes, lineStart, headEnd, '\n');
+            lineStop = trimCR(bytes, lineStart, lineEnd);
+            if (lineStop == lineStart) {
+                break;
+            }
+            int colon = indexOf(bytes, lineStart, lineStop, ':');
+            if (colon == lineStart || colon == lineStop) {
                 throw new InvalidHttpFormattingException(
-                        "Header is malformatted. Line: " + line);
+                        "Header is malformatted. Line: "
+                                + string(bytes, lineStart, lineStop));
+            }
+            addHeader(trimStart(bytes, lineStart, colon) - offset,
+                    trimEnd(bytes, lineStart, colon) - offset,
+                    trimStart(bytes, colon + 1, lineStop) - offset,
+                    trimEnd(bytes, colon + 1, lineStop) - offset);
+        }
+        bodyStart = headEnd - offset;
+
+        int header = findHeader(bytes, offset, CONTENT_LENGTH);
+        if (header >= 0) {
+            contentLength = parseContentLength(bytes, offset + headers[header + 2],
+                    offset + headers[header + 3]);
+        }
+    }
+
+    /**
+     * Number of body bytes that follow the head, per Content-Length.
+     */
+    int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Hands over the whole request, starting with the request line passed to
+     * {@link #parseHead(byte[], int, int)} and ending with the last byte of
+     * the body.
+     */
+    void setBytes(byte[] bytes) throws InvalidHttpFormattingException {
+        raw = bytes;
+        if (hasFormBody()) {
+            validateParams(raw, bodyStart, bodyStart + contentLength);
+        }
+    }
+
+    /**
+     * Whether the body holds form params. Every POST body does, except one
+     * sent as JSON.
+     */
+    private boolean hasFormBody() {
+        return method == Method.POST && contentLength > 0 && !hasContentType(JSON_MEDIA_TYPE);
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headers.length == headerCount * 4) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = headerCount++ * 4;
+        headers[i] = nameStart;
+        headers[i + 1] = nameEnd;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+    }
+
+    /**
+     * Returns the index into headers of the last header with the given name,
+     * ignoring case, or -1.
+     */
+    private int findHeader(byte[] bytes, int offset, byte[] name) {
+        for (int i = (headerCount - 1) * 4; i >= 0; i -= 4) {
+            if (equalsIgnoreCase(bytes, offset + headers[i], offset + headers[i + 1], name)) {
+                return i;
             }
-            String key = lineSplit[0].trim();
-            String value = lineSplit[1].trim();
-            headers.put(key, value);
-            line = inReader.readLine();
         }
+        return -1;
+    }
 
-        // process body
-        if (line.isEmpty() && headers.get("Content-Length") != null) {
-            int contentLength;
-            try {
-                contentLength = Integer.parseInt(headers.get("Content-Length"));
-            } catch (NumberFormatException e) {
-                throw new InvalidHttpFormattingException("Content length must be a number. Was: "
-                        +headers.get("Content-Length"));
+    private int findHeader(String name) {
+        for (int i = (headerCount - 1) * 4; i >= 0; i -= 4) {
+            if (headers[i + 1] - headers[i] == name.length()
+                    && equalsIgnoreCase(raw, headers[i], name)) {
+                return i;
             }
-            if (contentLength <= 0)
-                return;
-            char[] bodyBuffer = new char[contentLength];
-            inReader.read(bodyBuffer, 0, contentLength);
-            String bodyAsString = URLDecoder.decode(String
-                    .copyValueOf(bodyBuffer));
-            if (bodyAsString != null && method.equals(Method.POST)) {
-                addQueryParams(bodyAsString);
+        }
+        return -1;
+    }
+
+    private static int parseContentLength(byte[] bytes, int start, int end)
+            throws InvalidHttpFormattingException {
+        long length = 0;
+        for (int i = start; i < end && length <= Integer.MAX_VALUE; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                length = -1;
+                break;
             }
+            length = length * 10 + digit;
         }
+        if (start == end || length < 0 || length > Integer.MAX_VALUE) {
+            throw new InvalidHttpFormattingException("Content length must be a number. Was: "
+                    + string(bytes, start, end));
+        }
+        return (int) length;
     }
-    
-    private void addQueryParams(String queryString)
+
+    /**
+     * Checks that bytes[start, end) is a list of key=value pairs separated by
+     * '&', each with a non-empty value and exactly one '='.
+     */
+    private static void validateParams(byte[] bytes, int start, int end)
             throws InvalidHttpFormattingException {
-        String[] queries = queryString.split("&");
-        for (String query : queries) {
-            String[] querySplit = query.split("=");
-            if (querySplit.length != 2) {
+        int pairStart = start;
+        while (pairStart < end) {
+            int pairEnd = indexOf(bytes, pairStart, end, '&');
+            int equals = indexOf(bytes, pairStart, pairEnd, '=');
+            if (equals >= pairEnd - 1
+                    || indexOf(bytes, equals + 1, pairEnd, '=') < pairEnd) {
                 throw new InvalidHttpFormattingException(
-                        "HTTP query params are malformatted. Line: " + query);
+                        "HTTP query params are malformatted. Line: "
+                                + string(bytes, pairStart, pairEnd));
             }
-            String key = query.split("=")[0];
-            String value = query.split("=")[1];
-            queryParams.put(URLDecoder.decode(key), URLDecoder.decode(value));
+            pairStart = pairEnd + 1;
         }
     }
-    
+
+    /**
+     * Decodes the query string and, for a POST, the form body into
+     * queryParams. A param in the body overrides one in the query string,
+     * and a param in the path overrides both.
+     */
+    private Map<String, String> params() {
+        if (queryParams == null) {
+            Map<String, String> params = new HashMap<String, String>();
+            if (queryStart >= 0) {
+                addParams(params, queryStart, targetEnd);
+            }
+            if (hasFormBody()) {
+                addParams(params, bodyStart, bodyStart + contentLength);
+            }
+            if (pathParams != null) {
+                params.putAll(pathParams);
+            }
+            queryParams = params;
+        }
+        return queryParams;
+    }
+
+    private void addParamValues(List<String> values, String key, int start, int end) {
+        for (int pairStart = start; pairStart < end;) {
+            int pairEnd = indexOf(raw, pairStart, end, '&');
+            int equals = indexOf(raw, pairStart, pairEnd, '=');
+            if (key.equals(URLDecoder.decode(raw, pairStart, equals, true))) {
+                values.add(URLDecoder.decode(raw, equals + 1, pairEnd, true));
+            }
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    private void addParams(Map<String, String> params, int start, int end) {
+        // validated when the request was parsed
+        for (int pairStart = start; pairStart < end;) {
+            int pairEnd = indexOf(raw, pairStart, end, '&');
+            int equals = indexOf(raw, pairStart, pairEnd, '=');
+            params.put(URLDecoder.decode(raw, pairStart, equals, true),
+                    URLDecoder.decode(raw, equals + 1, pairEnd, true));
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String string(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of the first b in bytes[start, end), or end.
+     */
+    private static int indexOf(byte[] bytes, int start, int end, char b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Returns the index of the first byte in bytes[start, end) that is
+     * (whitespace == false) or is not (whitespace == true) whitespace, or end.
+     */
+    private static int skip(byte[] bytes, int start, int end, boolean whitespace) {
+        int i = start;
+        while (i < end && isWhitespace(bytes[i]) == whitespace) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimStart(byte[] bytes, int start, int end) {
+        return skip(bytes, start, end, true);
+    }
+
+    private static int trimEnd(byte[] bytes, int start, int end) {
+        while (end > start && isWhitespace(bytes[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int trimCR(byte[] bytes, int start, int end) {
+        return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private static boolean matches(byte[] bytes, int start, int end, byte[] other) {
+        return end - start == other.length && startsWith(bytes, start, end, other);
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] bytes, int start, int end, byte[] other) {
+        if (end - start != other.length) {
+            return false;
+        }
+        for (int i = 0; i < other.length; i++) {
+            if (toLowerCase(bytes[start + i]) != toLowerCase(other[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] bytes, int start, String other) {
+        for (int i = 0; i < other.length(); i++) {
+            char c = other.charAt(i);
+            if (c > 127 || toLowerCase(bytes[start + i]) != toLowerCase((byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
     /**
-     * Get the header value given a key. If the key doesn't exist, returns null.
+     * Get the header value given a key, ignoring case. If the key doesn't
+     * exist, returns null.
      */
     public String getHeaderValue(String key) {
-        return headers.get(key);
+        int header = findHeader(key);
+        return header < 0 ? null : string(raw, headers[header + 2], headers[header + 3]);
+    }
+
+    /**
+     * Whether the Content-Type header names the given media type, e.g.
+     * "application/json", ignoring case and parameters such as charset.
+     */
+    public boolean hasContentType(String mediaType) {
+        String contentType = getHeaderValue("Content-Type");
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        return contentType.trim().equalsIgnoreCase(mediaType);
+    }
+
+    /**
+     * Whether the If-None-Match header lists the given entity tag, or is "*",
+     * meaning the client already has the representation it identifies.
+     * Compares weakly, as RFC 7232 asks for If-None-Match, so W/"1" matches
+     * "1".
+     */
+    public boolean matchesIfNoneMatch(String etag) {
+        String ifNoneMatch = getHeaderValue("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = stripWeak(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || stripWeak(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
     }
 
     public Method getMethod() {
@@ -155,16 +530,58 @@ public class HTTPRequest {
      * @return a String represents the URI path
      */
     public String getURI() {
+        if (URI == null) {
+            URI = URLDecoder.decode(raw, pathStart, pathEnd, false);
+        }
         return URI;
     }
     
+    /**
+     * Sets the params found in the path by a {@link Router}, which are then
+     * read like any other param.
+     */
+    public void setPathParams(Map<String, String> pathParams) {
+        this.pathParams = pathParams;
+        // merged on next use
+        queryParams = null;
+    }
+
     /**
      * Get the param value given a key. If the key doesn't exist, returns null.
      */
     public String getParamValue(String key) {
-        return queryParams.get(key);
+        return params().get(key);
     }
     
+    /**
+     * Get all params of the request, by key, as {@link #getParamValue(String)}
+     * sees them.
+     */
+    public Map<String, String> getParams() {
+        return Collections.unmodifiableMap(params());
+    }
+
+    /**
+     * Get every value of a param that is repeated, as in "id=1&id=2", in the
+     * order they were sent: the query string first, then the form body. A
+     * param in the path is its only value. If the key doesn't exist, returns
+     * an empty list.
+     */
+    public List<String> getParamValues(String key) {
+        List<String> values = new ArrayList<String>();
+        if (pathParams != null && pathParams.containsKey(key)) {
+            values.add(pathParams.get(key));
+            return values;
+        }
+        if (queryStart >= 0) {
+            addParamValues(values, key, queryStart, targetEnd);
+        }
+        if (hasFormBody()) {
+            addParamValues(values, key, bodyStart, bodyStart + contentLength);
+        }
+        return values;
+    }
+
     /**
      * Returns value for long param associated with given key.
      * @throws InvalidHttpParametersException if param does not exist or is not a number
@@ -193,11 +610,11 @@ public class HTTPRequest {
      * exists but is not a number
      */
     private Long getLongParam(String key, Long defaultValue, boolean isRequired) throws InvalidHttpParametersException {
-        if (queryParams.get(key) == null) {
+        if (params().get(key) == null) {
             if (!isRequired) return defaultValue;
             throw new InvalidHttpParametersException(key + " is a required parameter");
         }
-        String strForm = queryParams.get(key);
+        String strForm = params().get(key);
         Long val;
         try {
             val = Long.parseLong(strForm);
@@ -213,15 +630,62 @@ public class HTTPRequest {
      * @throws InvalidHttpParametersException if param does not exist
      */
     public String getStringRequiredParam(String key) throws InvalidHttpParametersException {
-        if (queryParams.get(key) == null) throw new InvalidHttpParametersException(key + " is a required parameter");
-        return queryParams.get(key);
+        if (params().get(key) == null) throw new InvalidHttpParametersException(key + " is a required parameter");
+        return params().get(key);
     }
 
     public String getAbsoluteURI() {
-        return absoluteURI;
+        return string(raw, targetStart, targetEnd);
+    }
+
+    /**
+     * Get the HTTP version of the request line, e.g. "HTTP/1.1".
+     */
+    public String getVersion() {
+        return string(raw, versionStart, versionEnd);
+    }
+
+    /**
+     * Number of bytes in the body.
+     */
+    public int getBodyLength() {
+        return contentLength;
+    }
+
+    /**
+     * Get a copy of the body bytes.
+     */
+    public byte[] getBody() {
+        return Arrays.copyOfRange(raw, bodyStart, bodyStart + contentLength);
+    }
+
+    /**
+     * Get the body bytes in place, without a copy, as a buffer from position
+     * 0. The buffer keeps its backing array so that readers such as
+     * JSONReader can decode strings straight out of it; its bytes must not be
+     * changed.
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(raw, bodyStart, contentLength).slice();
+    }
+
+    /**
+     * Whether the client wants to keep the connection open after this
+     * request. HTTP/1.1 connections are persistent unless the client sends
+     * "Connection: close"; HTTP/1.0 connections only if the client sends
+     * "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        int header = findHeader(raw, 0, CONNECTION);
+        if (equalsIgnoreCase(raw, versionStart, versionEnd, HTTP_1_0)) {
+            return header >= 0 && equalsIgnoreCase(raw, headers[header + 2],
+                    headers[header + 3], KEEP_ALIVE);
+        }
+        return header < 0 || !equalsIgnoreCase(raw, headers[header + 2],
+                headers[header + 3], CLOSE);
     }
     
-    public class InvalidHttpFormattingException extends Exception {
+    public static class InvalidHttpFormattingException extends Exception {
         private static final long serialVersionUID = 1L;
         public static final String INVALID_FIRST_LINE = "First line must have HTTP Method, URI, and Version.";
 
@@ -230,4 +694,22 @@ public class HTTPRequest {
         }
     }
 
+    /**
+     * A request that broke one of the server's limits: it arrived too slowly
+     * or is too large. Answered with its own status code instead of 400.
+     */
+    public static class RequestLimitException extends InvalidHttpFormattingException {
+        private static final long serialVersionUID = 1L;
+        private final HTTPResponse.StatusCode statusCode;
+
+        public RequestLimitException(HTTPResponse.StatusCode statusCode, String msg) {
+            super(msg);
+            this.statusCode = statusCode;
+        }
+
+        public HTTPResponse.StatusCode getStatusCode() {
+            return statusCode;
+        }
+    }
+
 }
@@ -0,0 +1,299 @@
+package org.general.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.general.http.HTTPRequest.InvalidHttpFormattingException;
+import org.general.http.HTTPRequest.RequestLimitException;
+import org.general.http.HTTPResponse.StatusCode;
+
+/**
+ * Cuts the bytes of one connection into {@link HTTPRequest}s. Bytes are added
+ * as they arrive, either pushed from a channel with
+ * {@link #append(ByteBuffer)} or pulled from a stream with
+ * {@link #readFrom(InputStream)}, and {@link #next()} returns each request
+ * once all of its bytes are there.
+ *
+ * Looking for the end of the headers resumes where the last call stopped, and
+ * a request's head is parsed once even if its body arrives in pieces. Each
+ * request gets a copy of exactly its own bytes, so the buffer is reused for
+ * the bytes that follow it.
+ *
+ * A parser created from a {@link ServerConfig} enforces its limits on the
+ * request line, the header lines and the body, and keeps the deadlines that a
+ * request's head and body must arrive by.
+ *
+ * Not thread-safe; owned by the thread serving the connection.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class HTTPRequestParser {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private final int maxLineLength;
+    private final int maxHeaderCount;
+    private final int maxBodySize;
+    private final int headerTimeout;
+    private final int bodyTimeout;
+
+    // buffered bytes are buffer[start, end). Null while empty and released.
+    private byte[] buffer;
+    private int start;
+    private int end;
+    // where to resume looking for the end of the headers
+    private int scanFrom;
+    // start of the line being scanned, and number of lines before it
+    private int lineStart;
+    private int lineCount;
+    // a request whose head has been parsed but whose body is incomplete
+    private HTTPRequest pending;
+    private int pendingLength;
+    // time the buffered request must have arrived by, 0 if none is buffered
+    private long deadline;
+    private boolean deadlineForBody;
+
+    /**
+     * Creates a parser without limits.
+     */
+    public HTTPRequestParser() {
+        this(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a parser enforcing the limits and timeouts of the given config.
+     */
+    HTTPRequestParser(ServerConfig config) {
+        this(config.getMaxRequestLineLength(), config.getMaxHeaderCount(),
+                config.getMaxBodySize(), config.getHeaderTimeout(), config.getBodyTimeout());
+    }
+
+    private HTTPRequestParser(int maxLineLength, int maxHeaderCount, int maxBodySize,
+            int headerTimeout, int bodyTimeout) {
+        this.maxLineLength = maxLineLength;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxBodySize = maxBodySize;
+        this.headerTimeout = headerTimeout;
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    /**
+     * Adds the remaining bytes of the given buffer.
+     */
+    public void append(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        ensureCapacity(count);
+        bytes.get(buffer, end, count);
+        end += count;
+    }
+
+    /**
+     * Reads whatever the stream has to offer, blocking until at least one
+     * byte arrives.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        ensureCapacity(1);
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count > 0) {
+            end += count;
+        }
+        return count;
+    }
+
+    /**
+     * Whether bytes of a request that {@link #next()} has not returned yet
+     * are buffered.
+     */
+    public boolean hasBufferedBytes() {
+        return end > start;
+    }
+
+    /**
+     * Removes and returns the bytes buffered after the last request, for a
+     * connection that switches to another protocol.
+     */
+    byte[] takeBufferedBytes() {
+        byte[] bytes = buffer == null ? new byte[0] : Arrays.copyOfRange(buffer, start, end);
+        drop();
+        return bytes;
+    }
+
+    /**
+     * Frees the buffer if nothing is buffered, so that an idle connection
+     * holds no buffer space.
+     */
+    public void release() {
+        if (!hasBufferedBytes()) {
+            buffer = null;
+            start = end = scanFrom = lineStart = 0;
+        }
+    }
+
+    /**
+     * Returns the time, in milliseconds, by which the request whose first
+     * bytes are buffered must have fully arrived, or 0 if no bytes of a
+     * request are buffered. The clock for the head starts the first time this
+     * is called after the first bytes arrived, the clock for the body once the
+     * head is parsed, so transports call it after every read.
+     */
+    public long getReadDeadline(long now) {
+        if (!hasBufferedBytes()) {
+            deadline = 0;
+            return 0;
+        }
+        boolean body = pending != null;
+        if (deadline == 0 || body != deadlineForBody) {
+            deadline = now + (body ? bodyTimeout : headerTimeout);
+            deadlineForBody = body;
+        }
+        return deadline;
+    }
+
+    /**
+     * Drops everything buffered and returns the error to answer a client that
+     * missed the deadline from {@link #getReadDeadline(long)} with.
+     */
+    public RequestLimitException timedOut() {
+        String part = pending != null ? "body" : "headers";
+        drop();
+        return new RequestLimitException(StatusCode.REQUEST_TIMEOUT,
+                "Request " + part + " did not arrive in time");
+    }
+
+    /**
+     * Returns the first buffered request and removes its bytes, or null if
+     * it has not fully arrived yet.
+     *
+     * @throws InvalidHttpFormattingException
+     *             if the request is malformed. The start of the next request
+     *             is unknown then, so everything buffered is dropped.
+     */
+    public HTTPRequest next() throws InvalidHttpFormattingException {
+        if (pending == null) {
+            // empty lines between requests are allowed
+            while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+                start++;
+            }
+            HTTPRequest request = new HTTPRequest();
+            int headEnd;
+            try {
+                headEnd = findHeadEnd();
+                if (headEnd < 0) {
+                    return null;
+                }
+                request.parseHead(buffer, start, headEnd);
+                if (request.getContentLength() > maxBodySize) {
+                    throw new RequestLimitException(StatusCode.PAYLOAD_TOO_LARGE,
+                            "Request body is larger than " + maxBodySize + " bytes");
+                }
+            } catch (InvalidHttpFormattingException e) {
+                drop();
+                throw e;
+            }
+            pending = request;
+            pendingLength = headEnd - start + request.getContentLength();
+        }
+        if (end - start < pendingLength) {
+            return null;
+        }
+        HTTPRequest request = pending;
+        pending = null;
+        byte[] bytes = Arrays.copyOfRange(buffer, start, start + pendingLength);
+        start += pendingLength;
+        if (start == end) {
+            start = end = 0;
+        }
+        scanFrom = lineStart = start;
+        lineCount = 0;
+        deadline = 0;
+        try {
+            request.setBytes(bytes);
+        } catch (InvalidHttpFormattingException e) {
+            drop();
+            throw e;
+        }
+        return request;
+    }
+
+    /**
+     * Drops everything buffered, since the start of the next request is
+     * unknown after a bad one.
+     */
+    private void drop() {
+        start = end = scanFrom = lineStart = lineCount = 0;
+        pending = null;
+        deadline = 0;
+    }
+
+    /**
+     * Returns the index just past the empty line that ends the headers of the
+     * first buffered request, or -1 if it has not arrived yet.
+     *
+     * @throws RequestLimitException
+     *             if a line is too long or there are too many header lines
+     */
+    private int findHeadEnd() throws RequestLimitException {
+        scanFrom = Math.max(scanFrom, start);
+        lineStart = Math.max(lineStart, start);
+        for (int i = scanFrom; i < end; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            int length = i - lineStart;
+            if (length == 0 || length == 1 && buffer[lineStart] == '\r') {
+                return i + 1;
+            }
+            checkLine(length);
+            lineStart = i + 1;
+            // the request line is not a header
+            if (++lineCount - 1 > maxHeaderCount) {
+                throw new RequestLimitException(StatusCode.HEADER_FIELDS_TOO_LARGE,
+                        "Request has more than " + maxHeaderCount + " headers");
+            }
+        }
+        scanFrom = end;
+        checkLine(end - lineStart);
+        return -1;
+    }
+
+    private void checkLine(int length) throws RequestLimitException {
+        if (length <= maxLineLength) {
+            return;
+        }
+        if (lineCount == 0) {
+            throw new RequestLimitException(StatusCode.URI_TOO_LONG,
+                    "Request line is longer than " + maxLineLength + " bytes");
+        }
+        throw new RequestLimitException(StatusCode.HEADER_FIELDS_TOO_LARGE,
+                "Header line is longer than " + maxLineLength + " bytes");
+    }
+
+    /**
+     * Makes room for count more bytes after end, moving the buffered bytes to
+     * the front of the buffer or growing it.
+     */
+    private void ensureCapacity(int count) {
+        if (buffer == null) {
+            buffer = new byte[Math.max(count, INITIAL_BUFFER_SIZE)];
+            return;
+        }
+        if (buffer.length - end >= count) {
+            return;
+        }
+        int buffered = end - start;
+        if (buffer.length - buffered < count) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, buffered + count));
+        }
+        System.arraycopy(buffer, start, buffer, 0, buffered);
+        scanFrom -= start;
+        lineStart -= start;
+        end = buffered;
+        start = 0;
+    }
+}
@@ -1,33 +1,59 @@
 package org.general.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.general.util.Logger;
 
 /**
  * A class that represents an HTTP response.
  * 
  * User can use this class to instantiate a HTTPResponse, send
  *
+ * The response is written as bytes: constant header lines are encoded once,
+ * the Date header is formatted at most once per second, Content-Length is the
+ * number of UTF-8 bytes of the body and head and body leave in one write.
+ *
+ * The server may ask for bodies to be compressed; see
+ * {@link #setCompression(Compression, int, int)}.
+ *
  * @author Guoxing Li
  *
  */
 public class HTTPResponse {
 
     public enum StatusCode {
-        OK(200, "OK"), BAD_REQUEST(400, "Bad Request"), NOT_FOUND(404,
-                "Not Found"), SERVER_ERROR(500, "Internal Server Error");
+        OK(200, "OK"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), NOT_FOUND(404,
+                "Not Found"), REQUEST_TIMEOUT(408, "Request Timeout"),
+        PAYLOAD_TOO_LARGE(413, "Payload Too Large"), URI_TOO_LONG(414, "URI Too Long"),
+        HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+        SERVER_ERROR(500, "Internal Server Error"),
+        SERVICE_UNAVAILABLE(503, "Service Unavailable");
 
         private int num;
         private String message;
+        // " 200 OK\r\n", the status line after the version
+        private final byte[] statusLine;
 
         private StatusCode(int num, String message) {
             this.num = num;
             this.message = message;
+            this.statusLine = (" " + num + " " + message + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
         }
 
         public int getNum() {
@@ -43,11 +69,54 @@ public class HTTPResponse {
     private static final String HEADER_SERVER_KEY = "Server";
     private static final String HEADER_CONTENT_TYPE_KEY = "Content-Type";
     private static final String HEADER_CONTENT_LENGTH_KEY = "Content-Length";
+    private static final String HEADER_CONNECTION_KEY = "Connection";
+    private static final String HEADER_CONTENT_ENCODING_KEY = "Content-Encoding";
 
-    private PrintWriter out;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] CONTENT_LENGTH = ascii(HEADER_CONTENT_LENGTH_KEY + ": ");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii(HEADER_CONNECTION_KEY
+            + ": keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii(HEADER_CONNECTION_KEY
+            + ": close\r\n");
+    // caches must not give a compressed body to a client that can't read it
+    private static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii(
+            "Transfer-Encoding: chunked\r\n");
+    // Header lines whose values rarely change, e.g. "Server: Tweeter/1.0",
+    // encoded once
+    private static final int MAX_ENCODED_LINES = 64;
+    private static final byte[] NO_BODY = new byte[0];
+    private static final Map<String, byte[]> ENCODED_LINES = new ConcurrentHashMap<>();
+    // Below this size head and body are copied into one array, so that a
+    // response leaves in one write
+    private static final int COALESCE_LIMIT = 8 * 1024;
+    // A streamed body that outgrows this many bytes is sent chunked
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+    private OutputStream out;
+    private byte[] serverLine;
+    private byte[] contentTypeLine;
+    // null to use the current time
+    private byte[] dateLine;
+    // headers other than the ones above, in the order they were set
     private Map<String, String> headers;
     private String version;
     private boolean sent; // whether this response has been sent
+    private boolean keepAlive; // whether the connection stays open after send
+    // no compression if compressionLevel is 0
+    private Compression compression;
+    private int compressionThreshold;
+    private int compressionLevel;
+    private byte[] contentEncodingLine;
+    // set by send when there is no OutputStream
+    private byte[] head;
+    private byte[] body;
+    // where a chunked body goes when there is no OutputStream. If null, it is
+    // kept in memory like any other body.
+    private OutputStream streamTarget;
+    private boolean chunkedAllowed = true;
+    private boolean streamed; // whether the body was sent chunked
 
     /**
      * Constructor for HTTPResponse.
@@ -58,16 +127,36 @@ public class HTTPResponse {
      *            The server name that will appear in header
      */
     public HTTPResponse(OutputStream out, String serverName) {
-        this.out = new PrintWriter(out);
-        headers = new HashMap<String, String>();
-        headers.put(HEADER_SERVER_KEY, serverName);
+        this.out = out;
+        serverLine = encodedLine(HEADER_SERVER_KEY, serverName);
         sent = false;
     }
-    
-    public void setDefaults(String version, String contentType, DateFormat dateFormat,
-            TimeZone timeZone, Date date) {
+
+    /**
+     * Constructor for a response that is kept in memory when sent, so the
+     * transport can write it later with {@link #toByteBuffers()} or
+     * {@link #writeTo(OutputStream)}.
+     */
+    HTTPResponse(String serverName) {
+        this(null, serverName);
+    }
+
+    /**
+     * Sets the version and content type. The Date header is the time of
+     * sending.
+     */
+    public void setDefaults(String version, String contentType) {
         setVersion(version);
         setHeader(HEADER_CONTENT_TYPE_KEY, contentType);
+    }
+
+    /**
+     * Sets the version and content type, and a Date header of the given date
+     * formatted with dateFormat in timeZone.
+     */
+    public void setDefaults(String version, String contentType, DateFormat dateFormat,
+            TimeZone timeZone, Date date) {
+        setDefaults(version, contentType);
         dateFormat.setTimeZone(timeZone);
         setHeader(HEADER_DATE_KEY, dateFormat.format(date));
     }
@@ -77,7 +166,77 @@ public class HTTPResponse {
     }
 
     public void setHeader(String key, String value) {
-        headers.put(key, value);
+        if (key.equalsIgnoreCase(HEADER_SERVER_KEY)) {
+            serverLine = encodedLine(HEADER_SERVER_KEY, value);
+        } else if (key.equalsIgnoreCase(HEADER_CONTENT_TYPE_KEY)) {
+            contentTypeLine = encodedLine(HEADER_CONTENT_TYPE_KEY, value);
+        } else if (key.equalsIgnoreCase(HEADER_DATE_KEY)) {
+            dateLine = line(HEADER_DATE_KEY, value);
+        } else if (key.equalsIgnoreCase(HEADER_CONTENT_LENGTH_KEY)
+                || key.equalsIgnoreCase(HEADER_CONNECTION_KEY)) {
+            // always set by send
+            return;
+        } else {
+            if (headers == null) {
+                headers = new LinkedHashMap<String, String>();
+            }
+            headers.put(key, value);
+        }
+    }
+
+    /**
+     * Sets whether the connection stays open after this response is sent.
+     * If true, send flushes the OutputStream but leaves it open for the next
+     * response. Defaults to false, which closes the OutputStream after
+     * sending.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Compresses bodies of at least threshold bytes at the given level with
+     * the given coding, or with none if it is null.
+     */
+    void setCompression(Compression compression, int threshold, int level) {
+        this.compression = compression;
+        this.compressionThreshold = threshold;
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Where a response without an OutputStream writes a chunked body as it is
+     * produced. The transport sets this to avoid holding the body in memory.
+     */
+    void setStreamTarget(OutputStream streamTarget) {
+        this.streamTarget = streamTarget;
+    }
+
+    /**
+     * Whether the client understands chunked bodies. If not, a streamed body
+     * is held in memory until it is complete.
+     */
+    void setChunkedAllowed(boolean chunkedAllowed) {
+        this.chunkedAllowed = chunkedAllowed;
+    }
+
+    /**
+     * Whether the body was written chunked through the stream target rather
+     * than kept in memory.
+     */
+    boolean isStreamed() {
+        return streamed && out == null && streamTarget != null;
+    }
+
+    /**
+     * Whether send has been called successfully on this response.
+     */
+    public boolean isSent() {
+        return sent;
     }
 
     /**
@@ -86,6 +245,15 @@ public class HTTPResponse {
      * @return Whether the send is success
      */
     public boolean send(StatusCode code, String body) {
+        return send(code, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send this HTTPResponse with the specified StatusCode and body bytes.
+     * 
+     * @return Whether the send is success
+     */
+    public synchronized boolean send(StatusCode code, byte[] body) {
         if (sent) {
             // Prevents re-sending of the same response
             return false;
@@ -95,26 +263,336 @@ public class HTTPResponse {
             throw new NullPointerException("HTTP version must be set "
                     + "before sending");
         }
-        if (body == null) {
-            body = "";
-        }
         if (code == null) {
             throw new NullPointerException("HTTP Status Code cannot be null");
         }
+        if (body == null || isBodyless(code)) {
+            body = NO_BODY;
+        }
 
-        // set content-length
-        headers.put(HEADER_CONTENT_LENGTH_KEY, Integer.toString(body.length()));
-
-        // write to stream
-        out.println(version + " " + Integer.toString(code.getNum()) + " "
-                + code.getMessage());
-        for (String key : headers.keySet()) {
-            out.println(key + ": " + headers.get(key));
+        boolean varies = !isBodyless(code) && compressionLevel > 0
+                && body.length >= compressionThreshold
+                && (headers == null || !headers.containsKey(HEADER_CONTENT_ENCODING_KEY));
+        if (varies && compression != null) {
+            body = compression.compress(body, compressionLevel);
+            contentEncodingLine = encodedLine(HEADER_CONTENT_ENCODING_KEY,
+                    compression.getToken());
+        }
+        byte[] head = encodeHead(code, body.length, varies);
+        if (out == null) {
+            this.head = head;
+            this.body = body;
+            sent = true;
+            return true;
+        }
+        try {
+            write(out, head, body);
+            if (keepAlive) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        } catch (IOException e) {
+            // the client is gone; the connection is closed by the transport
+            Logger.log("IOException when sending response: " + e.getMessage());
+            return false;
         }
-        out.println();
-        out.println(body);
-        out.close();
         sent = true;
         return true;
     }
+
+    /**
+     * Sends the given response with Connection: close, unless this response
+     * has been sent or has started streaming. For the server answering in
+     * place of a handler that failed or timed out and may still be running.
+     *
+     * @return whether the response was sent
+     */
+    synchronized boolean sendInstead(StatusCode code, String body) {
+        if (sent || streamed) {
+            return false;
+        }
+        // the handler's headers, e.g. an ETag, describe another response
+        headers = null;
+        keepAlive = false;
+        return send(code, body);
+    }
+
+    /**
+     * Starts a response whose body is written to the returned stream, for
+     * bodies that are too large to build in memory first. The response is
+     * sent when the stream is closed.
+     *
+     * A body that fits in a buffer of {@value #STREAM_BUFFER_SIZE} bytes is
+     * sent with a Content-Length, just like {@link #send(StatusCode, byte[])}.
+     * Once a body outgrows the buffer, the head is sent with
+     * "Transfer-Encoding: chunked" and the body follows one chunk per buffer,
+     * compressed if the client accepts it. Memory use stays bounded and the
+     * client starts receiving before the body is complete.
+     *
+     * If the stream throws an IOException the connection must be closed, since
+     * part of the response may have been sent.
+     */
+    public OutputStream stream(StatusCode code) {
+        if (this.version == null) {
+            throw new NullPointerException("HTTP version must be set "
+                    + "before sending");
+        }
+        if (code == null) {
+            throw new NullPointerException("HTTP Status Code cannot be null");
+        }
+        return new BodyStream(code);
+    }
+
+    /**
+     * The head and body of a response that was sent without an OutputStream,
+     * for a gathering write to a channel.
+     */
+    ByteBuffer[] toByteBuffers() {
+        if (body.length == 0) {
+            // nothing follows the head, as for a 304
+            return new ByteBuffer[] { ByteBuffer.wrap(head) };
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(head), ByteBuffer.wrap(body) };
+    }
+
+    /**
+     * Writes a response that was sent without an OutputStream to out.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        // send left the body empty if the status has none
+        write(out, head, body);
+    }
+
+    /**
+     * Whether a response with this status has no body, and so no type,
+     * length or coding of one.
+     */
+    private static boolean isBodyless(StatusCode code) {
+        return code == StatusCode.NOT_MODIFIED;
+    }
+
+    private static void write(OutputStream out, byte[] head, byte[] body)
+            throws IOException {
+        if (head.length + body.length <= COALESCE_LIMIT) {
+            byte[] whole = Arrays.copyOf(head, head.length + body.length);
+            System.arraycopy(body, 0, whole, head.length, body.length);
+            out.write(whole);
+        } else {
+            out.write(head);
+            out.write(body);
+        }
+    }
+
+    /**
+     * Status line and headers, each ending with CRLF, and the empty line. A
+     * negative contentLength means the body is chunked.
+     */
+    private byte[] encodeHead(StatusCode code, int contentLength, boolean varies) {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        byte[] version = this.version.equals("HTTP/1.1") ? HTTP_1_1 : ascii(this.version);
+        head.write(version, 0, version.length);
+        head.write(code.statusLine, 0, code.statusLine.length);
+        boolean bodyless = isBodyless(code);
+        write(head, serverLine);
+        if (!bodyless) {
+            write(head, contentTypeLine);
+        }
+        write(head, dateLine != null ? dateLine : DateLine.now());
+        if (!bodyless) {
+            write(head, contentEncodingLine);
+            if (varies) {
+                write(head, VARY_ACCEPT_ENCODING);
+            }
+        }
+        if (contentLength < 0) {
+            write(head, TRANSFER_ENCODING_CHUNKED);
+        } else if (!bodyless) {
+            write(head, CONTENT_LENGTH);
+            write(head, ascii(Integer.toString(contentLength)));
+            write(head, CRLF);
+        }
+        write(head, keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                write(head, line(header.getKey(), header.getValue()));
+            }
+        }
+        write(head, CRLF);
+        return head.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream head, byte[] bytes) {
+        if (bytes != null) {
+            head.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] line(String key, String value) {
+        return (key + ": " + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the encoded header line, reusing the bytes for a line that was
+     * encoded before.
+     */
+    private static byte[] encodedLine(String key, String value) {
+        if (value == null) {
+            return null;
+        }
+        String line = key + ": " + value;
+        byte[] bytes = ENCODED_LINES.get(line);
+        if (bytes == null) {
+            bytes = line(key, value);
+            if (ENCODED_LINES.size() < MAX_ENCODED_LINES) {
+                ENCODED_LINES.put(line, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Buffers the body of {@link HTTPResponse#stream(StatusCode)} and spills to
+     * a chunked body once the buffer is full.
+     */
+    private class BodyStream extends OutputStream {
+        private final StatusCode code;
+        private byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        private int count;
+        // where the connection's bytes go once spilled
+        private OutputStream target;
+        // whether target is a buffer that becomes head once closed
+        private boolean inMemory;
+        // chunked, and maybe compressing, body stream once spilled
+        private OutputStream chunks;
+        private boolean closed;
+
+        BodyStream(StatusCode code) {
+            this.code = code;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (isBodyless(code)) {
+                // dropped by send anyway; never spill a body that can't be sent
+                return;
+            }
+            if (chunks != null) {
+                chunks.write(b, off, len);
+                return;
+            }
+            if (buffer.length - count < len) {
+                if (chunkedAllowed) {
+                    spill();
+                    chunks.write(b, off, len);
+                    return;
+                }
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        /**
+         * Sends the head and the buffered bytes, and switches to chunks.
+         */
+        private void spill() throws IOException {
+            synchronized (HTTPResponse.this) {
+                if (sent) {
+                    throw new IOException("Response already sent");
+                }
+                streamed = true;
+            }
+            boolean varies = compressionLevel > 0
+                    && (headers == null || !headers.containsKey(HEADER_CONTENT_ENCODING_KEY));
+            if (varies && compression != null) {
+                contentEncodingLine = encodedLine(HEADER_CONTENT_ENCODING_KEY,
+                        compression.getToken());
+            }
+            inMemory = out == null && streamTarget == null;
+            target = out != null ? out : streamTarget != null ? streamTarget
+                    : new ByteArrayOutputStream(STREAM_BUFFER_SIZE * 2);
+            target.write(encodeHead(code, -1, varies));
+            chunks = new ChunkedOutputStream(target);
+            if (varies && compression != null) {
+                chunks = compression.compressTo(chunks, compressionLevel);
+            }
+            chunks.write(buffer, 0, count);
+            buffer = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (chunks != null) {
+                chunks.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (chunks == null) {
+                if (!send(code, Arrays.copyOf(buffer, count))) {
+                    throw new IOException("Unable to send response");
+                }
+                return;
+            }
+            chunks.close();
+            if (inMemory) {
+                head = ((ByteArrayOutputStream) target).toByteArray();
+                body = new byte[0];
+            } else if (keepAlive) {
+                target.flush();
+            } else {
+                target.close();
+            }
+            sent = true;
+        }
+    }
+
+    /**
+     * The Date header line, formatted at most once per second.
+     */
+    private static class DateLine {
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter
+                .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                .withZone(ZoneOffset.UTC);
+
+        private static volatile DateLine current = new DateLine(0);
+
+        private final long second;
+        private final byte[] line;
+
+        private DateLine(long second) {
+            this.second = second;
+            this.line = ascii(HEADER_DATE_KEY + ": "
+                    + FORMAT.format(Instant.ofEpochSecond(second)) + "\r\n");
+        }
+
+        static byte[] now() {
+            long second = System.currentTimeMillis() / 1000;
+            DateLine date = current;
+            if (date.second != second) {
+                // racing threads format the same second; any of them wins
+                date = new DateLine(second);
+                current = date;
+            }
+            return date.line;
+        }
+    }
 }
@@ -1,17 +1,83 @@
 package org.general.http;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
 import org.general.http.HTTPRequest.InvalidHttpFormattingException;
+import org.general.http.HTTPRequest.RequestLimitException;
 import org.general.util.Logger;
+import org.general.util.WorkerPools;
 
 /**
  * A generic HTTPServer that converts sockets into HTTPRequest and HTTResponse
  * objects, and calls a specified handler to take action given these objects.
- * 
+ *
+ * Requests are handled on the executor given in the {@link ServerConfig}, so
+ * the handler may be called concurrently and must be thread-safe. See
+ * {@link ServerConfig.Transport} for how connections are served.
+ *
+ * An {@link AsyncHandler} may finish a response on another thread, e.g. once
+ * a disk read completes. With the NIO transport the executor thread moves on
+ * to other requests meanwhile. The server answers in its place if the
+ * handler fails or takes longer than the handler timeout.
+ *
+ * Connections are persistent (HTTP/1.1 keep-alive) unless the client asks to
+ * close them, they sit idle longer than the keep-alive timeout or they reach
+ * the maximum number of requests per connection.
+ *
+ * Clients may pipeline requests. GETs that arrive together are handled
+ * concurrently, other methods one at a time in arrival order, and responses
+ * are always written in request order.
+ *
+ * Response bodies of at least the configured threshold are compressed with
+ * gzip or deflate if the client accepts either.
+ *
+ * Requests are admitted through a {@link ConcurrencyLimiter}. When the server
+ * is saturated and its queue is full, requests are answered right away with
+ * 503 Service Unavailable and a Retry-After header, and the connection is
+ * closed.
+ *
+ * Clients that send a request too slowly are answered with 408 Request
+ * Timeout, requests over the size limits with 413, 414 or 431, and
+ * connections whose client stops reading responses are closed once a write
+ * has been stuck for the write timeout. See {@link ServerConfig} for the
+ * limits.
+ *
+ * Connections are accepted by {@link ServerConfig#getAcceptors()} threads
+ * on each port, either taking turns on one listening socket or, with
+ * SO_REUSEPORT, each on a socket of its own.
+ *
+ * With {@link ServerConfig#setHttp2(boolean)}, the blocking transport also
+ * serves HTTP/2 over cleartext connections, handling the streams of a
+ * connection concurrently.
+ *
+ * {@link #drain(int)} shuts the server down without cutting off requests it
+ * has already received, for restarts and deploys.
+ *
  * In charge of handling errors when parsing HTTP requests.
  *
  * @author Guoxing Li
@@ -19,63 +85,730 @@ import org.general.util.Logger;
  */
 public class HTTPServer {
 
-    private ServerSocket serverSocket;
-    private String name;
-    private int port;
+    // Version used when the server itself responds to an unparsable request
+    private static final String ERROR_RESPONSE_VERSION = "HTTP/1.1";
+    private static final String HEADER_KEEP_ALIVE_KEY = "Keep-Alive";
+    private static final String HEADER_ACCEPT_ENCODING_KEY = "Accept-Encoding";
+    private static final String HEADER_RETRY_AFTER_KEY = "Retry-After";
+    // how often the blocking transport looks for stuck writes
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1_000;
+    // how often a draining server checks whether its connections are done
+    private static final long DRAIN_POLL_MILLIS = 50;
+
+    private ServerConfig config;
+    private static final CompletableFuture<Void> HANDLED = CompletableFuture.completedFuture(null);
+
+    private AsyncHandler httpHandler;
+    // Only one of these is filled, depending on the transport
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    // threads accepting on each listening socket
+    private int acceptorsPerListener;
+    private volatile boolean accepting = true;
+    private EventLoop[] eventLoops;
+    private final ConcurrencyLimiter limiter;
+    // accepted connections of the blocking transport waiting for a thread
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    // open connections of the blocking transport, checked for stuck writes
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    // looks for stuck writes and times out handlers
+    private ScheduledThreadPoolExecutor watchdog;
+    // set once the server stops taking new requests
+    private volatile boolean draining;
+    private boolean shutDown; // guarded by this
 
     /**
-     * Will begin listening on given port for HTTP requests, parsing them from a
-     * socket and handing an HTTPReq and HTTPRes object to the given handler.
-     * 
+     * Binds to the ports given in config. Call {@link #serve()} to begin
+     * accepting HTTP requests, parsing them into an HTTPReq and HTTPRes object
+     * and handing these to the given handler.
+     *
      * @throws HttpServerException
-     *             if server can no longer accept any requests
+     *             if unable to listen on the given port
      */
-    public HTTPServer(String name, int port,
+    public HTTPServer(ServerConfig config,
             BiConsumer<HTTPRequest, HTTPResponse> httpHandler)
             throws HttpServerException {
-        this.name = name;
-        this.port = port;
-        Logger.log("Server " + name + " started on port " + port + ".");
+        this(config, (request, response) -> {
+            httpHandler.accept(request, response);
+            return HANDLED;
+        });
+    }
+
+    /**
+     * Like {@link #HTTPServer(ServerConfig, BiConsumer)}, with a handler that
+     * may finish responses asynchronously.
+     *
+     * @throws HttpServerException
+     *             if unable to listen on the given port
+     */
+    public HTTPServer(ServerConfig config, AsyncHandler httpHandler)
+            throws HttpServerException {
+        this.config = config;
+        this.httpHandler = httpHandler;
+        this.limiter = new ConcurrencyLimiter(config.getConcurrencyLimit(),
+                config.getMaxConcurrencyLimit(), config.getMaxQueuedRequests(),
+                config.getQueueTimeout());
+        boolean nio = config.getTransport() == ServerConfig.Transport.NIO;
+        if (!nio && config.getExecutor() == null) {
+            throw new IllegalArgumentException("Blocking transport requires an executor");
+        }
+        SocketOption<Boolean> reusePort = config.isReusePort() ? reusePortOption() : null;
+        if (config.isReusePort() && reusePort == null) {
+            Logger.log("SO_REUSEPORT is not available on this JDK ("
+                    + System.getProperty("java.version") + "). Acceptors share a socket.");
+        }
+        try {
+            for (int port : config.getPorts()) {
+                int listeners = reusePort != null ? config.getAcceptors() : 1;
+                for (int i = 0; i < listeners; i++) {
+                    if (!(nio ? bindChannel(port, reusePort) : bindSocket(port, reusePort))) {
+                        Logger.log("SO_REUSEPORT is not supported on port " + port
+                                + ". Acceptors share a socket.");
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly();
+            throw new HttpServerException(e.getMessage());
+        }
+        int listeners = Math.max(serverSockets.size(), serverChannels.size());
+        acceptorsPerListener = Math.max(1, config.getAcceptors() * config.getPorts().size()
+                / listeners);
+    }
+
+    /**
+     * Binds a socket for the blocking transport.
+     *
+     * @return false if SO_REUSEPORT was asked for but could not be set, in
+     *         which case the socket is bound anyway if it is the first one
+     *         on the port
+     */
+    private boolean bindSocket(int port, SocketOption<Boolean> reusePort) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        boolean reused = reusePort == null || setOption(ServerSocket.class, socket, reusePort);
+        if (!reused && reusePort != null && hasListener(port)) {
+            socket.close();
+            return false;
+        }
+        serverSockets.add(socket);
+        socket.bind(new InetSocketAddress(port));
+        return reused;
+    }
+
+    /**
+     * Binds a channel for the NIO transport. See
+     * {@link #bindSocket(int, SocketOption)}.
+     */
+    private boolean bindChannel(int port, SocketOption<Boolean> reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        boolean reused = reusePort == null
+                || setOption(NetworkChannel.class, channel, reusePort);
+        if (!reused && reusePort != null && hasListener(port)) {
+            channel.close();
+            return false;
+        }
+        serverChannels.add(channel);
+        channel.bind(new InetSocketAddress(port));
+        return reused;
+    }
+
+    private boolean hasListener(int port) {
+        for (ServerSocket socket : serverSockets) {
+            if (socket.getLocalPort() == port) {
+                return true;
+            }
+        }
+        for (ServerSocketChannel channel : serverChannels) {
+            if (channel.socket().getLocalPort() == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns StandardSocketOptions.SO_REUSEPORT, or null if the running JDK
+     * predates it.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Turns a boolean socket option on through the setOption method of the
+     * given type, which ServerSocket only has since JDK 9.
+     *
+     * @return false if the method or the option is unsupported
+     */
+    private static boolean setOption(Class<?> type, Object socket, SocketOption<Boolean> option)
+            throws IOException {
+        try {
+            Method supported = type.getMethod("supportedOptions");
+            if (!((java.util.Set<?>) supported.invoke(socket)).contains(option)) {
+                return false;
+            }
+            type.getMethod("setOption", SocketOption.class, Object.class)
+                    .invoke(socket, option, true);
+            return true;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            return false;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts connections until {@link #shutdown()} is called. Blocks the
+     * calling thread.
+     *
+     * @throws HttpServerException
+     *             if server can no longer accept any requests
+     */
+    public void serve() throws HttpServerException {
+        Logger.log("Server " + config.getName() + " started on port "
+                + portsToString() + " (" + config.getTransport() + ", "
+                + config.getAcceptors() + " acceptors per port, "
+                + Math.max(serverSockets.size(), serverChannels.size()) + " sockets).");
+        List<Acceptor> acceptors = new ArrayList<>();
+        startWatchdog();
+        if (config.getTransport() == ServerConfig.Transport.NIO) {
+            startEventLoops();
+            int next = 0;
+            for (ServerSocketChannel channel : serverChannels) {
+                for (int i = 0; i < acceptorsPerListener; i++) {
+                    // start each acceptor on a different loop
+                    int first = next++;
+                    acceptors.add(new Acceptor(() -> acceptNIO(channel, first)));
+                }
+            }
+        } else {
+            watchdog.scheduleWithFixedDelay(this::closeStuckConnections,
+                    WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            for (ServerSocket socket : serverSockets) {
+                for (int i = 0; i < acceptorsPerListener; i++) {
+                    acceptors.add(new Acceptor(() -> acceptBlocking(socket)));
+                }
+            }
+        }
+
+        // the last acceptor runs on the calling thread
+        ThreadFactory threads = WorkerPools.namedThreads(config.getName() + "-acceptor");
+        List<Thread> started = new ArrayList<>();
+        for (Acceptor acceptor : acceptors.subList(0, acceptors.size() - 1)) {
+            Thread thread = threads.newThread(acceptor);
+            thread.start();
+            started.add(thread);
+        }
+        Acceptor last = acceptors.get(acceptors.size() - 1);
+        last.run();
+        HttpServerException failure = last.failure;
+        for (int i = 0; i < started.size(); i++) {
+            try {
+                started.get(i).join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (failure == null) {
+                failure = acceptors.get(i).failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private String portsToString() {
+        StringBuilder ports = new StringBuilder();
+        for (int port : config.getPorts()) {
+            ports.append(ports.length() == 0 ? "" : ", ").append(port);
+        }
+        return ports.toString();
+    }
+
+    private interface AcceptLoop {
+        void run() throws HttpServerException;
+    }
+
+    /**
+     * Runs an accept loop and keeps the error that ended it, if any.
+     */
+    private static class Acceptor implements Runnable {
+        private final AcceptLoop loop;
+        volatile HttpServerException failure;
+
+        Acceptor(AcceptLoop loop) {
+            this.loop = loop;
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop.run();
+            } catch (HttpServerException e) {
+                failure = e;
+            }
+        }
+    }
+
+    String getName() {
+        return config.getName();
+    }
+
+    /**
+     * The limiter requests are admitted through, for monitoring how many are
+     * in flight and how many have been shed.
+     */
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    private void startWatchdog() {
+        watchdog = new ScheduledThreadPoolExecutor(1,
+                WorkerPools.namedThreads(config.getName() + "-watchdog"));
+        // handlers usually finish long before their timeout
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Accepts connections on the given socket and hands each to the
+     * executor, which serves it until it is closed.
+     */
+    private void acceptBlocking(ServerSocket listener) throws HttpServerException {
+        while (accepting) {
+            Socket s;
+            try {
+                s = listener.accept();
+            } catch (IOException e) {
+                if (!accepting) {
+                    // closed by shutdown()
+                    return;
+                }
+                throw new HttpServerException(e.getMessage());
+            }
+            // a connection is counted until a thread picks it up, so one
+            // more is let through for the hand-off to an idle thread
+            if (queuedConnections.get() > config.getMaxQueuedRequests()) {
+                limiter.recordShed();
+                shedConnection(s);
+                continue;
+            }
+            queuedConnections.incrementAndGet();
+            try {
+                config.getExecutor().execute(new BlockingConnection(this, config, s));
+            } catch (RejectedExecutionException e) {
+                queuedConnections.decrementAndGet();
+                Logger.log("Executor rejected connection: " + e.getMessage());
+                closeQuietly(s);
+            }
+        }
+    }
+
+    /**
+     * Called by a connection of the blocking transport once it got a thread.
+     */
+    void connectionStarted(BlockingConnection connection) {
+        queuedConnections.decrementAndGet();
+        connections.add(connection);
+    }
+
+    /**
+     * Called by a connection of the blocking transport once it is closed.
+     */
+    void connectionEnded(BlockingConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Blocking sockets have no write timeout, so connections whose write has
+     * been stuck too long are closed from here, which fails the write.
+     */
+    private void closeStuckConnections() {
+        long now = System.currentTimeMillis();
+        for (BlockingConnection connection : connections) {
+            connection.closeIfWriteStuck(now, config.getWriteTimeout());
+        }
+    }
+
+    /**
+     * Answers a connection that will not be served with 503 on the accepting
+     * thread. A new socket's send buffer is empty, so the write does not
+     * block.
+     */
+    private void shedConnection(Socket s) {
         try {
-            serverSocket = new ServerSocket(port);
+            HTTPResponse response = new HTTPResponse(s.getOutputStream(), getName());
+            respondOverloaded(response);
+        } catch (IOException e) {
+            Logger.log("IOException when shedding connection: " + e.getMessage());
+        } finally {
+            closeQuietly(s);
+        }
+    }
+
+    private void startEventLoops() throws HttpServerException {
+        eventLoops = new EventLoop[config.getEventLoops()];
+        ThreadFactory threads = WorkerPools
+                .namedThreads(config.getName() + "-eventloop");
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(this, config);
+                threads.newThread(eventLoops[i]).start();
+            }
         } catch (IOException e) {
             throw new HttpServerException(e.getMessage());
         }
+    }
 
-        while (true) {
-            HTTPRequest request = null;
-            HTTPResponse response = null;
-            Socket s = null;
+    /**
+     * Accepts channels on the given socket and spreads them round-robin over
+     * the event loops, starting with the given one. The loops do all further
+     * reading and writing.
+     */
+    private void acceptNIO(ServerSocketChannel listener, int first) throws HttpServerException {
+        int next = first % eventLoops.length;
+        while (accepting) {
+            SocketChannel channel;
             try {
-                s = serverSocket.accept();
-                request = new HTTPRequest(s.getInputStream());
-                response = new HTTPResponse(s.getOutputStream(), name);
-                httpHandler.accept(request, response);
-            } catch (InvalidHttpFormattingException e) {
-                response.send(HTTPResponse.StatusCode.BAD_REQUEST,
-                        "Request is malformatted");
+                channel = listener.accept();
             } catch (IOException e) {
-                Logger.log("IOException when parsing HTTP req/res: "
-                        + e.getStackTrace());
-                // Cause of error is printed out to devs but not shown to users
-                response.send(HTTPResponse.StatusCode.SERVER_ERROR,
-                        "Internal server error. Unable to parse request.");
-            } finally {
-                try {
-                    s.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (!accepting) {
+                    // closed by shutdown()
+                    return;
+                }
+                throw new HttpServerException(e.getMessage());
+            }
+            eventLoops[next].register(channel);
+            next = (next + 1) % eventLoops.length;
+        }
+    }
+
+    /**
+     * Reserves a place in the admission queue for a request that is about to
+     * be handed to {@link #respond(HTTPRequest, HTTPResponse, boolean)}. Never
+     * blocks.
+     *
+     * @return false if the server is overloaded, in which case the request
+     *         must be answered with
+     *         {@link #respondOverloaded(HTTPResponse)} instead
+     */
+    boolean offer() {
+        return limiter.offer();
+    }
+
+    /**
+     * Gives up the place of an offered request that will not be responded to.
+     */
+    void withdraw() {
+        limiter.withdraw();
+    }
+
+    /**
+     * Hands the request to the handler once the concurrency limit admits it.
+     * The request must have been offered with {@link #offer()}.
+     * 
+     * @param mayKeepAlive
+     *            false if the server wants to close the connection after this
+     *            request regardless of what the client asks for
+     * @return a future that completes once the response is sent, with
+     *         whether the connection should be kept open for another request.
+     *         Already complete unless the handler is asynchronous. Never
+     *         completes exceptionally.
+     */
+    CompletableFuture<Boolean> respond(HTTPRequest request, HTTPResponse response,
+            boolean mayKeepAlive) {
+        long admittedAt = limiter.acquire();
+        if (admittedAt < 0) {
+            return CompletableFuture.completedFuture(respondOverloaded(response));
+        }
+        response.setVersion(ERROR_RESPONSE_VERSION);
+        // a draining server closes connections as their requests finish
+        boolean persistent = mayKeepAlive && request.isKeepAlive() && !draining;
+        response.setKeepAlive(persistent);
+        if (persistent) {
+            response.setHeader(HEADER_KEEP_ALIVE_KEY, "timeout="
+                    + config.getKeepAliveTimeout() / 1000);
+        }
+        // HTTP/1.0 clients can't read chunked bodies. A transport that frames
+        // bodies itself has disallowed them already.
+        if ("HTTP/1.0".equalsIgnoreCase(request.getVersion())) {
+            response.setChunkedAllowed(false);
+        }
+        if (config.getCompressionLevel() > 0) {
+            response.setCompression(Compression.negotiate(request
+                    .getHeaderValue(HEADER_ACCEPT_ENCODING_KEY)),
+                    config.getCompressionThreshold(), config.getCompressionLevel());
+        }
+        CompletableFuture<?> handled;
+        try {
+            handled = httpHandler.handle(request, response);
+        } catch (RuntimeException | Error e) {
+            handled = new CompletableFuture<>();
+            handled.completeExceptionally(e);
+        }
+
+        // whichever of the handler and its timeout comes first answers
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicBoolean finished = new AtomicBoolean();
+        ScheduledFuture<?> timeout = null;
+        if (!handled.isDone() && config.getHandlerTimeout() > 0) {
+            try {
+                timeout = watchdog.schedule(() -> {
+                    if (finished.compareAndSet(false, true)) {
+                        Logger.log("Handler timed out: " + request.getMethod() + " "
+                                + request.getURI());
+                        response.sendInstead(HTTPResponse.StatusCode.SERVICE_UNAVAILABLE,
+                                "Request timed out.");
+                        result.complete(false);
+                    }
+                }, config.getHandlerTimeout(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down; the drain timeout bounds the wait instead
+            }
+        }
+        ScheduledFuture<?> pendingTimeout = timeout;
+        handled.whenComplete((value, failure) -> {
+            // a timed out handler keeps its slot until its work is done, so
+            // the limit bounds the work still running, not only the answers
+            limiter.release(admittedAt);
+            if (finished.compareAndSet(false, true)) {
+                if (pendingTimeout != null) {
+                    pendingTimeout.cancel(false);
+                }
+                result.complete(handled(response, persistent, failure));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Answers in place of a handler that failed, mapping the failure to a
+     * status code.
+     *
+     * @return whether the connection should be kept open
+     */
+    private boolean handled(HTTPResponse response, boolean persistent, Throwable failure) {
+        if (failure == null) {
+            // a handler that did not respond leaves the client waiting for a
+            // response that will never come, so hang up
+            return persistent && response.isSent();
+        }
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof InvalidHttpParametersException) {
+            response.sendInstead(HTTPResponse.StatusCode.BAD_REQUEST, failure.getMessage());
+            return false;
+        }
+        // Don't let one bad request kill a worker silently
+        failure.printStackTrace();
+        response.sendInstead(HTTPResponse.StatusCode.SERVER_ERROR, "Internal server error.");
+        return false;
+    }
+
+    /**
+     * Sheds a request: answers it with 503 and a Retry-After header without
+     * handling it, and closes the connection so that the client backs off.
+     *
+     * @return false, the connection must be closed
+     */
+    boolean respondOverloaded(HTTPResponse response) {
+        response.setVersion(ERROR_RESPONSE_VERSION);
+        response.setKeepAlive(false);
+        response.setHeader(HEADER_RETRY_AFTER_KEY, Integer.toString(config.getRetryAfter()));
+        response.send(HTTPResponse.StatusCode.SERVICE_UNAVAILABLE,
+                "Server is overloaded. Retry later.");
+        return false;
+    }
+
+    /**
+     * Responds to a request that could not be parsed. The connection must be
+     * closed afterwards, since the start of the next request is unknown.
+     */
+    void respondToMalformed(HTTPResponse response, Exception e) {
+        response.setVersion(ERROR_RESPONSE_VERSION);
+        if (e instanceof RequestLimitException) {
+            response.send(((RequestLimitException) e).getStatusCode(), e.getMessage());
+            return;
+        }
+        if (e instanceof InvalidHttpFormattingException) {
+            response.send(HTTPResponse.StatusCode.BAD_REQUEST,
+                    "Request is malformatted");
+            return;
+        }
+        Logger.log("IOException when parsing HTTP req/res: " + e.getMessage());
+        // Cause of error is printed out to devs but not shown to users
+        response.send(HTTPResponse.StatusCode.SERVER_ERROR,
+                "Internal server error. Unable to parse request.");
+    }
+
+    /**
+     * Handles requests, finishing responses on any thread.
+     */
+    public interface AsyncHandler {
+        /**
+         * Starts handling the request. The returned future must complete once
+         * the response is sent, i.e. after
+         * {@link HTTPResponse#send(HTTPResponse.StatusCode, byte[])} or after
+         * the stream of {@link HTTPResponse#stream(HTTPResponse.StatusCode)}
+         * is closed. If it completes exceptionally before a response is sent,
+         * the server answers with 400 for an
+         * {@link InvalidHttpParametersException} and 500 for anything else.
+         */
+        CompletableFuture<?> handle(HTTPRequest request, HTTPResponse response);
+    }
+
+    static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Whether {@link #drain(int)} has been called.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Number of open client connections, including accepted connections of
+     * the blocking transport that wait for a thread.
+     */
+    public int getOpenConnections() {
+        int open = connections.size() + queuedConnections.get();
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                open += loop.getConnectionCount();
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Shuts down gracefully. Stops accepting connections, then lets the
+     * requests that were already received be handled and answered. Each
+     * response is sent with Connection: close, and idle keep-alive
+     * connections are closed, so clients move on to another server. Once
+     * every connection is closed, or the timeout has passed, does what
+     * {@link #shutdown()} does and waits for the handlers still running
+     * until the timeout.
+     *
+     * @param timeout
+     *            milliseconds to wait for in-flight requests
+     * @return whether every connection finished in time
+     */
+    public boolean drain(int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        Logger.log("Server " + config.getName() + " draining on port "
+                + portsToString() + " with " + getOpenConnections()
+                + " open connections and " + limiter.getInFlight() + " requests in flight.");
+        draining = true;
+        closeListeners();
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.drain();
+            }
+        }
+        boolean drained;
+        try {
+            while (!(drained = getOpenConnections() == 0)
+                    && System.currentTimeMillis() < deadline) {
+                // connections of the blocking transport may wait in a read
+                // for a request that will not come
+                for (BlockingConnection connection : connections) {
+                    connection.closeIfIdle();
                 }
+                Thread.sleep(DRAIN_POLL_MILLIS);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained) {
+            Logger.log("Drain timed out with " + getOpenConnections() + " open connections.");
+        }
+        shutdown();
+        ExecutorService executor = config.getExecutor();
+        if (executor != null) {
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                drained &= executor.awaitTermination(remaining, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
 
+    /**
+     * Stops accepting connections, which makes {@link #serve()} return.
+     */
+    private void closeListeners() throws IOException {
+        accepting = false;
+        for (ServerSocket socket : serverSockets) {
+            socket.close();
+        }
+        for (ServerSocketChannel channel : serverChannels) {
+            channel.close();
         }
     }
 
+    /**
+     * Closes whatever was bound when binding another socket failed.
+     */
+    private void closeQuietly() {
+        try {
+            closeListeners();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and stops the
+     * executor. Requests already handed to the executor are allowed to
+     * finish, but their responses may not reach the client. See
+     * {@link #drain(int)} for a graceful shutdown.
+     */
     public void shutdown() throws IOException {
-        if (serverSocket != null) {
-            Logger.log("Server " + name + " shut down on port " + port + ".");
-            serverSocket.close();
-            serverSocket = null;
+        synchronized (this) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+        }
+        Logger.log("Server " + config.getName() + " shut down on port "
+                + portsToString() + ". Admitted " + limiter.getAdmittedCount()
+                + " requests, shed " + limiter.getShedCount() + ".");
+        closeListeners();
+        for (BlockingConnection connection : connections) {
+            connection.close();
+        }
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.shutdown();
+            }
+        }
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
+        ExecutorService executor = config.getExecutor();
+        if (executor != null) {
+            executor.shutdown();
         }
     }
 
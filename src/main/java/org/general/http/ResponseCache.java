@@ -0,0 +1,189 @@
+package org.general.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches serialized response bodies, each with the version of the data it was
+ * made from, e.g. the ETag of the response. A body is only returned for the
+ * version it was stored with, so a cache that is asked with the current
+ * version never returns a stale body: writers only have to change the
+ * version, and the stale body is dropped on the next lookup.
+ *
+ * Bodies are evicted least recently used first once their total size exceeds
+ * the size of the cache. Bodies larger than a sixteenth of the cache are not
+ * cached, so that a single large response can't flush it.
+ *
+ * Safe for use by any number of threads.
+ *
+ * @author Guoxing Li
+ *
+ * @param <K>
+ *            type of the keys, e.g. the path and params of a request
+ */
+public class ResponseCache<K> {
+
+    // a body may take at most this fraction of the cache
+    private static final int MAX_ENTRY_FRACTION = 16;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // in access order, least recently used first; guarded by this
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            most bytes of bodies kept at once. Must not be negative; 0
+     *            caches nothing.
+     */
+    public ResponseCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative. Was: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / MAX_ENTRY_FRACTION;
+    }
+
+    /**
+     * Returns the body cached for the given key and version, or null if there
+     * is none. A body cached for another version is removed.
+     */
+    public byte[] get(K key, String version) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.version.equals(version)) {
+                    hits.incrementAndGet();
+                    return entry.body;
+                }
+                remove(key, entry);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the given body for the given key and version, in place of the
+     * body cached for the key before, unless it is too large.
+     */
+    public void put(K key, String version, byte[] body) {
+        if (body.length > maxEntryBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry old = entries.put(key, new Entry(version, body));
+            if (old != null) {
+                bytes -= old.body.length;
+            }
+            bytes += body.length;
+            Iterator<Map.Entry<K, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().getValue().body.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that writes through to out and, once closed, caches
+     * what was written for the given key and version. Nothing is cached if a
+     * write fails or the body grows too large for the cache.
+     */
+    public OutputStream record(K key, String version, OutputStream out) {
+        return new Recorder(key, version, out);
+    }
+
+    private void remove(K key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.body.length;
+    }
+
+    /**
+     * Number of lookups that found a body.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that found no body, or a stale one.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Bytes of bodies cached.
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    private static class Entry {
+        private final String version;
+        private final byte[] body;
+
+        private Entry(String version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private class Recorder extends OutputStream {
+        private final K key;
+        private final String version;
+        private final OutputStream out;
+        // null once the body is too large or a write failed
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Recorder(K key, String version, OutputStream out) {
+            this.key = key;
+            this.version = version;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteArrayOutputStream recording = copy;
+            copy = null;
+            out.write(b, off, len);
+            if (recording != null && recording.size() + len <= maxEntryBytes) {
+                recording.write(b, off, len);
+                copy = recording;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ByteArrayOutputStream recording = copy;
+            copy = null;
+            out.flush();
+            copy = recording;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteArrayOutputStream recording = copy;
+            copy = null;
+            out.close();
+            if (recording != null) {
+                put(key, version, recording.toByteArray());
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.general.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps request paths and methods to handlers. Routes are compiled into a trie
+ * with a node per path segment, and each node that ends a route has a table
+ * of handlers indexed by method.
+ *
+ * A segment of a route may hold one parameter, as in
+ * "/statuses/show/{id}.json". Literal segments are tried before parameter
+ * segments. Finding a route allocates nothing; parameter values are only cut
+ * out of the path when {@link Route#getParams(String)} asks for them.
+ *
+ * Routes are meant to be added once at startup. Lookups are safe from any
+ * number of threads once no more routes are added.
+ *
+ * @author Guoxing Li
+ *
+ * @param <T>
+ *            type of the handlers
+ */
+public class Router<T> {
+
+    private static final Route<?>[] NO_ROUTES = new Route<?>[0];
+
+    private final Route<T> root = new Route<>("", null, "");
+
+    /**
+     * Adds a route for the given method and path pattern, e.g.
+     * "/friends/ids.json" or "/statuses/show/{id}.json".
+     *
+     * @throws IllegalArgumentException
+     *             if the pattern is malformed, or the same path and method
+     *             are already routed
+     */
+    public Router<T> add(HTTPRequest.Method method, String pattern, T handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with '/'. Was: " + pattern);
+        }
+        Route<T> node = root;
+        List<Route<T>> chain = new ArrayList<>();
+        for (String segment : pattern.substring(1).split("/", -1)) {
+            node = node.child(segment, pattern);
+            chain.add(node);
+        }
+        if (node.handlers[method.ordinal()] != null) {
+            throw new IllegalArgumentException("Route is already taken: " + method + " " + pattern);
+        }
+        node.handlers[method.ordinal()] = handler;
+        node.pattern = pattern;
+        node.chain = chain;
+        node.hasParams = pattern.indexOf('{') >= 0;
+        return this;
+    }
+
+    /**
+     * Returns the route of the given decoded path, or null if there is none.
+     * The route may have no handler for the method of the request.
+     */
+    public Route<T> find(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        return find(root, path, 1);
+    }
+
+    // start is the index of the segment to match next
+    private Route<T> find(Route<T> node, String path, int start) {
+        if (start > path.length()) {
+            return node.chain != null ? node : null;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        }
+        for (Route<T> child : node.literals) {
+            if (child.matches(path, start, end)) {
+                Route<T> route = find(child, path, end + 1);
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        for (Route<T> child : node.params) {
+            if (child.matches(path, start, end)) {
+                Route<T> route = find(child, path, end + 1);
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A node of the trie: a segment of a path, and the route that ends with
+     * it if any.
+     */
+    public static class Route<T> {
+        // the literal segment, or what comes before the parameter
+        private final String prefix;
+        // null for a literal segment
+        private final String paramName;
+        private final String suffix;
+
+        @SuppressWarnings("unchecked")
+        private Route<T>[] literals = (Route<T>[]) NO_ROUTES;
+        @SuppressWarnings("unchecked")
+        private Route<T>[] params = (Route<T>[]) NO_ROUTES;
+
+        // set on nodes that end a route
+        private final T[] handlers;
+        private String pattern;
+        // the segments of the route, ending with this one
+        private List<Route<T>> chain;
+        private boolean hasParams;
+
+        @SuppressWarnings("unchecked")
+        private Route(String prefix, String paramName, String suffix) {
+            this.prefix = prefix;
+            this.paramName = paramName;
+            this.suffix = suffix;
+            this.handlers = (T[]) new Object[HTTPRequest.Method.values().length];
+        }
+
+        /**
+         * Returns the child for the given segment of a pattern, adding it if
+         * there is none yet.
+         */
+        private Route<T> child(String segment, String pattern) {
+            int open = segment.indexOf('{');
+            int close = segment.indexOf('}');
+            if (open < 0 && close < 0) {
+                for (Route<T> child : literals) {
+                    if (child.prefix.equals(segment)) {
+                        return child;
+                    }
+                }
+                Route<T> child = new Route<>(segment, null, "");
+                literals = append(literals, child);
+                return child;
+            }
+            if (open < 0 || close < open + 2 || segment.indexOf('{', open + 1) >= 0
+                    || segment.indexOf('}', close + 1) >= 0) {
+                throw new IllegalArgumentException(
+                        "Route segments may hold one {param}. Was: " + pattern);
+            }
+            String prefix = segment.substring(0, open);
+            String name = segment.substring(open + 1, close);
+            String suffix = segment.substring(close + 1);
+            for (Route<T> child : params) {
+                if (child.prefix.equals(prefix) && child.suffix.equals(suffix)) {
+                    if (!child.paramName.equals(name)) {
+                        throw new IllegalArgumentException("Route names the param {"
+                                + child.paramName + "} differently: " + pattern);
+                    }
+                    return child;
+                }
+            }
+            Route<T> child = new Route<>(prefix, name, suffix);
+            params = append(params, child);
+            return child;
+        }
+
+        private static <T> Route<T>[] append(Route<T>[] routes, Route<T> route) {
+            Route<T>[] appended = Arrays.copyOf(routes, routes.length + 1);
+            appended[routes.length] = route;
+            return appended;
+        }
+
+        /**
+         * Whether path[start, end) is this segment.
+         */
+        private boolean matches(String path, int start, int end) {
+            int length = end - start;
+            if (paramName == null) {
+                return length == prefix.length() && path.regionMatches(start, prefix, 0, length);
+            }
+            // a param is never empty
+            return length > prefix.length() + suffix.length()
+                    && path.regionMatches(start, prefix, 0, prefix.length())
+                    && path.regionMatches(end - suffix.length(), suffix, 0, suffix.length());
+        }
+
+        /**
+         * Returns the handler for the given method, or null if the route
+         * does not take it.
+         */
+        public T getHandler(HTTPRequest.Method method) {
+            return handlers[method.ordinal()];
+        }
+
+        /**
+         * Methods this route has handlers for.
+         */
+        public List<HTTPRequest.Method> getMethods() {
+            List<HTTPRequest.Method> methods = new ArrayList<>();
+            for (HTTPRequest.Method method : HTTPRequest.Method.values()) {
+                if (handlers[method.ordinal()] != null) {
+                    methods.add(method);
+                }
+            }
+            return methods;
+        }
+
+        /**
+         * The pattern this route was added with.
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        public boolean hasParams() {
+            return hasParams;
+        }
+
+        /**
+         * Returns the values of the params of this route in the given path,
+         * which must be one this route was found for.
+         */
+        public Map<String, String> getParams(String path) {
+            Map<String, String> params = new HashMap<>();
+            int start = 1;
+            for (Route<T> segment : chain) {
+                int end = path.indexOf('/', start);
+                if (end < 0) {
+                    end = path.length();
+                }
+                if (segment.paramName != null) {
+                    params.put(segment.paramName, path.substring(start + segment.prefix.length(),
+                            end - segment.suffix.length()));
+                }
+                start = end + 1;
+            }
+            return params;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package org.general.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for an {@link HTTPServer}. Every setter returns this config, so
+ * settings can be chained:
+ *
+ * new ServerConfig("Tweeter/1.0", 8080).setExecutor(pool).setTransport(...)
+ *
+ * @author Guoxing Li
+ *
+ */
+public class ServerConfig {
+
+    /**
+     * How the server moves bytes between sockets and requests/responses.
+     */
+    public static enum Transport {
+        /**
+         * Blocking sockets. Each connection holds an executor thread while it
+         * is open.
+         */
+        BLOCKING,
+        /**
+         * Non-blocking channels multiplexed by a few selector threads.
+         * Connections only hold an executor thread while a request is being
+         * handled.
+         */
+        NIO
+    }
+
+    private String name;
+    private int port;
+    private final List<Integer> extraPorts = new ArrayList<>();
+    private int acceptors = 1;
+    private boolean reusePort;
+    private ExecutorService executor;
+    private Transport transport = Transport.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int keepAliveTimeout = 5_000;
+    private int maxRequestsPerConnection = 100;
+    private int maxPipelinedRequests = 16;
+    private boolean http2;
+    private int maxConcurrentStreams = 100;
+    private int compressionThreshold = 1024;
+    private int compressionLevel = 6;
+    private int concurrencyLimit = 32;
+    private int maxConcurrencyLimit = 512;
+    private int maxQueuedRequests = 256;
+    private int queueTimeout = 1_000;
+    private int retryAfter = 1;
+    private int headerTimeout = 10_000;
+    private int bodyTimeout = 30_000;
+    private int writeTimeout = 30_000;
+    private int handlerTimeout = 30_000;
+    private int maxRequestLineLength = 8 * 1024;
+    private int maxHeaderCount = 100;
+    private int maxBodySize = 1024 * 1024;
+
+    /**
+     * @param name
+     *            The server name that will appear in response headers
+     * @param port
+     *            The port to listen on
+     */
+    public ServerConfig(String name, int port) {
+        this.name = name;
+        this.port = port;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Every port to listen on: the one given to the constructor, then those
+     * added with {@link #addPort(int)}.
+     */
+    public List<Integer> getPorts() {
+        List<Integer> ports = new ArrayList<>();
+        ports.add(port);
+        ports.addAll(extraPorts);
+        return Collections.unmodifiableList(ports);
+    }
+
+    /**
+     * Listens on another port as well. Requests on every port share the
+     * handler, executor and limits of this config; use a second server with
+     * its own config for a port with a separate thread budget.
+     */
+    public ServerConfig addPort(int port) {
+        extraPorts.add(port);
+        return this;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Number of threads accepting connections on each port. Defaults to 1.
+     */
+    public ServerConfig setAcceptors(int acceptors) {
+        if (acceptors <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of acceptors must be positive. Was: " + acceptors);
+        }
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Whether every acceptor gets a listening socket of its own, bound to the
+     * same port with SO_REUSEPORT, so that the kernel spreads connections
+     * over them instead of the acceptors taking turns on one socket. Falls
+     * back to a shared socket where the JDK or the platform lacks the option.
+     * Defaults to false.
+     */
+    public ServerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executor that runs the handler. Required for the blocking transport. With
+     * the NIO transport, a null executor runs the handler on the event loop
+     * itself, which is only appropriate for handlers that never block.
+     */
+    public ServerConfig setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ServerConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Number of selector threads used by the NIO transport. Defaults to the
+     * number of available processors.
+     */
+    public ServerConfig setEventLoops(int eventLoops) {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of event loops must be positive. Was: " + eventLoops);
+        }
+        this.eventLoops = eventLoops;
+        return this;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Milliseconds a persistent connection may sit idle waiting for its next
+     * request before the server closes it. Defaults to 5 seconds.
+     */
+    public ServerConfig setKeepAliveTimeout(int keepAliveTimeout) {
+        if (keepAliveTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Keep-alive timeout must be positive. Was: " + keepAliveTimeout);
+        }
+        this.keepAliveTimeout = keepAliveTimeout;
+        return this;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Number of requests served on one connection before the server closes
+     * it. 1 disables persistent connections. Defaults to 100.
+     */
+    public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        if (maxRequestsPerConnection <= 0) {
+            throw new IllegalArgumentException(
+                    "Max requests per connection must be positive. Was: "
+                            + maxRequestsPerConnection);
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        return this;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Whether the blocking transport also speaks HTTP/2 over cleartext (h2c),
+     * to clients that start with the HTTP/2 connection preface or ask for an
+     * "Upgrade: h2c". The NIO transport stays on HTTP/1.1, which is a valid
+     * answer to an upgrade. Defaults to false.
+     */
+    public ServerConfig setHttp2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Number of requests of one HTTP/2 connection that may be in flight at
+     * once. Streams beyond it are refused, and the client may retry them.
+     * Defaults to 100.
+     */
+    public ServerConfig setMaxConcurrentStreams(int maxConcurrentStreams) {
+        if (maxConcurrentStreams <= 0) {
+            throw new IllegalArgumentException(
+                    "Max concurrent streams must be positive. Was: "
+                            + maxConcurrentStreams);
+        }
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Number of pipelined requests of one connection that may be in flight at
+     * once. The server stops reading from the connection until earlier
+     * responses have been written. 1 disables pipelining. Defaults to 16.
+     */
+    public ServerConfig setMaxPipelinedRequests(int maxPipelinedRequests) {
+        if (maxPipelinedRequests <= 0) {
+            throw new IllegalArgumentException(
+                    "Max pipelined requests must be positive. Was: "
+                            + maxPipelinedRequests);
+        }
+        this.maxPipelinedRequests = maxPipelinedRequests;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Smallest body, in bytes, that is compressed for clients that accept
+     * gzip or deflate. Smaller bodies gain too little to pay for the CPU time.
+     * Defaults to 1024.
+     */
+    public ServerConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "Compression threshold must not be negative. Was: "
+                            + compressionThreshold);
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Deflate level from 1 (fastest) to 9 (smallest) used to compress
+     * responses. 0 turns compression off. Defaults to 6.
+     */
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException(
+                    "Compression level must be between 0 and 9. Was: "
+                            + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public int getMaxConcurrencyLimit() {
+        return maxConcurrencyLimit;
+    }
+
+    /**
+     * Number of requests handled at once. Requests over the limit wait in a
+     * queue, see {@link #setMaxQueuedRequests(int)}. The limit starts at the
+     * first value and adapts to the latency of requests up to the second; set
+     * both to the same value for a fixed limit. Defaults to 32 and 512.
+     */
+    public ServerConfig setConcurrencyLimit(int concurrencyLimit, int maxConcurrencyLimit) {
+        if (concurrencyLimit <= 0) {
+            throw new IllegalArgumentException(
+                    "Concurrency limit must be positive. Was: " + concurrencyLimit);
+        }
+        if (maxConcurrencyLimit < concurrencyLimit) {
+            throw new IllegalArgumentException("Max concurrency limit must be at least "
+                    + concurrencyLimit + ". Was: " + maxConcurrencyLimit);
+        }
+        this.concurrencyLimit = concurrencyLimit;
+        this.maxConcurrencyLimit = maxConcurrencyLimit;
+        return this;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Number of requests that may wait for the concurrency limit at once.
+     * With the blocking transport, also the number of accepted connections
+     * that may wait for an executor thread. Requests beyond this are
+     * answered with 503 Service Unavailable. Defaults to 256.
+     */
+    public ServerConfig setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 0) {
+            throw new IllegalArgumentException(
+                    "Max queued requests must not be negative. Was: " + maxQueuedRequests);
+        }
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * Milliseconds a request waits for the concurrency limit before it is
+     * answered with 503 Service Unavailable. Defaults to 1 second.
+     */
+    public ServerConfig setQueueTimeout(int queueTimeout) {
+        if (queueTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "Queue timeout must not be negative. Was: " + queueTimeout);
+        }
+        this.queueTimeout = queueTimeout;
+        return this;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Seconds that clients are told to wait in the Retry-After header of a
+     * 503 Service Unavailable response. Defaults to 1.
+     */
+    public ServerConfig setRetryAfter(int retryAfter) {
+        if (retryAfter < 0) {
+            throw new IllegalArgumentException(
+                    "Retry-After must not be negative. Was: " + retryAfter);
+        }
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    public int getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    /**
+     * Milliseconds from the first byte of a request until its headers must
+     * have arrived. A client that is slower is answered with 408 Request
+     * Timeout and disconnected. Defaults to 10 seconds.
+     */
+    public ServerConfig setHeaderTimeout(int headerTimeout) {
+        if (headerTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Header timeout must be positive. Was: " + headerTimeout);
+        }
+        this.headerTimeout = headerTimeout;
+        return this;
+    }
+
+    public int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    /**
+     * Milliseconds from the end of a request's headers until its body must
+     * have arrived. A client that is slower is answered with 408 Request
+     * Timeout and disconnected. Defaults to 30 seconds.
+     */
+    public ServerConfig setBodyTimeout(int bodyTimeout) {
+        if (bodyTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Body timeout must be positive. Was: " + bodyTimeout);
+        }
+        this.bodyTimeout = bodyTimeout;
+        return this;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Milliseconds a write of a response may be stuck because the client does
+     * not read, before the connection is closed. Defaults to 30 seconds.
+     */
+    public ServerConfig setWriteTimeout(int writeTimeout) {
+        if (writeTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Write timeout must be positive. Was: " + writeTimeout);
+        }
+        this.writeTimeout = writeTimeout;
+        return this;
+    }
+
+    public int getHandlerTimeout() {
+        return handlerTimeout;
+    }
+
+    /**
+     * Milliseconds the future of an {@link HTTPServer.AsyncHandler} may take
+     * to complete before the server answers the request with 503 Service
+     * Unavailable in its place and closes the connection. The request still
+     * counts against the concurrency limit until the future completes. 0 for
+     * no limit. Defaults to 30 seconds.
+     */
+    public ServerConfig setHandlerTimeout(int handlerTimeout) {
+        if (handlerTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "Handler timeout must not be negative. Was: " + handlerTimeout);
+        }
+        this.handlerTimeout = handlerTimeout;
+        return this;
+    }
+
+    public int getMaxRequestLineLength() {
+        return maxRequestLineLength;
+    }
+
+    /**
+     * Longest request line, and longest header line, in bytes. Longer ones
+     * are answered with 414 URI Too Long or 431 Request Header Fields Too
+     * Large. Defaults to 8KB.
+     */
+    public ServerConfig setMaxRequestLineLength(int maxRequestLineLength) {
+        if (maxRequestLineLength <= 0) {
+            throw new IllegalArgumentException(
+                    "Max request line length must be positive. Was: " + maxRequestLineLength);
+        }
+        this.maxRequestLineLength = maxRequestLineLength;
+        return this;
+    }
+
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Most header lines a request may have. More are answered with 431
+     * Request Header Fields Too Large. Defaults to 100.
+     */
+    public ServerConfig setMaxHeaderCount(int maxHeaderCount) {
+        if (maxHeaderCount < 0) {
+            throw new IllegalArgumentException(
+                    "Max header count must not be negative. Was: " + maxHeaderCount);
+        }
+        this.maxHeaderCount = maxHeaderCount;
+        return this;
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Largest request body in bytes. A larger Content-Length is answered
+     * with 413 Payload Too Large before the body is read. Defaults to 1MB.
+     */
+    public ServerConfig setMaxBodySize(int maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException(
+                    "Max body size must not be negative. Was: " + maxBodySize);
+        }
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+}
@@ -1,36 +1,99 @@
 package org.general.http;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * URLDecoder used to decode URL according to
  * https://tools.ietf.org/html/rfc3986.
  *
+ * Percent-encoded bytes are decoded as UTF-8, so "caf%C3%A9" is "caf\u00e9".
+ * Escapes that are malformed or stand for a control character are left as
+ * they are.
+ *
+ * Input without anything to decode is returned as it is, or, for a byte range
+ * of a request, turned into a String without any other allocation.
+ *
  * @author Guoxing Li
  *
  */
 public class URLDecoder {
+
+    // value of each ASCII hex digit, -1 for other characters
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Decodes a URL path or other component in which '+' is a plain '+'.
+     */
     public static String decode(String in) {
-        StringBuilder result = new StringBuilder();
-        int pos = 0;
-        while (pos < in.length()) {
-            if (in.charAt(pos) == '%') {
-                if (pos + 2 < in.length()) {
-                    try {
-                        int code = Integer.parseInt(
-                                in.substring(pos + 1, pos + 3), 16);
-                        if (code >= 32 && code <= 255) {
-                            result.append((char) code);
-                            pos += 3;
-                            continue;
-                        }
-                    } catch (NumberFormatException e) {
-                        // invalid, ignore and move on
-                    }
+        return decode(in, false);
+    }
+
+    /**
+     * Decodes the given string. With plusAsSpace, '+' decodes to a space, as
+     * in the keys and values of application/x-www-form-urlencoded params.
+     */
+    public static String decode(String in, boolean plusAsSpace) {
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            if (c == '%' || (c == '+' && plusAsSpace)) {
+                byte[] bytes = in.getBytes(StandardCharsets.UTF_8);
+                return decode(bytes, 0, bytes.length, plusAsSpace);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes in [start, end) of the given array. See
+     * {@link #decode(String, boolean)}.
+     */
+    public static String decode(byte[] in, int start, int end, boolean plusAsSpace) {
+        int pos = start;
+        while (pos < end && in[pos] != '%' && (in[pos] != '+' || !plusAsSpace)) {
+            pos++;
+        }
+        if (pos == end) {
+            return new String(in, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        // decoding never makes the input longer
+        byte[] out = new byte[end - start];
+        int length = pos - start;
+        System.arraycopy(in, start, out, 0, length);
+        while (pos < end) {
+            byte b = in[pos];
+            if (b == '%' && pos + 2 < end) {
+                int high = hexValue(in[pos + 1]);
+                int low = hexValue(in[pos + 2]);
+                if (high >= 0 && low >= 0 && (high << 4 | low) >= 32) {
+                    out[length++] = (byte) (high << 4 | low);
+                    pos += 3;
+                    continue;
                 }
+                // invalid, ignore and move on
+            } else if (b == '+' && plusAsSpace) {
+                b = ' ';
             }
             // normal character or failed on parsing, move on
-            result.append(in.charAt(pos));
+            out[length++] = b;
             pos++;
         }
-        return result.toString();
+        // malformed UTF-8 becomes U+FFFD
+        return new String(out, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(byte b) {
+        return b < 0 ? -1 : HEX_VALUES[b];
     }
 }
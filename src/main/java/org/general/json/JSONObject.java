@@ -1,10 +1,16 @@
 package org.general.json;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -23,7 +29,12 @@ public class JSONObject {
     
     // Only 1 of these 4 will not be null, depending on the type of the JSONObject
     private Map<String, JSONObject> map;
-    private List<JSONObject> list;
+    // a List, or a view that makes its elements as it is iterated
+    private Iterable<JSONObject> list;
+    // for a list of JSONables, the JSONables that list makes its elements of
+    private Iterable<? extends JSONable> jsonables;
+    // for a list of longs, the longs that list makes its elements of
+    private long[] longs;
     private String str;
     private Number num;
     
@@ -33,77 +44,78 @@ public class JSONObject {
         this.type = Type.LIST;
         this.list = new ArrayList<JSONObject>(list); 
     }
+    // written in the order the given map iterates
     public JSONObject(Map<String, ? extends JSONObject> map) { 
         this.type = Type.MAP;
-        this.map = new HashMap<String, JSONObject>(map); 
+        this.map = new LinkedHashMap<String, JSONObject>(map); 
+    }
+    private JSONObject(Type type, Iterable<JSONObject> list) {
+        this.type = type;
+        this.list = list;
     }
 
     /**
-     * Mapping from characters (that are not unicode) that should be escaped 
-     * to their appropriate replacements. Static initializer sets up the hashmap
-     * for use in the jsonEscape method.
+     * Returns string form (in valid JSON formatting) of the internal object. 
      */
-    private static HashMap<Character, String> nonUnicodeEscapeChars;
-    static {
-        nonUnicodeEscapeChars = new HashMap<Character, String>();
-        nonUnicodeEscapeChars.put('\b', "\\b");
-        nonUnicodeEscapeChars.put('\f', "\\f");
-        nonUnicodeEscapeChars.put('\n', "\\n");
-        nonUnicodeEscapeChars.put('\r', "\\r");
-        nonUnicodeEscapeChars.put('\t', "\\t");
-        nonUnicodeEscapeChars.put('\\', "\\\\");
-        nonUnicodeEscapeChars.put('\"', "\\\"");
+    public String toJson() {
+        return new String(toJsonBytes(), StandardCharsets.UTF_8);
     }
 
     /**
-     * Returns string form (in valid JSON formatting) of the internal object. 
+     * Returns the UTF-8 bytes of the text toJson returns, without building
+     * the string.
      */
-    public String toJson() {
-        switch (type) {
-            case LIST: {
-                return "[" + list.stream()
-                        .map(JSONObject::toJson)
-                        .collect(Collectors.joining(", "))
-                        + "]";
-            }
-            case MAP: {
-                return "{" + map.keySet().stream()
-                        .map(key -> 
-                            jsonEscape(key) + ": " + map.get(key).toJson())
-                        .collect(Collectors.joining(", "))
-                        + "}";
-            }
-            case STRING: return jsonEscape(str);
-            case NUMBER: return String.valueOf(num);
-            default: return null; // Will never reach here bec type is always declared.
+    public byte[] toJsonBytes() {
+        JSONWriter writer = new JSONWriter();
+        try {
+            writeTo(writer);
+        } catch (IOException e) {
+            // a writer without a stream does not throw
+            throw new UncheckedIOException(e);
         }
+        return writer.toByteArray();
     }
 
     /**
-     * Given a string that may or may not conform to proper JSON string format,
-     * will return a string that does adheres to JSON format.
-     * 
-     * @param val
-     *            string to be escaped
-     * @return json-escaped string
+     * Writes the JSON text of this object to the writer as UTF-8; toJson and
+     * toJsonBytes are made this way. JSONables in a list made by
+     * {@link #fromIterable(Iterable)} write themselves.
      */
-    private static String jsonEscape(String str) {
-        if (str == null) return "null";
-        StringBuilder escapedString = new StringBuilder();
-        for (char c : str.toCharArray()) {
-            if (nonUnicodeEscapeChars.containsKey(c)) {
-                escapedString.append(nonUnicodeEscapeChars.get(c));
+    public void writeTo(JSONWriter writer) throws IOException {
+        switch (type) {
+            case LIST: {
+                writer.beginArray();
+                if (longs != null) {
+                    for (long element : longs) {
+                        writer.value(element);
+                    }
+                } else if (jsonables != null) {
+                    for (JSONable element : jsonables) {
+                        element.writeTo(writer);
+                    }
+                } else {
+                    for (JSONObject element : list) {
+                        element.writeTo(writer);
+                    }
+                }
+                writer.endArray();
+                return;
             }
-            else if (Character.isISOControl(c)) {
-                escapedString.append("\\u");
-                escapedString.append(String.format("%04x", (int) c));
-            } else {
-                escapedString.append(c);
+            case MAP: {
+                writer.beginObject();
+                for (Map.Entry<String, JSONObject> entry : map.entrySet()) {
+                    writer.name(entry.getKey());
+                    entry.getValue().writeTo(writer);
+                }
+                writer.endObject();
+                return;
             }
+            case STRING: writer.value(str); return;
+            case NUMBER: writer.value(num); return;
+            default: return; // Will never reach here bec type is always declared.
         }
-        return "\"" + escapedString.toString() + "\"";
     }
-    
+
     /**
      * Interface for classes that can convert themselves into JSON form, using the JSONObject class.
      * @author marcelpuyat
@@ -111,6 +123,15 @@ public class JSONObject {
      */
     public interface JSONable {
         public JSONObject toJsonObject();
+
+        /**
+         * Writes the same text as toJsonObject().toJson(). Classes that are
+         * written often may write their fields directly instead of building
+         * a JSONObject first.
+         */
+        public default void writeTo(JSONWriter writer) throws IOException {
+            toJsonObject().writeTo(writer);
+        }
     }
 
     @Override
@@ -123,8 +144,14 @@ public class JSONObject {
                 return this.num.equals(otherAsJson.num);
             case STRING:
                 return this.str.equals(otherAsJson.str);
-            case LIST:
-                return this.list.equals(otherAsJson.list);
+            case LIST: {
+                Iterator<JSONObject> mine = this.list.iterator();
+                Iterator<JSONObject> theirs = otherAsJson.list.iterator();
+                while (mine.hasNext() && theirs.hasNext()) {
+                    if (!mine.next().equals(theirs.next())) return false;
+                }
+                return !mine.hasNext() && !theirs.hasNext();
+            }
             case MAP:
                 return this.map.equals(otherAsJson.map);
             default:
@@ -144,6 +171,68 @@ public class JSONObject {
                 .collect(Collectors.toList()));
     }
     
+    /**
+     * Returns a JSONObject of type list whose elements are made from the given
+     * items only while it is written, one at a time. Lets a very large list be
+     * written without holding a JSONObject per element. The items are
+     * iterated again every time the list is written or compared.
+     */
+    public static <T> JSONObject fromIterable(Iterable<? extends T> items,
+            Function<? super T, JSONObject> toJsonObject) {
+        return new JSONObject(Type.LIST, () -> new Iterator<JSONObject>() {
+            private final Iterator<? extends T> it = items.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public JSONObject next() {
+                return toJsonObject.apply(it.next());
+            }
+        });
+    }
+    
+    /**
+     * Returns a JSONObject of type list whose elements are the given
+     * JSONables, made only while it is written, like
+     * {@link #fromIterable(Iterable, Function)}. Written with a
+     * {@link JSONWriter}, the JSONables write themselves without making
+     * elements at all.
+     */
+    public static JSONObject fromIterable(Iterable<? extends JSONable> items) {
+        JSONObject list = fromIterable(items, JSONable::toJsonObject);
+        list.jsonables = items;
+        return list;
+    }
+    
+    /**
+     * Returns a JSONObject of type list of the given numbers, written straight
+     * from the array without boxing them or making an element for each. The
+     * array is not copied, so it must not change afterwards.
+     */
+    public static JSONObject fromLongs(long[] values) {
+        JSONObject list = new JSONObject(Type.LIST, () -> new Iterator<JSONObject>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            public JSONObject next() {
+                if (next == values.length) {
+                    throw new NoSuchElementException();
+                }
+                return new JSONObject(values[next++]);
+            }
+        });
+        list.longs = values;
+        return list;
+    }
+    
     /**
      * Returns a JSONObject of type list given a list of strings
      */
@@ -0,0 +1,563 @@
+package org.general.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads JSON from UTF-8 bytes one token at a time, without building
+ * JSONObjects, so that a large array can be processed element by element:
+ *
+ * <pre>
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     if (reader.nextName().equals("ids")) {
+ *         reader.beginArray();
+ *         while (reader.hasNext()) {
+ *             follow(reader.nextLong());
+ *         }
+ *         reader.endArray();
+ *     } else {
+ *         reader.skipValue();
+ *     }
+ * }
+ * reader.endObject();
+ * reader.endDocument();
+ * </pre>
+ *
+ * The bytes are read in place, in one pass: {@link #peek()} looks at a single
+ * byte ahead and nothing is ever read twice. Numbers are parsed straight from
+ * the bytes; strings are decoded only when asked for, and strings that are
+ * skipped are never decoded. Malformed UTF-8 in a string becomes U+FFFD.
+ *
+ * Strict RFC 8259 JSON; a reader that threw a JSONParseException is left
+ * where the error was and should not be used further. Not thread-safe.
+ *
+ * @author marcelpuyat
+ *
+ */
+public class JSONReader {
+
+    public static enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT
+    }
+
+    // what the reader is in, and what has been read of it
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    // a name was read, its value not yet
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+    private final ByteBuffer in;
+    private int pos;
+    private final int end;
+    private int[] scopes = new int[16];
+    private int depth = 1;
+    // the next token once peeked, with pos at its first byte
+    private Token peeked;
+    // where the bytes of strings are copied to when the buffer has no array
+    private byte[] scratch;
+
+    /**
+     * Creates a reader of the given bytes.
+     */
+    public JSONReader(byte[] json, int offset, int length) {
+        this(ByteBuffer.wrap(json, offset, length));
+    }
+
+    /**
+     * Creates a reader of the bytes between the position and the limit of
+     * the buffer, which are read in place. The buffer's position is left
+     * alone, and its bytes must not change while they are read.
+     */
+    public JSONReader(ByteBuffer json) {
+        this.in = json;
+        this.pos = json.position();
+        this.end = json.limit();
+        scopes[0] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     *
+     * @throws JSONParseException if the next token is not valid here
+     */
+    public Token peek() throws JSONParseException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c;
+        switch (scopes[depth - 1]) {
+        case EMPTY_ARRAY:
+            scopes[depth - 1] = NONEMPTY_ARRAY;
+            if (skipWhitespace() == ']') {
+                return peeked = Token.END_ARRAY;
+            }
+            break;
+        case NONEMPTY_ARRAY:
+            c = skipWhitespace();
+            if (c == ']') {
+                return peeked = Token.END_ARRAY;
+            }
+            expect(c, ',', "',' or ']'");
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = skipWhitespace();
+            if (c == '}') {
+                return peeked = Token.END_OBJECT;
+            }
+            if (scopes[depth - 1] == NONEMPTY_OBJECT) {
+                expect(c, ',', "',' or '}'");
+                c = skipWhitespace();
+            }
+            if (c != '"') {
+                throw error("Expected a name");
+            }
+            scopes[depth - 1] = DANGLING_NAME;
+            return peeked = Token.NAME;
+        case DANGLING_NAME:
+            expect(skipWhitespace(), ':', "':'");
+            scopes[depth - 1] = NONEMPTY_OBJECT;
+            break;
+        case EMPTY_DOCUMENT:
+            scopes[depth - 1] = NONEMPTY_DOCUMENT;
+            break;
+        default:
+            // NONEMPTY_DOCUMENT
+            if (skipWhitespace() != -1) {
+                throw error("Expected the end of the document");
+            }
+            return peeked = Token.END_DOCUMENT;
+        }
+        switch (skipWhitespace()) {
+        case '{':
+            return peeked = Token.BEGIN_OBJECT;
+        case '[':
+            return peeked = Token.BEGIN_ARRAY;
+        case '"':
+            return peeked = Token.STRING;
+        case 't':
+        case 'f':
+            return peeked = Token.BOOLEAN;
+        case 'n':
+            return peeked = Token.NULL;
+        case '-': case '0': case '1': case '2': case '3': case '4':
+        case '5': case '6': case '7': case '8': case '9':
+            return peeked = Token.NUMBER;
+        case -1:
+            throw error("Unexpected end of JSON");
+        default:
+            throw error("Expected a value");
+        }
+    }
+
+    /**
+     * Whether the current object or array has another element.
+     */
+    public boolean hasNext() throws JSONParseException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY
+                && token != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws JSONParseException {
+        consume(Token.BEGIN_OBJECT);
+        pos++;
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws JSONParseException {
+        consume(Token.END_OBJECT);
+        pos++;
+        depth--;
+    }
+
+    public void beginArray() throws JSONParseException {
+        consume(Token.BEGIN_ARRAY);
+        pos++;
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws JSONParseException {
+        consume(Token.END_ARRAY);
+        pos++;
+        depth--;
+    }
+
+    /**
+     * Checks that nothing but whitespace follows the value that was read.
+     */
+    public void endDocument() throws JSONParseException {
+        consume(Token.END_DOCUMENT);
+    }
+
+    public String nextName() throws JSONParseException {
+        consume(Token.NAME);
+        return readString();
+    }
+
+    public String nextString() throws JSONParseException {
+        consume(Token.STRING);
+        return readString();
+    }
+
+    public boolean nextBoolean() throws JSONParseException {
+        consume(Token.BOOLEAN);
+        if (byteAt(pos) == 't') {
+            readLiteral(TRUE);
+            return true;
+        }
+        readLiteral(FALSE);
+        return false;
+    }
+
+    public void nextNull() throws JSONParseException {
+        consume(Token.NULL);
+        readLiteral(NULL);
+    }
+
+    /**
+     * Reads a number that is a 64-bit integer, written without a fraction or
+     * exponent.
+     *
+     * @throws JSONParseException if the next token is not such a number
+     */
+    public long nextLong() throws JSONParseException {
+        consume(Token.NUMBER);
+        int start = pos;
+        boolean negative = byteAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        int digits = pos;
+        // accumulated negatively, since Long.MIN_VALUE has no positive twin
+        long value = 0;
+        int c;
+        while ((c = byteAt(pos)) >= '0' && c <= '9') {
+            int digit = c - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                pos = start;
+                throw error("Number is not a 64-bit integer");
+            }
+            value = value * 10 - digit;
+            pos++;
+        }
+        if (pos == digits || (byteAt(digits) == '0' && pos > digits + 1)) {
+            pos = start;
+            throw error("Malformed number");
+        }
+        if (c == '.' || c == 'e' || c == 'E' || (!negative && value == Long.MIN_VALUE)) {
+            pos = start;
+            throw error("Number is not a 64-bit integer");
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Reads any number, as the closest double.
+     */
+    public double nextDouble() throws JSONParseException {
+        consume(Token.NUMBER);
+        int start = pos;
+        skipNumber();
+        char[] chars = new char[pos - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) byteAt(start + i);
+        }
+        return Double.parseDouble(new String(chars));
+    }
+
+    /**
+     * Skips the next value, with everything in it, or the next name and its
+     * value. Strings are not decoded.
+     */
+    public void skipValue() throws JSONParseException {
+        int skipDepth = 0;
+        boolean afterName;
+        do {
+            afterName = false;
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                skipDepth++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                skipDepth++;
+                break;
+            case END_OBJECT:
+                if (skipDepth == 0) {
+                    throw error("Expected a value");
+                }
+                endObject();
+                skipDepth--;
+                break;
+            case END_ARRAY:
+                if (skipDepth == 0) {
+                    throw error("Expected a value");
+                }
+                endArray();
+                skipDepth--;
+                break;
+            case NAME:
+                peeked = null;
+                skipString();
+                // and then its value
+                afterName = true;
+                break;
+            case STRING:
+                peeked = null;
+                skipString();
+                break;
+            case NUMBER:
+                peeked = null;
+                skipNumber();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw error("Expected a value");
+            }
+        } while (skipDepth > 0 || afterName);
+    }
+
+    /**
+     * The index of the next byte to be read, in the buffer.
+     */
+    public int getPosition() {
+        return pos;
+    }
+
+    private void consume(Token expected) throws JSONParseException {
+        Token token = peek();
+        if (token != expected) {
+            throw error("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        }
+        scopes[depth++] = scope;
+    }
+
+    /**
+     * The byte at the given index, or -1 past the end.
+     */
+    private int byteAt(int index) {
+        return index < end ? in.get(index) & 0xff : -1;
+    }
+
+    /**
+     * Skips whitespace and returns the byte after it without consuming it,
+     * or -1 at the end.
+     */
+    private int skipWhitespace() {
+        int c;
+        while ((c = byteAt(pos)) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            pos++;
+        }
+        return c;
+    }
+
+    private void expect(int c, char expected, String what) throws JSONParseException {
+        if (c != expected) {
+            throw error("Expected " + what);
+        }
+        pos++;
+    }
+
+    private void readLiteral(byte[] literal) throws JSONParseException {
+        for (int i = 0; i < literal.length; i++) {
+            if (byteAt(pos + i) != literal[i]) {
+                throw error("Expected " + new String(literal, StandardCharsets.US_ASCII));
+            }
+        }
+        pos += literal.length;
+    }
+
+    /**
+     * Skips a number, checking its grammar.
+     */
+    private void skipNumber() throws JSONParseException {
+        int start = pos;
+        if (byteAt(pos) == '-') {
+            pos++;
+        }
+        if (byteAt(pos) == '0') {
+            pos++;
+        } else if (skipDigits() == 0) {
+            pos = start;
+            throw error("Malformed number");
+        }
+        if (byteAt(pos) == '.') {
+            pos++;
+            if (skipDigits() == 0) {
+                pos = start;
+                throw error("Malformed number");
+            }
+        }
+        int c = byteAt(pos);
+        if (c == 'e' || c == 'E') {
+            pos++;
+            c = byteAt(pos);
+            if (c == '+' || c == '-') {
+                pos++;
+            }
+            if (skipDigits() == 0) {
+                pos = start;
+                throw error("Malformed number");
+            }
+        }
+    }
+
+    private int skipDigits() {
+        int start = pos;
+        int c;
+        while ((c = byteAt(pos)) >= '0' && c <= '9') {
+            pos++;
+        }
+        return pos - start;
+    }
+
+    /**
+     * Reads the string that starts at pos, past its closing quote. Strings
+     * without escapes are decoded from the buffer in one piece.
+     */
+    private String readString() throws JSONParseException {
+        int start = ++pos;
+        int c;
+        while ((c = byteAt(pos)) != '"' && c != '\\') {
+            checkStringByte(c);
+            pos++;
+        }
+        if (c == '"') {
+            return decode(start, pos++);
+        }
+        StringBuilder s = new StringBuilder(pos - start + 16);
+        int run = start;
+        while (true) {
+            c = byteAt(pos);
+            if (c == '"') {
+                s.append(decode(run, pos++));
+                return s.toString();
+            }
+            if (c != '\\') {
+                checkStringByte(c);
+                pos++;
+                continue;
+            }
+            s.append(decode(run, pos));
+            pos++;
+            switch (byteAt(pos++)) {
+            case '"': s.append('"'); break;
+            case '\\': s.append('\\'); break;
+            case '/': s.append('/'); break;
+            case 'b': s.append('\b'); break;
+            case 'f': s.append('\f'); break;
+            case 'n': s.append('\n'); break;
+            case 'r': s.append('\r'); break;
+            case 't': s.append('\t'); break;
+            case 'u': s.append(readHexChar()); break;
+            default:
+                pos--;
+                throw error("Invalid escape");
+            }
+            run = pos;
+        }
+    }
+
+    private void skipString() throws JSONParseException {
+        pos++;
+        int c;
+        while ((c = byteAt(pos)) != '"') {
+            checkStringByte(c);
+            if (c == '\\') {
+                pos++;
+                c = byteAt(pos);
+                if (c == 'u') {
+                    pos++;
+                    readHexChar();
+                    continue;
+                }
+                if (c != '"' && c != '\\' && c != '/' && c != 'b' && c != 'f' && c != 'n'
+                        && c != 'r' && c != 't') {
+                    throw error("Invalid escape");
+                }
+            }
+            pos++;
+        }
+        pos++;
+    }
+
+    private void checkStringByte(int c) throws JSONParseException {
+        if (c == -1) {
+            throw error("Unterminated string");
+        }
+        if (c < 0x20) {
+            throw error("Unescaped control character in string");
+        }
+    }
+
+    private char readHexChar() throws JSONParseException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(byteAt(pos), 16);
+            if (digit < 0) {
+                throw error("Invalid \\u escape");
+            }
+            value = value << 4 | digit;
+            pos++;
+        }
+        return (char) value;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes between the given indices.
+     */
+    private String decode(int from, int to) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + from, to - from,
+                    StandardCharsets.UTF_8);
+        }
+        int length = to - from;
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 64)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = in.get(from + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private JSONParseException error(String msg) {
+        return new JSONParseException(msg + " at byte " + (pos - in.position()));
+    }
+
+    /**
+     * JSON that is malformed, or not what the caller asked to read.
+     */
+    public static class JSONParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public JSONParseException(String msg) {
+            super(msg);
+        }
+    }
+}
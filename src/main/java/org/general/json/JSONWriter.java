@@ -0,0 +1,366 @@
+package org.general.json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes JSON as UTF-8 bytes, one token at a time, straight into a byte
+ * buffer that is handed to an OutputStream whenever it fills up, or that
+ * holds the whole text when there is no stream.
+ *
+ * The text is the same as {@link JSONObject#toJson()} encoded as UTF-8:
+ * elements are separated by ", " and names are followed by ": ". So
+ *
+ * <pre>
+ * writer.beginObject().name("ids").beginArray().value(1).value(2).endArray().endObject();
+ * </pre>
+ *
+ * writes {"ids": [1, 2]}. Nothing checks that the calls nest properly.
+ *
+ * Not thread-safe. A writer without a stream may be reused with
+ * {@link #reset()}.
+ *
+ * @author marcelpuyat
+ *
+ */
+public class JSONWriter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f' };
+    // most bytes one char can take: "\\u0000"
+    private static final int MAX_CHAR_BYTES = 6;
+    // bytes of the longest long, "-9223372036854775808"
+    private static final int MAX_LONG_BYTES = 20;
+
+    /**
+     * What each ASCII character is escaped with in a JSON string: 0 for
+     * nothing, 'u' for a \\u escape, and otherwise the character that
+     * follows the backslash. Characters from 0x80 up need no escape except
+     * the C1 controls, which get a \\u escape.
+     */
+    private static final byte[] ESCAPES = new byte[128];
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES[0x7f] = 'u';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['"'] = '"';
+    }
+
+    // null to keep everything in the buffer
+    private final OutputStream out;
+    private byte[] buffer;
+    private int count;
+    // whether the object or array at each depth has no element yet
+    private boolean[] empty = new boolean[16];
+    private int depth;
+    // set between a name and its value, which needs no separator
+    private boolean afterName;
+
+    /**
+     * Creates a writer that keeps the text in memory, for
+     * {@link #toByteArray()}.
+     */
+    public JSONWriter() {
+        this(null);
+    }
+
+    /**
+     * Creates a writer that writes to the given stream in pieces of its
+     * buffer size. Call {@link #flush()} or {@link #close()} to write the
+     * rest.
+     */
+    public JSONWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = new byte[out == null ? 256 : BUFFER_SIZE];
+    }
+
+    public JSONWriter beginObject() throws IOException {
+        return begin('{');
+    }
+
+    public JSONWriter endObject() throws IOException {
+        return end('}');
+    }
+
+    public JSONWriter beginArray() throws IOException {
+        return begin('[');
+    }
+
+    public JSONWriter endArray() throws IOException {
+        return end(']');
+    }
+
+    /**
+     * Writes the name of the next member of an object.
+     */
+    public JSONWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        ensure(2);
+        buffer[count++] = ':';
+        buffer[count++] = ' ';
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string, or null.
+     */
+    public JSONWriter value(String value) throws IOException {
+        separate();
+        writeString(value);
+        return this;
+    }
+
+    public JSONWriter value(long value) throws IOException {
+        separate();
+        writeLong(value);
+        return this;
+    }
+
+    /**
+     * Writes a number the way String.valueOf does, or null.
+     */
+    public JSONWriter value(Number value) throws IOException {
+        separate();
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            writeLong(value.longValue());
+        } else {
+            writeAscii(String.valueOf(value));
+        }
+        return this;
+    }
+
+    /**
+     * Writes a value that is already JSON, as UTF-8 bytes, as is. Nothing
+     * checks that it is valid.
+     */
+    public JSONWriter rawValue(byte[] json) throws IOException {
+        separate();
+        writeBytes(json);
+        return this;
+    }
+
+    /**
+     * The text written to a writer without a stream.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Empties a writer without a stream, keeping its buffer.
+     */
+    public void reset() {
+        count = 0;
+        depth = 0;
+        afterName = false;
+    }
+
+    /**
+     * Writes what is buffered to the stream, and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            drain();
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes what is buffered to the stream, and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            drain();
+            out.close();
+        }
+    }
+
+    private JSONWriter begin(char bracket) throws IOException {
+        separate();
+        ensure(1);
+        buffer[count++] = (byte) bracket;
+        if (depth == empty.length) {
+            empty = Arrays.copyOf(empty, depth * 2);
+        }
+        empty[depth++] = true;
+        return this;
+    }
+
+    private JSONWriter end(char bracket) throws IOException {
+        depth--;
+        ensure(1);
+        buffer[count++] = (byte) bracket;
+        return this;
+    }
+
+    /**
+     * Writes the ", " that goes before every element but the first.
+     */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (!empty[depth - 1]) {
+                ensure(2);
+                buffer[count++] = ',';
+                buffer[count++] = ' ';
+            }
+            empty[depth - 1] = false;
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            writeBytes(NULL);
+            return;
+        }
+        int length = s.length();
+        // the run of plain ASCII before the first char that is escaped or
+        // takes more than one byte, copied in one piece
+        int plain = 0;
+        while (plain < length) {
+            char c = s.charAt(plain);
+            if (c >= 0x80 || ESCAPES[c] != 0) {
+                break;
+            }
+            plain++;
+        }
+        ensure(plain + 2);
+        buffer[count++] = '"';
+        for (int i = 0; i < plain; i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+        if (plain == length) {
+            buffer[count++] = '"';
+            return;
+        }
+        for (int i = plain; i < length; i++) {
+            ensure(MAX_CHAR_BYTES);
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeAsciiChar(c);
+            } else if (c < 0xa0) {
+                // C1 control characters
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | c >> 6);
+                buffer[count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[count++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[count++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[count++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, replaced like String.getBytes does
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | c >> 12);
+                buffer[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        ensure(1);
+        buffer[count++] = '"';
+    }
+
+    /**
+     * Writes an ASCII character of a string, escaped if need be. There must
+     * be room for {@value #MAX_CHAR_BYTES} bytes.
+     */
+    private void writeAsciiChar(char c) {
+        byte escape = ESCAPES[c];
+        if (escape == 0) {
+            buffer[count++] = (byte) c;
+        } else if (escape == 'u') {
+            writeUnicodeEscape(c);
+        } else {
+            buffer[count++] = '\\';
+            buffer[count++] = escape;
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buffer[count++] = '\\';
+        buffer[count++] = 'u';
+        buffer[count++] = HEX[c >> 12];
+        buffer[count++] = HEX[c >> 8 & 0xf];
+        buffer[count++] = HEX[c >> 4 & 0xf];
+        buffer[count++] = HEX[c & 0xf];
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(MAX_LONG_BYTES);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Makes room for the given number of bytes, by handing the buffer to the
+     * stream or by growing it.
+     */
+    private void ensure(int room) throws IOException {
+        if (count + room <= buffer.length) {
+            return;
+        }
+        if (out != null) {
+            drain();
+        }
+        if (count + room > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + room));
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+}
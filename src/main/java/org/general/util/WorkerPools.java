@@ -0,0 +1,72 @@
+package org.general.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the executors that run work off of a server's accepting
+ * thread.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class WorkerPools {
+
+    /**
+     * Returns a pool of a fixed number of platform threads. Tasks submitted
+     * while every thread is busy wait in the pool's queue.
+     *
+     * @param name
+     *            Prefix of the names of the worker threads
+     * @param threads
+     *            Number of worker threads. Must be positive.
+     */
+    public static ExecutorService fixed(String name, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of worker threads must be positive. Was: " + threads);
+        }
+        return new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                namedThreads(name));
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     *
+     * Virtual threads only exist on newer JDKs, so the executor is looked up
+     * reflectively.
+     *
+     * @throws UnsupportedOperationException
+     *             if the running JDK has no virtual threads
+     */
+    public static ExecutorService virtual() {
+        try {
+            Method factory = java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JDK ("
+                            + System.getProperty("java.version") + ")");
+        }
+    }
+
+    /**
+     * Returns a ThreadFactory creating daemon threads named name-1, name-2...
+     */
+    public static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,7 +1,7 @@
 package org.tweeter.controllers;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,6 +9,8 @@ import java.util.Map;
 import org.general.http.HTTPRequest;
 import org.general.http.InvalidHttpParametersException;
 import org.general.json.JSONObject;
+import org.general.json.JSONReader;
+import org.general.json.JSONReader.JSONParseException;
 import org.general.util.Logger;
 import org.tweeter.data.FriendshipData;
 
@@ -24,6 +26,14 @@ import org.tweeter.data.FriendshipData;
 public class FriendshipsController {
     private static final String PARAMS_MY_ID_KEY = "my_id";
     private static final String PARAMS_USER_ID_KEY = "user_id";
+    /**
+     * Name of the array of user ids in the JSON body of createFriendships.
+     */
+    private static final String JSON_USER_IDS_KEY = "user_ids";
+    /**
+     * Max number of friendships created by one call to createFriendships.
+     */
+    private static final int MAX_BATCH_FRIENDSHIPS = 10_000;
     /**
      * Creates a friendship from the long value in params associated with
      * "my_id" to the long value in params associated with "user_id".
@@ -44,6 +54,86 @@ public class FriendshipsController {
         return new JSONObject(new HashMap<>());
     }
 
+    /**
+     * Creates friendships from the user in params associated with "my_id" to
+     * many users at once, e.g. to import who a user follows. The users are
+     * given by repeated "user_id" params, my_id=1&user_id=2&user_id=3, or by
+     * a JSON body with a Content-Type of application/json:
+     * {"my_id": 1, "user_ids": [2, 3]}. The ids of a JSON body are read as
+     * they are parsed, without boxing them.
+     * 
+     * Will return an empty JSON object. Friendships that already exist are
+     * left alone.
+     * 
+     * @throws InvalidHttpParametersException if my_id or a user id does not
+     * exist or is not a number, if there are too many user ids, or if a JSON
+     * body is malformed
+     * @throws IOException if unable to write data
+     */
+    public static JSONObject createFriendships(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        long userId;
+        long[] friendIds;
+        if (req.hasContentType(HTTPRequest.JSON_MEDIA_TYPE)) {
+            JSONReader reader = new JSONReader(req.getBodyBuffer());
+            Long myId = null;
+            friendIds = new long[16];
+            int count = 0;
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals(PARAMS_MY_ID_KEY)) {
+                        myId = reader.nextLong();
+                    } else if (name.equals(JSON_USER_IDS_KEY)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (count == MAX_BATCH_FRIENDSHIPS) {
+                                throw new InvalidHttpParametersException("At most "
+                                        + MAX_BATCH_FRIENDSHIPS
+                                        + " friendships can be created at once");
+                            }
+                            if (count == friendIds.length) {
+                                friendIds = Arrays.copyOf(friendIds, count * 2);
+                            }
+                            friendIds[count++] = reader.nextLong();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                reader.endDocument();
+            } catch (JSONParseException e) {
+                throw new InvalidHttpParametersException("Invalid JSON body: " + e.getMessage());
+            }
+            if (myId == null) {
+                throw new InvalidHttpParametersException(PARAMS_MY_ID_KEY + " is a required parameter");
+            }
+            userId = myId;
+            friendIds = Arrays.copyOf(friendIds, count);
+        } else {
+            userId = req.getRequiredLongParam(PARAMS_MY_ID_KEY);
+            List<String> values = req.getParamValues(PARAMS_USER_ID_KEY);
+            if (values.size() > MAX_BATCH_FRIENDSHIPS) {
+                throw new InvalidHttpParametersException("At most " + MAX_BATCH_FRIENDSHIPS
+                        + " friendships can be created at once. Was: " + values.size());
+            }
+            friendIds = new long[values.size()];
+            for (int i = 0; i < friendIds.length; i++) {
+                try {
+                    friendIds[i] = Long.parseLong(values.get(i));
+                } catch (NumberFormatException e) {
+                    throw new InvalidHttpParametersException(PARAMS_USER_ID_KEY
+                            + " must be a 64-bit integer. Invalid value given: " + values.get(i));
+                }
+            }
+        }
+        Logger.log("Creating " + friendIds.length + " friendships of " + userId);
+        FriendshipData.getInstance().addFriends(userId, friendIds);
+        return new JSONObject(new HashMap<>());
+    }
+
     /**
      * Deletes a friendship from the long value in params associated with
      * "my_id" to the long value in params associated with "user_id".
@@ -74,9 +164,19 @@ public class FriendshipsController {
     public static JSONObject getFollowers(HTTPRequest req) throws InvalidHttpParametersException, IOException {
         Long userId = req.getRequiredLongParam(PARAMS_USER_ID_KEY);
         Logger.log("Getting followers JSON of "+ userId);
-        List<Long> followerIds = new ArrayList<Long>();
-        followerIds.addAll(FriendshipData.getInstance().getUserFollowers(userId));
-        return generateJSONIdList(followerIds);
+        return generateJSONIdList(FriendshipData.getInstance().getUserFollowers(userId));
+    }
+
+    /**
+     * Returns a tag that changes whenever the followers of the user in params
+     * do.
+     * 
+     * @throws InvalidHttpParametersException if user_id param does not exist or is not a number
+     * @throws IOException if unable to read data
+     */
+    public static String getFollowersTag(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        Long userId = req.getRequiredLongParam(PARAMS_USER_ID_KEY);
+        return Long.toString(FriendshipData.getInstance().getFollowersVersion(userId));
     }
 
     /**
@@ -92,18 +192,30 @@ public class FriendshipsController {
     public static JSONObject getFriends(HTTPRequest req) throws InvalidHttpParametersException, IOException {
         Long userId = req.getRequiredLongParam(PARAMS_USER_ID_KEY);
         Logger.log("Getting friends JSON of "+ userId);
-        List<Long> friendIds = new ArrayList<Long>();
-        friendIds.addAll(FriendshipData.getInstance().getUserFriends(userId));
-        return generateJSONIdList(friendIds);
+        return generateJSONIdList(FriendshipData.getInstance().getUserFriends(userId));
+    }
+
+    /**
+     * Returns a tag that changes whenever the friends of the user in params
+     * do.
+     * 
+     * @throws InvalidHttpParametersException if user_id param does not exist or is not a number
+     * @throws IOException if unable to read data
+     */
+    public static String getFriendsTag(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        Long userId = req.getRequiredLongParam(PARAMS_USER_ID_KEY);
+        return Long.toString(FriendshipData.getInstance().getFriendsVersion(userId));
     }
 
     /**
      * Returns a JSONObject of the form: {"ids": [1, 6, 3, 9, 10]} Where the ids
-     * in the array will be those from the list of ids passed in (in order).
+     * in the array will be those passed in (in order). The ids are written
+     * straight from the array, so a user with millions of followers costs no
+     * boxed Long or JSONObject per id.
      */
-    private static JSONObject generateJSONIdList(List<Long> ids) {
+    private static JSONObject generateJSONIdList(long[] ids) {
         Map<String, JSONObject> map = new HashMap<>();
-        map.put("ids", JSONObject.fromNumbers(ids));
+        map.put("ids", JSONObject.fromLongs(ids));
         return new JSONObject(map);
     }
 }
@@ -1,15 +1,21 @@
 package org.tweeter.controllers;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.LongStream;
 
 import org.general.http.HTTPRequest;
 import org.general.http.InvalidHttpParametersException;
 import org.general.json.JSONObject;
+import org.general.json.JSONReader;
+import org.general.json.JSONReader.JSONParseException;
 import org.general.util.Logger;
 import org.tweeter.data.FriendshipData;
 import org.tweeter.data.Status;
@@ -24,6 +30,9 @@ import org.tweeter.data.StatusData;
  * See https://web.stanford.edu/~ouster/cgi-bin/cs190-spring15/tweeter.php
  * for info on what a home/user timeline is.
  * 
+ * Reads are asynchronous: the returned future completes once statuses that
+ * are not cached have been read from disk.
+ * 
  * @author marcelpuyat
  *
  */
@@ -42,6 +51,15 @@ public class StatusesController {
     private static final String PARAMS_STATUS_KEY = "status";
     private static final String PARAMS_COUNT_KEY = "count";
     private static final String PARAMS_MAX_ID_KEY = "max_id";
+    private static final String PARAMS_ID_KEY = "id";
+    /**
+     * Max number of statuses created by one call to updateStatuses.
+     */
+    private static final int MAX_BATCH_STATUSES = 1000;
+    /**
+     * Name of the array of statuses in the JSON body of updateStatuses.
+     */
+    private static final String JSON_STATUSES_KEY = "statuses";
     /**
      * Updates the status of a user.
      * 
@@ -62,12 +80,164 @@ public class StatusesController {
         return new JSONObject(new HashMap<>());
     }
 
+    /**
+     * Updates many statuses at once, e.g. for importers and bots.
+     * 
+     * Parameters must include one or more status params, and either a single
+     * my_id that owns all of them or one my_id per status, in the same order:
+     * my_id=1&status=a&my_id=2&status=b. The statuses get consecutive ids and
+     * are written to disk with one append.
+     * 
+     * The statuses may instead be sent as a JSON body, with a Content-Type of
+     * application/json: {"my_id": 1, "statuses": ["a", "b"]}, or with an
+     * owner per status: {"statuses": [{"my_id": 1, "status": "a"}, ...]}.
+     * The body is read as it is parsed, without building JSONObjects.
+     * 
+     * Will return the assigned ids in the order of the statuses:
+     * {"ids": [7, 8, 9]}
+     * 
+     * @throws InvalidHttpParametersException if a my_id is not a number, if
+     * the number of my_id params matches neither 1 nor the number of statuses,
+     * if a status has no my_id, if there are no statuses or too many, or if
+     * a JSON body is malformed
+     * @throws IOException if unable to write data
+     */
+    public static JSONObject updateStatuses(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        List<String> statuses = new ArrayList<String>();
+        List<Long> userIds = new ArrayList<Long>();
+        if (req.hasContentType(HTTPRequest.JSON_MEDIA_TYPE)) {
+            readStatuses(req, userIds, statuses);
+        } else {
+            readStatusParams(req, userIds, statuses);
+        }
+        Logger.log("Updating " + statuses.size() + " statuses");
+        long firstId = StatusData.getInstance().updateStatuses(userIds, statuses);
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("ids", JSONObject.fromLongs(LongStream.range(firstId, firstId + statuses.size())
+                .toArray()));
+        return new JSONObject(map);
+    }
+
+    /**
+     * Reads the statuses of updateStatuses, and their owners, from form
+     * params.
+     */
+    private static void readStatusParams(HTTPRequest req, List<Long> userIds,
+            List<String> statuses) throws InvalidHttpParametersException {
+        statuses.addAll(req.getParamValues(PARAMS_STATUS_KEY));
+        List<String> userIdValues = req.getParamValues(PARAMS_MY_ID_KEY);
+        if (statuses.isEmpty()) {
+            throw new InvalidHttpParametersException(PARAMS_STATUS_KEY + " is a required parameter");
+        }
+        if (statuses.size() > MAX_BATCH_STATUSES) {
+            throw new InvalidHttpParametersException("At most " + MAX_BATCH_STATUSES
+                    + " statuses can be updated at once. Was: " + statuses.size());
+        }
+        if (userIdValues.size() != 1 && userIdValues.size() != statuses.size()) {
+            throw new InvalidHttpParametersException("Expected one " + PARAMS_MY_ID_KEY
+                    + " or one per status. Was: " + userIdValues.size() + " for "
+                    + statuses.size() + " statuses");
+        }
+        for (int i = 0; i < statuses.size(); i++) {
+            String value = userIdValues.get(userIdValues.size() == 1 ? 0 : i);
+            try {
+                userIds.add(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                throw new InvalidHttpParametersException(PARAMS_MY_ID_KEY
+                        + " must be a 64-bit integer. Invalid value given: " + value);
+            }
+        }
+    }
+
+    /**
+     * Reads the statuses of updateStatuses, and their owners, from a JSON
+     * body. Names other than those documented there are skipped.
+     */
+    private static void readStatuses(HTTPRequest req, List<Long> userIds,
+            List<String> statuses) throws InvalidHttpParametersException {
+        JSONReader reader = new JSONReader(req.getBodyBuffer());
+        Long ownerId = null;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(PARAMS_MY_ID_KEY)) {
+                    ownerId = reader.nextLong();
+                } else if (name.equals(JSON_STATUSES_KEY)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (statuses.size() == MAX_BATCH_STATUSES) {
+                            throw new InvalidHttpParametersException("At most "
+                                    + MAX_BATCH_STATUSES + " statuses can be updated at once");
+                        }
+                        readStatus(reader, userIds, statuses);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            reader.endDocument();
+        } catch (JSONParseException e) {
+            throw new InvalidHttpParametersException("Invalid JSON body: " + e.getMessage());
+        }
+        if (statuses.isEmpty()) {
+            throw new InvalidHttpParametersException(JSON_STATUSES_KEY + " must list a status");
+        }
+        for (int i = 0; i < userIds.size(); i++) {
+            if (userIds.get(i) == null) {
+                if (ownerId == null) {
+                    throw new InvalidHttpParametersException("Expected a " + PARAMS_MY_ID_KEY
+                            + " for every status");
+                }
+                userIds.set(i, ownerId);
+            }
+        }
+    }
+
+    /**
+     * Reads one element of the statuses array: a string, owned by the my_id
+     * of the body, or an object with its own my_id and status. The owner of
+     * a string is added as null.
+     */
+    private static void readStatus(JSONReader reader, List<Long> userIds,
+            List<String> statuses) throws JSONParseException, InvalidHttpParametersException {
+        if (reader.peek() == JSONReader.Token.STRING) {
+            userIds.add(null);
+            statuses.add(reader.nextString());
+            return;
+        }
+        Long userId = null;
+        String status = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(PARAMS_MY_ID_KEY)) {
+                userId = reader.nextLong();
+            } else if (name.equals(PARAMS_STATUS_KEY)) {
+                status = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (status == null) {
+            throw new InvalidHttpParametersException("Expected a " + PARAMS_STATUS_KEY
+                    + " in every object of " + JSON_STATUSES_KEY);
+        }
+        userIds.add(userId);
+        statuses.add(status);
+    }
+
     /**
      * Returns home timeline (in json) of a given user. The home
      * timeline includes statuses of all the user's friends and the user's own
      * statuses.
      * 
      * See generateJSONOfTweets method for format of JSON object returned.
+     * The future completes exceptionally with an IOException if unable to
+     * read data.
      * 
      * Parameters must include a user_id to indicate whose user home timeline
      * should be returned, and may optionally include a count to indicate the
@@ -78,18 +248,46 @@ public class StatusesController {
      * or if count or max_id param is not a number
      * @throws IOException if unable to read data
      */
-    public static JSONObject getHomeTimeline(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+    public static CompletableFuture<JSONObject> getHomeTimeline(HTTPRequest req)
+            throws InvalidHttpParametersException, IOException {
         Long userId = req.getRequiredLongParam(PARAMS_MY_ID_KEY);
         Long count = req.getOptionalLongParam(PARAMS_COUNT_KEY, DEFAULT_TIMELINE_SIZE);
         Long maxId = req.getOptionalLongParam(PARAMS_MAX_ID_KEY, DEFAULT_MAX_ID);
         Logger.log("Returning JSON of home timeline of " + userId);
-        Set<Long> friendIds = FriendshipData.getInstance().getUserFriends(userId);
-        Set<Long> userIds = new HashSet<Long>();
-        userIds.addAll(friendIds);
+        return StatusData.getInstance().getStatusesOnUserIdsAsync(getHomeTimelineUserIds(userId),
+                count, maxId).thenApply(StatusesController::generateJSONOfTweets);
+    }
+
+    /**
+     * Returns a tag that changes whenever the home timeline returned for the
+     * same params does: the newest status id among the user and their
+     * friends, and the version of their friends. Costs no status reads.
+     * 
+     * @throws InvalidHttpParametersException if user_id param does not exist or is not a number,
+     * or if max_id param is not a number
+     * @throws IOException if unable to read data
+     */
+    public static String getHomeTimelineTag(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        Long userId = req.getRequiredLongParam(PARAMS_MY_ID_KEY);
+        Long maxId = req.getOptionalLongParam(PARAMS_MAX_ID_KEY, DEFAULT_MAX_ID);
+        // the version first, so that the friends read next are no older
+        long friendsVersion = FriendshipData.getInstance().getFriendsVersion(userId);
+        long newestId = StatusData.getInstance().getNewestStatusId(getHomeTimelineUserIds(userId), maxId);
+        return newestId + "-" + friendsVersion;
+    }
+
+    /**
+     * Returns the ids of the user and their friends, whose statuses make up
+     * the user's home timeline.
+     */
+    private static Set<Long> getHomeTimelineUserIds(Long userId) throws IOException {
+        long[] friendIds = FriendshipData.getInstance().getUserFriends(userId);
+        Set<Long> userIds = new HashSet<Long>(friendIds.length * 2 + 2);
+        for (long friendId : friendIds) {
+            userIds.add(friendId);
+        }
         userIds.add(userId);
-        List<Status> statuses = StatusData.getInstance().getStatusesOnUserIds(userIds,
-                count, maxId);
-        return generateJSONOfTweets(statuses);
+        return userIds;
     }
 
     /**
@@ -97,6 +295,8 @@ public class StatusesController {
      * timeline includes all the statuses of the user.
      * 
      * See generateJSONOfTweets method for format of JSON object returned.
+     * The future completes exceptionally with an IOException if unable to
+     * read data.
      * 
      * Parameters must include a user_id to indicate whose user timeline should
      * be returned, and may optionally include a count to indicate the max
@@ -107,14 +307,66 @@ public class StatusesController {
      * or if count or max_id param is not a number
      * @throws IOException if unable to read data
      */
-    public static JSONObject getUserTimeline(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+    public static CompletableFuture<JSONObject> getUserTimeline(HTTPRequest req)
+            throws InvalidHttpParametersException, IOException {
         Long userId = req.getRequiredLongParam(PARAMS_MY_ID_KEY);
         Long count = req.getOptionalLongParam(PARAMS_COUNT_KEY, DEFAULT_TIMELINE_SIZE);
         Long maxId = req.getOptionalLongParam(PARAMS_MAX_ID_KEY, DEFAULT_MAX_ID);
         Logger.log("Returning JSON of user timeline of " + userId);
-        List<Status> statuses = StatusData.getInstance().getStatusesOnUserId(userId,
-                count, maxId);
-        return generateJSONOfTweets(statuses);
+        return StatusData.getInstance().getStatusesOnUserIdAsync(userId, count, maxId)
+                .thenApply(StatusesController::generateJSONOfTweets);
+    }
+
+    /**
+     * Returns a tag that changes whenever the user timeline returned for the
+     * same params does: the newest status id of the user.
+     * 
+     * @throws InvalidHttpParametersException if user_id param does not exist or is not a number,
+     * or if max_id param is not a number
+     * @throws IOException if unable to read data
+     */
+    public static String getUserTimelineTag(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        Long userId = req.getRequiredLongParam(PARAMS_MY_ID_KEY);
+        Long maxId = req.getOptionalLongParam(PARAMS_MAX_ID_KEY, DEFAULT_MAX_ID);
+        return Long.toString(StatusData.getInstance().getNewestStatusId(
+                Collections.singleton(userId), maxId));
+    }
+
+    /**
+     * Returns a single status (in json), of the same form as the statuses in a
+     * timeline.
+     * 
+     * Parameters must include the id of the status, usually given in the
+     * path as in /statuses/show/{id}.json.
+     * 
+     * @throws InvalidHttpParametersException if id param does not exist or is not a number,
+     * or if there is no status with this id
+     * @throws IOException if unable to read data
+     */
+    public static CompletableFuture<JSONObject> getStatus(HTTPRequest req)
+            throws InvalidHttpParametersException, IOException {
+        Long statusId = req.getRequiredLongParam(PARAMS_ID_KEY);
+        Logger.log("Returning JSON of status " + statusId);
+        if (!StatusData.getInstance().hasStatus(statusId)) {
+            throw new InvalidHttpParametersException("No status with id " + statusId);
+        }
+        return StatusData.getInstance().getStatusAsync(statusId).thenApply(Status::toJsonObject);
+    }
+
+    /**
+     * Returns a tag for the status in params. Statuses never change, so the
+     * id is enough.
+     * 
+     * @throws InvalidHttpParametersException if id param does not exist or is not a number,
+     * or if there is no status with this id
+     * @throws IOException if unable to read data
+     */
+    public static String getStatusTag(HTTPRequest req) throws InvalidHttpParametersException, IOException {
+        Long statusId = req.getRequiredLongParam(PARAMS_ID_KEY);
+        if (!StatusData.getInstance().hasStatus(statusId)) {
+            throw new InvalidHttpParametersException("No status with id " + statusId);
+        }
+        return Long.toString(statusId);
     }
 
     /**
@@ -127,7 +379,7 @@ public class StatusesController {
      */
     private static JSONObject generateJSONOfTweets(List<Status> statuses) {
         Map<String, JSONObject> tweets = new HashMap<>();
-        tweets.put("tweets", JSONObject.fromJSONables(statuses));
+        tweets.put("tweets", JSONObject.fromIterable(statuses));
         return new JSONObject(tweets);
     }
 }
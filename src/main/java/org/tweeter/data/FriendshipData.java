@@ -1,13 +1,14 @@
 package org.tweeter.data;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.general.data.DataStorage;
 import org.general.util.Logger;
+import org.general.util.LongHashSet;
 
 /**
  * Singleton class that interfaces with the data module to retrieve
@@ -17,6 +18,15 @@ import org.general.util.Logger;
  * This information is used when displaying the statuses to appear on a user's
  * home timeline.
  * 
+ * Safe for concurrent use. Writes are serialized so that the order of entries
+ * on disk matches the order they were applied in memory. Each user's friends
+ * and followers are kept as primitive longs, in a set that is locked only
+ * while it is changed or copied; reads take no other lock.
+ * 
+ * Every user's friends and followers have a version that changes whenever
+ * they do, so that clients can tell whether a list they already have is
+ * still current without receiving it again.
+ * 
  * @author marcelpuyat
  *
  */
@@ -26,8 +36,12 @@ public class FriendshipData {
 
     // persistent storage
     private DataStorage<FriendshipEntry> storage;
-    private HashMap<Long, Set<Long>> friendCache;
-    private HashMap<Long, Set<Long>> followerCache;
+    private Map<Long, LongHashSet> friendCache;
+    private Map<Long, LongHashSet> followerCache;
+    // number of entries that changed each user's friends or followers,
+    // counting those read back from storage, so versions survive a restart
+    private Map<Long, Long> friendVersions;
+    private Map<Long, Long> followerVersions;
 
     private static FriendshipData friendshipData;
 
@@ -38,8 +52,10 @@ public class FriendshipData {
         storage = new DataStorage<FriendshipEntry>(FILE_NAME,
                 FriendshipEntry.class, FriendshipEntry.ENTRY_SIZE);
         // warm up cache
-        friendCache = new HashMap<Long, Set<Long>>();
-        followerCache = new HashMap<Long, Set<Long>>();
+        friendCache = new ConcurrentHashMap<Long, LongHashSet>();
+        followerCache = new ConcurrentHashMap<Long, LongHashSet>();
+        friendVersions = new ConcurrentHashMap<Long, Long>();
+        followerVersions = new ConcurrentHashMap<Long, Long>();
         DataStorage<FriendshipEntry>.EntryReader reader = storage.new EntryReader();
         FriendshipEntry entry;
         while ((entry = reader.readNext()) != null) {
@@ -54,7 +70,7 @@ public class FriendshipData {
      * @return An instance of FriendshipData
      * @throws IOException on instantiation error
      */
-    public static FriendshipData getInstance() throws IOException {
+    public static synchronized FriendshipData getInstance() throws IOException {
         if (friendshipData == null) {
             friendshipData = new FriendshipData();
         }
@@ -62,30 +78,44 @@ public class FriendshipData {
     }
 
     /**
-     * Returns set of ids of friends of the given user.
+     * Returns the ids of friends of the given user.
      * 
      * @param userId
-     * @return A unmodifiable set of friend ids. Empty if the user has no
-     *         friends.
+     * @return A new array of distinct friend ids, in no particular order.
+     *         Empty if the user has no friends.
      */
-    public Set<Long> getUserFriends(long userId) {
+    public long[] getUserFriends(long userId) {
         Logger.log("Getting friends of " + userId);
-        return Collections.unmodifiableSet(friendCache.getOrDefault(userId,
-                new HashSet<Long>()));
+        return toArray(friendCache.get(userId));
     }
 
     /**
-     * Returns a set of ids of followers (i.e. those users that have added this
+     * Returns the ids of followers (i.e. those users that have added this
      * user as their friend) of the given user.
      * 
      * @param userId
-     * @return A unmodifiable set of follower ids. Empty if the user has no
-     *         followers.
+     * @return A new array of distinct follower ids, in no particular order.
+     *         Empty if the user has no followers.
      */
-    public Set<Long> getUserFollowers(long userId) {
+    public long[] getUserFollowers(long userId) {
         Logger.log("Getting followers of " + userId);
-        return Collections.unmodifiableSet(followerCache.getOrDefault(userId,
-                new HashSet<Long>()));
+        return toArray(followerCache.get(userId));
+    }
+
+    /**
+     * Returns the version of the given user's friends. Read it before the
+     * friends themselves: a set read afterwards is at least as new.
+     */
+    public long getFriendsVersion(long userId) {
+        return friendVersions.getOrDefault(userId, 0L);
+    }
+
+    /**
+     * Returns the version of the given user's followers. See
+     * {@link #getFriendsVersion(long)}.
+     */
+    public long getFollowersVersion(long userId) {
+        return followerVersions.getOrDefault(userId, 0L);
     }
 
     /**
@@ -97,9 +127,9 @@ public class FriendshipData {
      * @param friendId
      * @throws IOException if unable to add friend
      */
-    public void addFriend(Long userId, Long friendId) throws IOException {
+    public synchronized void addFriend(Long userId, Long friendId) throws IOException {
         Logger.log(friendId + " is now " + userId + "'s friend");
-        if (friendCache.containsKey(userId) && friendCache.get(userId).contains(friendId)) {
+        if (contains(friendCache.get(userId), friendId)) {
             return;
         }
         FriendshipEntry entry = new FriendshipEntry(FriendshipEntry.ACTION_ADD,
@@ -108,6 +138,37 @@ public class FriendshipData {
         updateFriendshipCache(entry);
     }
 
+    /**
+     * Makes every user in friendIds a friend of the user with id userId, e.g.
+     * to import who a user follows. The friendships that are new are written
+     * to disk with one append.
+     * 
+     * @param userId
+     * @param friendIds
+     * @return the number of friendships that were new
+     * @throws IOException if unable to add the friends, in which case none of
+     *             them is added
+     */
+    public synchronized int addFriends(long userId, long[] friendIds) throws IOException {
+        Logger.log("Adding " + friendIds.length + " friends of " + userId);
+        LongHashSet friends = friendCache.get(userId);
+        LongHashSet added = new LongHashSet();
+        List<FriendshipEntry> entries = new ArrayList<FriendshipEntry>();
+        for (long friendId : friendIds) {
+            if (!contains(friends, friendId) && added.add(friendId)) {
+                entries.add(new FriendshipEntry(FriendshipEntry.ACTION_ADD, userId, friendId));
+            }
+        }
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        storage.appendAllToFile(entries);
+        for (FriendshipEntry entry : entries) {
+            updateFriendshipCache(entry);
+        }
+        return entries.size();
+    }
+
     /**
      * After this method is called, the user with id friendId will no longer be
      * a friend of the user with id userId. If there was no friendship here to
@@ -117,9 +178,10 @@ public class FriendshipData {
      * @param friendId
      * @throws IOException if unable to delete friend
      */
-    public void deleteFriend(Long userId, Long friendId) throws IOException {
+    public synchronized void deleteFriend(Long userId, Long friendId) throws IOException {
         Logger.log(friendId + " is no longer " + userId + "'s friend");
-        if (friendCache.containsKey(userId) && !friendCache.get(userId).contains(friendId)) {
+        LongHashSet friends = friendCache.get(userId);
+        if (friends != null && !contains(friends, friendId)) {
             return;
         }
         FriendshipEntry entry = new FriendshipEntry(
@@ -133,19 +195,50 @@ public class FriendshipData {
      */
     private void updateFriendshipCache(FriendshipEntry entry) {
         if (entry.action == FriendshipEntry.ACTION_ADD) {
-            friendCache.putIfAbsent(entry.userId, new HashSet<Long>());
-            friendCache.get(entry.userId).add(entry.friendId);
-            followerCache.putIfAbsent(entry.friendId, new HashSet<Long>());
-            followerCache.get(entry.friendId).add(entry.userId);
+            LongHashSet followingSet = friendCache.computeIfAbsent(entry.userId,
+                    k -> new LongHashSet());
+            synchronized (followingSet) {
+                followingSet.add(entry.friendId);
+            }
+            LongHashSet followerSet = followerCache.computeIfAbsent(entry.friendId,
+                    k -> new LongHashSet());
+            synchronized (followerSet) {
+                followerSet.add(entry.userId);
+            }
         } else {
-            Set<Long> followingSet = friendCache.get(entry.userId);
+            LongHashSet followingSet = friendCache.get(entry.userId);
             if (followingSet != null) {
-                followingSet.remove(entry.friendId);
+                synchronized (followingSet) {
+                    followingSet.remove(entry.friendId);
+                }
             }
-            Set<Long> followerSet = followerCache.get(entry.friendId);
+            LongHashSet followerSet = followerCache.get(entry.friendId);
             if (followerSet != null) {
-                followerSet.remove(entry.userId);
+                synchronized (followerSet) {
+                    followerSet.remove(entry.userId);
+                }
             }
         }
+        // only after the sets, so a version is never newer than they are
+        friendVersions.merge(entry.userId, 1L, Long::sum);
+        followerVersions.merge(entry.friendId, 1L, Long::sum);
+    }
+
+    private static boolean contains(LongHashSet ids, long id) {
+        if (ids == null) {
+            return false;
+        }
+        synchronized (ids) {
+            return ids.contains(id);
+        }
+    }
+
+    private static long[] toArray(LongHashSet ids) {
+        if (ids == null) {
+            return new long[0];
+        }
+        synchronized (ids) {
+            return ids.toArray();
+        }
     }
 }
@@ -1,15 +1,17 @@
 package org.tweeter.data;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.general.data.DataEntry;
 import org.general.json.JSONObject;
 import org.general.json.JSONObject.JSONable;
+import org.general.json.JSONWriter;
 
 /**
  * Represents a body of text a user has chosen to display on their profile.
@@ -56,6 +58,13 @@ public class Status extends DataEntry implements JSONable {
      */
     private String time;
 
+    /**
+     * This status as UTF-8 JSON, once written, if it is kept in the cache of
+     * StatusData. A status in a popular timeline is written many times.
+     */
+    private volatile byte[] json;
+    private boolean keepJson;
+
     /**
      * Max number of characters permitted in a status.
      */
@@ -146,14 +155,54 @@ public class Status extends DataEntry implements JSONable {
      */
     @Override
     public JSONObject toJsonObject() {
-        Map<String, JSONObject> map = new HashMap<>();
+        // the same order as writeFieldsTo
+        Map<String, JSONObject> map = new LinkedHashMap<>();
         map.put("id", new JSONObject(statusId));
-        map.put("user", new JSONObject(userId));
         map.put("text", new JSONObject(text));
         map.put("time", new JSONObject(time));
+        map.put("user", new JSONObject(userId));
         return new JSONObject(map);
     }
 
+    /**
+     * Writes the same text as toJsonObject().toJson() without building the
+     * map, for timelines. A status that keeps its JSON writes it only once
+     * and copies the bytes from then on.
+     */
+    @Override
+    public void writeTo(JSONWriter writer) throws IOException {
+        byte[] bytes = json;
+        if (bytes == null && keepJson) {
+            JSONWriter fragment = new JSONWriter();
+            writeFieldsTo(fragment);
+            json = bytes = fragment.toByteArray();
+        }
+        if (bytes != null) {
+            writer.rawValue(bytes);
+        } else {
+            writeFieldsTo(writer);
+        }
+    }
+
+    private void writeFieldsTo(JSONWriter writer) throws IOException {
+        // the same order as toJsonObject
+        writer.beginObject()
+                .name("id").value(statusId)
+                .name("text").value(text)
+                .name("time").value(time)
+                .name("user").value(userId)
+                .endObject();
+    }
+
+    /**
+     * Makes this status keep its JSON once written. For statuses that stay
+     * in memory; must be called before the status is shared with other
+     * threads.
+     */
+    void keepJson() {
+        keepJson = true;
+    }
+
     @Override
     public void unmarshal(ByteBuffer in) {
         checkValid(in, ENTRY_SIZE);
@@ -3,7 +3,6 @@ package org.tweeter.data;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -11,13 +10,26 @@ import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
 
 import org.general.data.DataStorage;
 import org.general.util.Logger;
+import org.general.util.WorkerPools;
 
 /**
  * Singleton class to query/update status data.
  * 
+ * Safe for concurrent use. Reads are lock-free; updates are serialized because
+ * status ids double as indices into the storage file.
+ * 
+ * Statuses that fell out of the cache are read from disk. The asynchronous
+ * getters do those reads on a small pool of their own, so a thread serving
+ * requests need not wait for the disk.
+ * 
  * @author Guoxing Li
  *
  */
@@ -25,15 +37,21 @@ public class StatusData {
 
     private static final String FILE_NAME = "status.db";
     private static final int STATUS_CACHE_SIZE = 1_000;
+    private static final int STORAGE_READ_THREADS = 4;
 
     // persistent storage
     private DataStorage<Status> storage;
     // the current maximum id
-    private long maxStatusId;
-    // caches most recent statuses, statusId -> status
+    private volatile long maxStatusId;
+    // caches most recent statuses, statusId -> status. Each keeps its JSON
+    // once written, on the Status itself, so at most STATUS_CACHE_SIZE
+    // fragments of at most 2 KB each are kept
     private Map<Long, Status> statusCache;
     // caches all status ownership information, userId -> set of statusId
     private Map<Long, NavigableSet<Long>> ownershipCache;
+    // reads statuses that are not cached for the asynchronous getters
+    private final ExecutorService storageReads = WorkerPools.fixed("tweeter-storage",
+            STORAGE_READ_THREADS);
 
     private static StatusData statusData;
 
@@ -45,19 +63,20 @@ public class StatusData {
                 Status.ENTRY_SIZE);
         maxStatusId = -1;
         // warm up cache
-        statusCache = new HashMap<Long, Status>();
-        ownershipCache = new HashMap<Long, NavigableSet<Long>>();
+        statusCache = new ConcurrentHashMap<Long, Status>();
+        ownershipCache = new ConcurrentHashMap<Long, NavigableSet<Long>>();
         DataStorage<Status>.EntryReader reader = storage.new EntryReader(true);
         Status entry;
         while ((entry = reader.readPrevious()) != null) {
             if (statusCache.size() < STATUS_CACHE_SIZE) {
+                entry.keepJson();
                 statusCache.put(entry.getStatusId(), entry);
                 if (entry.getStatusId() > maxStatusId) {
                     maxStatusId = entry.getStatusId();
                 }
             }
-            ownershipCache.putIfAbsent(entry.getUserId(), new TreeSet<Long>());
-            ownershipCache.get(entry.getUserId()).add(entry.getStatusId());
+            ownershipCache.computeIfAbsent(entry.getUserId(), k -> new ConcurrentSkipListSet<Long>())
+                    .add(entry.getStatusId());
         }
         reader.close();
     }
@@ -68,7 +87,7 @@ public class StatusData {
      * @return An instance of StatusData
      * @throws IOException on instantiation error
      */
-    public static StatusData getInstance() throws IOException {
+    public static synchronized StatusData getInstance() throws IOException {
         if (statusData == null) {
             statusData = new StatusData();
         }
@@ -85,9 +104,52 @@ public class StatusData {
      *            status text
      * @throws IOException if unable to update status
      */
-    public void updateStatus(long userId, String text) throws IOException {
+    public synchronized void updateStatus(long userId, String text) throws IOException {
+        Status status = new Status(maxStatusId + 1, userId, text, new Date());
+        // write to disk before publishing, so that concurrent readers never
+        // see an id that cannot be read back from storage
+        storage.appendToFile(status);
+        publish(status);
+    }
+
+    /**
+     * Creates many statuses at once, e.g. for importers. The statuses get
+     * consecutive ids in the given order and are written to disk with one
+     * append.
+     * 
+     * @param userIds
+     *            user id of the owner of each status
+     * @param texts
+     *            text of each status
+     * @return the id of the first status; the others follow it
+     * @throws IOException if unable to update the statuses, in which case
+     *             none of them is published
+     */
+    public synchronized long updateStatuses(List<Long> userIds, List<String> texts) throws IOException {
+        if (userIds.size() != texts.size()) {
+            throw new IllegalArgumentException("Each status needs a user id. Was: "
+                    + userIds.size() + " user ids for " + texts.size() + " statuses");
+        }
+        long firstId = maxStatusId + 1;
+        Date time = new Date();
+        List<Status> statuses = new ArrayList<Status>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            statuses.add(new Status(firstId + i, userIds.get(i), texts.get(i), time));
+        }
+        storage.appendAllToFile(statuses);
+        for (Status status : statuses) {
+            publish(status);
+        }
+        return firstId;
+    }
+
+    /**
+     * Makes a status that was written to disk visible to readers. The caller
+     * holds the lock of this object.
+     */
+    private void publish(Status status) {
         maxStatusId++;
-        Status status = new Status(maxStatusId, userId, text, new Date());
+
         // evict older status in cache if cache is full
         if (statusCache.size() >= STATUS_CACHE_SIZE) {
             long evictId = maxStatusId - STATUS_CACHE_SIZE;
@@ -97,12 +159,10 @@ public class StatusData {
                         + evictId);
             }
         }
+        status.keepJson();
         statusCache.put(maxStatusId, status);
-        ownershipCache.putIfAbsent(userId, new TreeSet<Long>());
-        ownershipCache.get(userId).add(status.getStatusId());
-
-        // write to disk
-        storage.appendToFile(status);
+        ownershipCache.computeIfAbsent(status.getUserId(), k -> new ConcurrentSkipListSet<Long>())
+                .add(status.getStatusId());
     }
 
     /**
@@ -144,6 +204,37 @@ public class StatusData {
      */
     public List<Status> getStatusesOnUserIds(Set<Long> userIds,
             long numStatuses, long maxId) throws IOException {
+        return getStatuses(getNewestStatusIds(userIds, numStatuses, maxId));
+    }
+
+    /**
+     * Like {@link #getStatusesOnUserIds(Set, long, long)}, but statuses that
+     * are not cached are read on the storage pool. Completes right away if
+     * all of them are cached. Completes exceptionally with an IOException if
+     * cannot get statuses.
+     */
+    public CompletableFuture<List<Status>> getStatusesOnUserIdsAsync(Set<Long> userIds,
+            long numStatuses, long maxId) {
+        return getStatusesAsync(getNewestStatusIds(userIds, numStatuses, maxId));
+    }
+
+    /**
+     * Asynchronous {@link #getStatusesOnUserId(long, long, long)}. See
+     * {@link #getStatusesOnUserIdsAsync(Set, long, long)}.
+     */
+    public CompletableFuture<List<Status>> getStatusesOnUserIdAsync(long userId,
+            long numStatuses, long maxId) {
+        Set<Long> userIds = new HashSet<Long>();
+        userIds.add(userId);
+        return getStatusesOnUserIdsAsync(userIds, numStatuses, maxId);
+    }
+
+    /**
+     * Returns the ids of the #numStatuses newest statuses owned by the given
+     * users with ids no larger than maxId, in natural order.
+     */
+    private NavigableSet<Long> getNewestStatusIds(Set<Long> userIds,
+            long numStatuses, long maxId) {
         Set<Long> userIdsWithStatus = new HashSet<Long>();
         for (long userId : userIds) {
             if (ownershipCache.get(userId) != null) {
@@ -162,7 +253,93 @@ public class StatusData {
         while (iter.hasNext() && result.size() < numStatuses) {
             result.add(iter.next());
         }
-        return getStatuses(result);
+        return result;
+    }
+
+    /**
+     * Gets the given statuses on this thread if they are all cached, or on
+     * the storage pool otherwise.
+     */
+    private CompletableFuture<List<Status>> getStatusesAsync(NavigableSet<Long> statusIds) {
+        boolean cached = true;
+        for (long statusId : statusIds) {
+            if (!statusCache.containsKey(statusId)) {
+                cached = false;
+                break;
+            }
+        }
+        if (!cached) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return getStatuses(statusIds);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, storageReads);
+        }
+        CompletableFuture<List<Status>> statuses = new CompletableFuture<>();
+        try {
+            statuses.complete(getStatuses(statusIds));
+        } catch (IOException | RuntimeException e) {
+            // evicted meanwhile and unreadable
+            statuses.completeExceptionally(e);
+        }
+        return statuses;
+    }
+
+    /**
+     * Whether a status with the given id exists.
+     */
+    public boolean hasStatus(long statusId) {
+        return statusId >= 0 && statusId <= maxStatusId;
+    }
+
+    /**
+     * Get the status with the given id.
+     * 
+     * @return The status, or null if there is no status with this id
+     * @throws IOException if cannot get the status
+     */
+    public Status getStatus(long statusId) throws IOException {
+        if (!hasStatus(statusId)) {
+            return null;
+        }
+        NavigableSet<Long> statusIds = new TreeSet<Long>();
+        statusIds.add(statusId);
+        return getStatuses(statusIds).get(0);
+    }
+
+    /**
+     * Asynchronous {@link #getStatus(long)}. See
+     * {@link #getStatusesOnUserIdsAsync(Set, long, long)}.
+     */
+    public CompletableFuture<Status> getStatusAsync(long statusId) {
+        if (!hasStatus(statusId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        NavigableSet<Long> statusIds = new TreeSet<Long>();
+        statusIds.add(statusId);
+        return getStatusesAsync(statusIds).thenApply(statuses -> statuses.get(0));
+    }
+
+    /**
+     * Returns the id of the newest status owned by any of the given users
+     * with an id no larger than maxId, or -1 if there is none. Statuses are
+     * never changed or removed, so this tells whether any timeline of these
+     * users has changed without reading a single status.
+     */
+    public long getNewestStatusId(Set<Long> userIds, long maxId) {
+        long newest = -1;
+        for (long userId : userIds) {
+            NavigableSet<Long> statusIds = ownershipCache.get(userId);
+            if (statusIds != null) {
+                Long statusId = statusIds.floor(maxId);
+                if (statusId != null && statusId > newest) {
+                    newest = statusId;
+                }
+            }
+        }
+        return newest;
     }
 
     /**
@@ -183,25 +360,33 @@ public class StatusData {
         Iterator<Long> iter = statusIds.descendingIterator();
         long currentStatusId = -1;
         Status status;
-        DataStorage<Status>.EntryReader reader = storage.new EntryReader();
-        while (iter.hasNext()) {
-            currentStatusId = iter.next();
-            status = statusCache.get(currentStatusId);
-            if (status == null) {
-                // fetch older statuses from persistent storage
-                // assumes the n'th entry has id (n-1)
-                status = reader.readAt(currentStatusId);
+        // only opened once a status is not cached
+        DataStorage<Status>.EntryReader reader = null;
+        try {
+            while (iter.hasNext()) {
+                currentStatusId = iter.next();
+                status = statusCache.get(currentStatusId);
                 if (status == null) {
-                    reader.close();
-                    throw new IllegalArgumentException(
-                            "StatusId out of range. Received id: "
-                                    + currentStatusId + " . Range: [0, "
-                                    + maxStatusId + "].");
+                    // fetch older statuses from persistent storage
+                    // assumes the n'th entry has id (n-1)
+                    if (reader == null) {
+                        reader = storage.new EntryReader();
+                    }
+                    status = reader.readAt(currentStatusId);
+                    if (status == null) {
+                        throw new IllegalArgumentException(
+                                "StatusId out of range. Received id: "
+                                        + currentStatusId + " . Range: [0, "
+                                        + maxStatusId + "].");
+                    }
                 }
+                result.add(status);
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
             }
-            result.add(status);
         }
-        reader.close();
         return result;
     }
 
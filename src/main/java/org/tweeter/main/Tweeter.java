@@ -1,24 +1,37 @@
 package org.tweeter.main;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOError;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
 
 import org.general.data.DataStorage;
+import org.general.http.ConcurrencyLimiter;
 import org.general.http.HTTPRequest;
+import org.general.http.HTTPRequest.InvalidHttpFormattingException;
 import org.general.http.HTTPResponse;
 import org.general.http.HTTPResponse.StatusCode;
 import org.general.http.HTTPServer;
 import org.general.http.HTTPServer.HttpServerException;
+import org.general.http.ResponseCache;
+import org.general.http.Router;
+import org.general.http.ServerConfig;
 import org.general.http.InvalidHttpParametersException;
 import org.general.json.JSONObject;
+import org.general.json.JSONWriter;
 import org.general.util.Logger;
 import org.general.util.Pair;
+import org.general.util.WorkerPools;
 import org.tweeter.controllers.FriendshipsController;
 import org.tweeter.controllers.StatusesController;
 
@@ -32,29 +45,72 @@ public class Tweeter {
     // Default fields for http specific to Tweeter
     private static final String DEFAULT_SERVER_NAME = "Tweeter/1.0";
     private static int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_WORKER_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    private static final String EXECUTOR_POOL = "pool";
+    private static final String EXECUTOR_VIRTUAL = "virtual";
+    private static final String TRANSPORT_BLOCKING = "blocking";
+    private static final String TRANSPORT_NIO = "nio";
     private static final String DEFAULT_RESPONSE_VERSION = "HTTP/1.1";
     private static final String DEFAULT_RESPONSE_CONTENT_TYPE = "application/json;charset=UTF-8";
-    private static final DateFormat RESPONSE_DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+    private static final int DEFAULT_DRAIN_SECONDS = 10;
+    private static final String HEADER_ETAG_KEY = "ETag";
+    private static final CompletableFuture<Void> RESPONDED = CompletableFuture.completedFuture(null);
+    private static final String ADMIN_SERVER_NAME = "Tweeter-admin/1.0";
+    private static final int ADMIN_THREADS = 2;
+    private static final String BATCH_PATH = "/batch";
+    private static final String BATCH_REQUEST_PARAM = "request";
+    private static final int MAX_BATCH_REQUESTS = 20;
+    private static final int DEFAULT_RESPONSE_CACHE_MB = 32;
     
     /**
-     * Map from an API endpoint path to its respective HTTP method and the controller method that is called
-     * to handle this endpoint.
+     * Routes an API endpoint path and HTTP method to the controller method that is called to handle
+     * this endpoint, and, for endpoints that answer conditional requests with 304 Not Modified, the
+     * method that computes the ETag of its response (null otherwise).
      */
-    private static Map<String, Pair<HTTPRequest.Method, ControllerMethod>> routerMap = new HashMap<>();
+    private static Router<Pair<AsyncControllerMethod, TagMethod>> router = new Router<>();
+    /**
+     * Where responses of asynchronous controllers are written once their data is read, instead of
+     * on the storage thread that read it. Null to write them on that thread, for the blocking
+     * transport, whose threads wait for the response anyway.
+     */
+    private static ExecutorService responseExecutor;
+    /**
+     * Serialized responses of the endpoints that have an ETag, so that a popular timeline or id list
+     * is only built once per version of its data. Null if turned off.
+     */
+    private static ResponseCache<List<String>> responseCache;
+    /**
+     * Runs the sub-requests of batches, so that they run in parallel with each other.
+     */
+    private static final ExecutorService batchExecutor = WorkerPools.fixed("tweeter-batch",
+            Runtime.getRuntime().availableProcessors());
     /**
      * To add a new API endpoint:
-     * 1. Define a method in a controller that takes in an HTTPRequest and returns a JSONObject
-     * 2. Add a route using addRoute in the static initializer, specifying the http method, path
-     *    and the controller method you created.
+     * 1. Define a method in a controller that takes in an HTTPRequest and returns a JSONObject, or a
+     *    CompletableFuture of one if it waits for the disk
+     * 2. Add a route using addRoute (or addAsyncRoute) in the static initializer, specifying the
+     *    http method, path and the controller method you created. A path segment may hold a param,
+     *    as in /statuses/show/{id}.json, which the controller reads like any other param.
+     * 3. Optionally, for a GET endpoint that clients poll, define a method that cheaply computes
+     *    a tag that changes whenever the response does, and pass it to addRoute as well.
      */
     static {
         addRoute(HTTPRequest.Method.POST, "/statuses/update",            StatusesController::updateStatus);
-        addRoute(HTTPRequest.Method.GET,  "/statuses/home_timeline.json",StatusesController::getHomeTimeline);
-        addRoute(HTTPRequest.Method.GET,  "/statuses/user_timeline.json",StatusesController::getUserTimeline);
-        addRoute(HTTPRequest.Method.GET,  "/friends/ids.json",           FriendshipsController::getFriends);
-        addRoute(HTTPRequest.Method.GET,  "/followers/ids.json",         FriendshipsController::getFollowers);
+        addRoute(HTTPRequest.Method.POST, "/statuses/update_batch",      StatusesController::updateStatuses);
+        addAsyncRoute(HTTPRequest.Method.GET, "/statuses/home_timeline.json",
+                StatusesController::getHomeTimeline, StatusesController::getHomeTimelineTag);
+        addAsyncRoute(HTTPRequest.Method.GET, "/statuses/user_timeline.json",
+                StatusesController::getUserTimeline, StatusesController::getUserTimelineTag);
+        addAsyncRoute(HTTPRequest.Method.GET, "/statuses/show/{id}.json",
+                StatusesController::getStatus, StatusesController::getStatusTag);
+        addRoute(HTTPRequest.Method.GET,  "/friends/ids.json",           FriendshipsController::getFriends,
+                FriendshipsController::getFriendsTag);
+        addRoute(HTTPRequest.Method.GET,  "/followers/ids.json",         FriendshipsController::getFollowers,
+                FriendshipsController::getFollowersTag);
         addRoute(HTTPRequest.Method.POST, "/friendships/destroy",        FriendshipsController::deleteFriendship);
         addRoute(HTTPRequest.Method.POST, "/friendships/create",         FriendshipsController::createFriendship);
+        addRoute(HTTPRequest.Method.POST, "/friendships/create_batch",   FriendshipsController::createFriendships);
+        addAsyncRoute(HTTPRequest.Method.POST, BATCH_PATH, Tweeter::batch, null);
     }
 
     /**
@@ -65,6 +121,21 @@ public class Tweeter {
     public static void main(String[] args) {
         // Parse arg options
         Integer port = DEFAULT_PORT;
+        Integer threads = DEFAULT_WORKER_THREADS;
+        String executorType = EXECUTOR_POOL;
+        String transport = TRANSPORT_BLOCKING;
+        Integer eventLoops = null;
+        Integer compressMin = null;
+        Integer compressLevel = null;
+        Integer concurrency = null;
+        Integer maxConcurrency = null;
+        Integer queue = null;
+        Integer drainSeconds = DEFAULT_DRAIN_SECONDS;
+        Integer acceptors = null;
+        boolean reusePort = false;
+        boolean http2 = false;
+        Integer adminPort = null;
+        Integer responseCacheMB = DEFAULT_RESPONSE_CACHE_MB;
         for (int i = 0; i < args.length; i += 2) {
             if (args[i].equals("-port") && i + 1 < args.length) {
                 String portAsStr = args[i + 1];
@@ -78,24 +149,367 @@ public class Tweeter {
             if (args[i].equals("-workspace") && i + 1 < args.length) {
                 DataStorage.setPathToWorkspace(args[i + 1] + "/");
             }
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                String threadsAsStr = args[i + 1];
+                try {
+                    threads = Integer.parseInt(threadsAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Threads must be a number. Invalid value given: " + threadsAsStr);
+                    return;
+                }
+                if (threads <= 0) {
+                    System.out.println("Threads must be positive. Invalid value given: " + threadsAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-executor") && i + 1 < args.length) {
+                executorType = args[i + 1];
+                if (!executorType.equals(EXECUTOR_POOL) && !executorType.equals(EXECUTOR_VIRTUAL)) {
+                    System.out.println("Executor must be " + EXECUTOR_POOL + " or " + EXECUTOR_VIRTUAL
+                            + ". Invalid value given: " + executorType);
+                    return;
+                }
+            }
+            if (args[i].equals("-transport") && i + 1 < args.length) {
+                transport = args[i + 1];
+                if (!transport.equals(TRANSPORT_BLOCKING) && !transport.equals(TRANSPORT_NIO)) {
+                    System.out.println("Transport must be " + TRANSPORT_BLOCKING + " or " + TRANSPORT_NIO
+                            + ". Invalid value given: " + transport);
+                    return;
+                }
+            }
+            if (args[i].equals("-eventloops") && i + 1 < args.length) {
+                String eventLoopsAsStr = args[i + 1];
+                try {
+                    eventLoops = Integer.parseInt(eventLoopsAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Event loops must be a number. Invalid value given: " + eventLoopsAsStr);
+                    return;
+                }
+                if (eventLoops <= 0) {
+                    System.out.println("Event loops must be positive. Invalid value given: " + eventLoopsAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-compressmin") && i + 1 < args.length) {
+                String compressMinAsStr = args[i + 1];
+                try {
+                    compressMin = Integer.parseInt(compressMinAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Compression threshold must be a number. Invalid value given: "
+                            + compressMinAsStr);
+                    return;
+                }
+                if (compressMin < 0) {
+                    System.out.println("Compression threshold must not be negative. Invalid value given: "
+                            + compressMinAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-compresslevel") && i + 1 < args.length) {
+                String compressLevelAsStr = args[i + 1];
+                try {
+                    compressLevel = Integer.parseInt(compressLevelAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Compression level must be a number. Invalid value given: "
+                            + compressLevelAsStr);
+                    return;
+                }
+                if (compressLevel < 0 || compressLevel > 9) {
+                    System.out.println("Compression level must be between 0 and 9. Invalid value given: "
+                            + compressLevelAsStr);
+                    return;
+                }
+            }
+            if ((args[i].equals("-concurrency") || args[i].equals("-maxconcurrency")) && i + 1 < args.length) {
+                String concurrencyAsStr = args[i + 1];
+                Integer value;
+                try {
+                    value = Integer.parseInt(concurrencyAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Concurrency limit must be a number. Invalid value given: "
+                            + concurrencyAsStr);
+                    return;
+                }
+                if (value <= 0) {
+                    System.out.println("Concurrency limit must be positive. Invalid value given: "
+                            + concurrencyAsStr);
+                    return;
+                }
+                if (args[i].equals("-concurrency")) {
+                    concurrency = value;
+                } else {
+                    maxConcurrency = value;
+                }
+            }
+            if (args[i].equals("-queue") && i + 1 < args.length) {
+                String queueAsStr = args[i + 1];
+                try {
+                    queue = Integer.parseInt(queueAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Queue size must be a number. Invalid value given: " + queueAsStr);
+                    return;
+                }
+                if (queue < 0) {
+                    System.out.println("Queue size must not be negative. Invalid value given: " + queueAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-drain") && i + 1 < args.length) {
+                String drainAsStr = args[i + 1];
+                try {
+                    drainSeconds = Integer.parseInt(drainAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Drain timeout must be a number. Invalid value given: " + drainAsStr);
+                    return;
+                }
+                if (drainSeconds < 0) {
+                    System.out.println("Drain timeout must not be negative. Invalid value given: " + drainAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-acceptors") && i + 1 < args.length) {
+                String acceptorsAsStr = args[i + 1];
+                try {
+                    acceptors = Integer.parseInt(acceptorsAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Acceptors must be a number. Invalid value given: " + acceptorsAsStr);
+                    return;
+                }
+                if (acceptors <= 0) {
+                    System.out.println("Acceptors must be positive. Invalid value given: " + acceptorsAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-reuseport") && i + 1 < args.length) {
+                reusePort = Boolean.parseBoolean(args[i + 1]);
+            }
+            if (args[i].equals("-http2") && i + 1 < args.length) {
+                http2 = Boolean.parseBoolean(args[i + 1]);
+            }
+            if (args[i].equals("-adminport") && i + 1 < args.length) {
+                String adminPortAsStr = args[i + 1];
+                try {
+                    adminPort = Integer.parseInt(adminPortAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Admin port must be a number. Invalid value given: " + adminPortAsStr);
+                    return;
+                }
+            }
+            if (args[i].equals("-responsecache") && i + 1 < args.length) {
+                String responseCacheAsStr = args[i + 1];
+                try {
+                    responseCacheMB = Integer.parseInt(responseCacheAsStr);
+                } catch (NumberFormatException e) {
+                    System.out.println("Response cache size must be a number. Invalid value given: "
+                            + responseCacheAsStr);
+                    return;
+                }
+                if (responseCacheMB < 0) {
+                    System.out.println("Response cache size must not be negative. Invalid value given: "
+                            + responseCacheAsStr);
+                    return;
+                }
+            }
             if (args[i].equals("-help")) {
                 System.out.println("-port\n\tport that will listen for requests to Tweeter. Default: 8080\n"
-                        + "-workspace\n\tpath to files used for data storage. Default: .\n");
+                        + "-workspace\n\tpath to files used for data storage. Default: .\n"
+                        + "-executor\n\thow requests are run: pool (fixed pool of platform threads) or "
+                        + "virtual (one virtual thread per connection, newer JDKs only). Default: pool\n"
+                        + "-threads\n\tnumber of threads in the pool. Default: " + DEFAULT_WORKER_THREADS + "\n"
+                        + "-transport\n\thow connections are served: blocking (a thread per open connection) or "
+                        + "nio (selector event loops, threads only while handling a request). Default: blocking\n"
+                        + "-eventloops\n\tnumber of event loop threads of the nio transport. Default: number of "
+                        + "processors\n"
+                        + "-compressmin\n\tsmallest response body in bytes that is gzip/deflate compressed for "
+                        + "clients that accept it. Default: 1024\n"
+                        + "-compresslevel\n\tcompression level from 1 (fastest) to 9 (smallest), 0 to turn "
+                        + "compression off. Default: 6\n"
+                        + "-concurrency\n\tnumber of requests handled at once to begin with; adapts to latency "
+                        + "up to -maxconcurrency. Default: 32\n"
+                        + "-maxconcurrency\n\tmost requests handled at once. Same as -concurrency for a fixed "
+                        + "limit. Default: 512, or -concurrency if that is larger\n"
+                        + "-queue\n\tnumber of requests that may wait for the concurrency limit before "
+                        + "requests are answered with 503. Default: 256\n"
+                        + "-drain\n\tseconds that requests in flight may take to finish when the server is "
+                        + "stopped (SIGTERM or Ctrl-C). Default: " + DEFAULT_DRAIN_SECONDS + "\n"
+                        + "-acceptors\n\tnumber of threads accepting connections. Default: 1\n"
+                        + "-reuseport\n\ttrue to give every acceptor its own socket with SO_REUSEPORT, where "
+                        + "the JDK and platform support it. Default: false\n"
+                        + "-http2\n\ttrue to also serve HTTP/2 over cleartext (prior knowledge or Upgrade: h2c) "
+                        + "with the blocking transport. Default: false\n"
+                        + "-adminport\n\tport serving GET /stats with its own " + ADMIN_THREADS + " threads, so "
+                        + "that it answers while the API port is overloaded. Default: none\n"
+                        + "-responsecache\n\tmegabytes of serialized timelines and id lists kept to answer "
+                        + "repeated requests, 0 to turn caching off. Default: " + DEFAULT_RESPONSE_CACHE_MB + "\n");
                 return;
             }
         }
         
         HTTPServer server = null;
+        HTTPServer admin = null;
         try {
-            server = new HTTPServer(DEFAULT_SERVER_NAME, port, Tweeter::handle);
+            ExecutorService executor = createExecutor(executorType, threads);
+            ServerConfig config = new ServerConfig(DEFAULT_SERVER_NAME, port)
+                    .setExecutor(executor)
+                    .setTransport(transport.equals(TRANSPORT_NIO)
+                            ? ServerConfig.Transport.NIO : ServerConfig.Transport.BLOCKING);
+            if (transport.equals(TRANSPORT_NIO)) {
+                responseExecutor = executor;
+            }
+            if (eventLoops != null) {
+                config.setEventLoops(eventLoops);
+            }
+            if (compressMin != null) {
+                config.setCompressionThreshold(compressMin);
+            }
+            if (compressLevel != null) {
+                config.setCompressionLevel(compressLevel);
+            }
+            if (concurrency != null || maxConcurrency != null) {
+                int max = maxConcurrency != null ? maxConcurrency
+                        : Math.max(concurrency, config.getMaxConcurrencyLimit());
+                int initial = concurrency != null ? concurrency
+                        : Math.min(max, config.getConcurrencyLimit());
+                if (max < initial) {
+                    System.out.println("Max concurrency must be at least " + initial + ". Invalid value given: "
+                            + max);
+                    return;
+                }
+                config.setConcurrencyLimit(initial, max);
+            }
+            if (queue != null) {
+                config.setMaxQueuedRequests(queue);
+            }
+            if (acceptors != null) {
+                config.setAcceptors(acceptors);
+            }
+            config.setReusePort(reusePort);
+            config.setHttp2(http2);
+            if (responseCacheMB > 0) {
+                responseCache = new ResponseCache<>(responseCacheMB * 1024L * 1024L);
+            }
+            server = new HTTPServer(config, Tweeter::handle);
+            if (adminPort != null) {
+                admin = startAdminServer(adminPort, server);
+            }
+            addShutdownHook(server, admin, drainSeconds * 1000);
+            server.serve();
         } catch (HttpServerException | IOError e) {
             e.printStackTrace();
+            if (server != null) {
+                try {
+                    server.shutdown();
+                } catch (IOException unableToShutdown) {
+                    unableToShutdown.printStackTrace();
+                }
+            }
+            if (admin != null) {
+                try {
+                    admin.shutdown();
+                } catch (IOException unableToShutdown) {
+                    unableToShutdown.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a server on the given port that reports the load of the API
+     * server. It has its own few threads and no admission limit to speak of,
+     * so it keeps answering while the API server sheds requests.
+     */
+    private static HTTPServer startAdminServer(int adminPort, HTTPServer server)
+            throws HttpServerException {
+        ServerConfig config = new ServerConfig(ADMIN_SERVER_NAME, adminPort)
+                .setExecutor(WorkerPools.fixed("tweeter-admin", ADMIN_THREADS))
+                .setConcurrencyLimit(ADMIN_THREADS, ADMIN_THREADS);
+        HTTPServer admin = new HTTPServer(config,
+                (HTTPRequest req, HTTPResponse res) -> handleAdmin(server, req, res));
+        Thread thread = new Thread(() -> {
             try {
-                server.shutdown();
-            } catch (IOException unableToShutdown) {
-                unableToShutdown.printStackTrace();
+                admin.serve();
+            } catch (HttpServerException e) {
+                e.printStackTrace();
             }
+        }, "tweeter-admin-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+        return admin;
+    }
+
+    /**
+     * Answers GET /stats on the admin port with the API server's connection
+     * and concurrency limiter counters.
+     */
+    private static void handleAdmin(HTTPServer server, HTTPRequest httpReq, HTTPResponse httpRes) {
+        httpRes.setDefaults(DEFAULT_RESPONSE_VERSION, DEFAULT_RESPONSE_CONTENT_TYPE);
+        if (!httpReq.getURI().equals("/stats")) {
+            respondWithJSONError(StatusCode.NOT_FOUND, httpReq.getURI() + " is not a valid admin endpoint", httpRes);
+            return;
+        }
+        if (httpReq.getMethod() != HTTPRequest.Method.GET) {
+            respondWithJSONError(StatusCode.BAD_REQUEST, "Invalid HTTP Method for path: /stats. Should be GET "
+                    + "instead of " + httpReq.getMethod(), httpRes);
+            return;
         }
+        ConcurrencyLimiter limiter = server.getLimiter();
+        Map<String, JSONObject> stats = new HashMap<>();
+        stats.put("open_connections", new JSONObject(server.getOpenConnections()));
+        stats.put("in_flight", new JSONObject(limiter.getInFlight()));
+        stats.put("queued", new JSONObject(limiter.getQueued()));
+        stats.put("concurrency_limit", new JSONObject(limiter.getLimit()));
+        stats.put("admitted", new JSONObject(limiter.getAdmittedCount()));
+        stats.put("shed", new JSONObject(limiter.getShedCount()));
+        stats.put("draining", new JSONObject(server.isDraining() ? 1 : 0));
+        if (responseCache != null) {
+            stats.put("response_cache_hits", new JSONObject(responseCache.getHitCount()));
+            stats.put("response_cache_misses", new JSONObject(responseCache.getMissCount()));
+            stats.put("response_cache_bytes", new JSONObject(responseCache.getSize()));
+        }
+        httpRes.send(StatusCode.OK, new JSONObject(stats).toJsonBytes());
+    }
+
+    /**
+     * Drains the server when the JVM is asked to stop, e.g. by SIGTERM during
+     * a deploy or by Ctrl-C, so that requests in flight are answered and their
+     * appends reach the disk before the process exits.
+     */
+    private static void addShutdownHook(HTTPServer server, HTTPServer admin, int drainTimeout) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.drain(drainTimeout);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (admin != null) {
+                try {
+                    admin.shutdown();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                DataStorage.closeAll();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "tweeter-shutdown"));
+    }
+
+    /**
+     * Returns the executor that the server runs connections on. Falls back to
+     * a pool of platform threads if virtual threads are unavailable.
+     */
+    private static ExecutorService createExecutor(String executorType, int threads) {
+        if (executorType.equals(EXECUTOR_VIRTUAL)) {
+            try {
+                return WorkerPools.virtual();
+            } catch (UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + ". Using a pool of " + threads + " threads instead.");
+            }
+        }
+        return WorkerPools.fixed("tweeter-worker", threads);
     }
 
     /**
@@ -106,50 +520,312 @@ public class Tweeter {
      *            HTTP Request to route
      * @param httpRes
      *            HTTP Response that the JSON response is sent over
+     * @return a future that completes once the response is sent
      */
-    private static void handle(HTTPRequest httpReq, HTTPResponse httpRes) {
-        httpRes.setDefaults(DEFAULT_RESPONSE_VERSION, DEFAULT_RESPONSE_CONTENT_TYPE, RESPONSE_DATE_FORMAT,
-                TimeZone.getTimeZone("GMT"), new Date());
+    private static CompletableFuture<?> handle(HTTPRequest httpReq, HTTPResponse httpRes) {
+        httpRes.setDefaults(DEFAULT_RESPONSE_VERSION, DEFAULT_RESPONSE_CONTENT_TYPE);
+        Pair<AsyncControllerMethod, TagMethod> endpoint;
+        try {
+            endpoint = route(httpReq);
+        } catch (RouteException e) {
+            respondWithJSONError(e.getStatusCode(), e.getMessage(), httpRes);
+            return RESPONDED;
+        }
+        
+        CompletableFuture<JSONObject> response;
+        String etag = null;
+        List<String> cacheKey = null;
+        try {
+            // the tag comes first, so that the response is at least as new as it
+            TagMethod tagMethod = endpoint.getSecond();
+            if (tagMethod != null) {
+                // weak, since the body may be compressed differently
+                etag = "W/\"" + tagMethod.tag(httpReq) + "\"";
+                if (httpReq.matchesIfNoneMatch(etag)) {
+                    httpRes.setHeader(HEADER_ETAG_KEY, etag);
+                    httpRes.send(StatusCode.NOT_MODIFIED, (byte[]) null);
+                    return RESPONDED;
+                }
+            }
+            if (etag != null && responseCache != null) {
+                cacheKey = cacheKey(httpReq);
+                byte[] cached = responseCache.get(cacheKey, etag);
+                if (cached != null) {
+                    httpRes.setHeader(HEADER_ETAG_KEY, etag);
+                    httpRes.send(StatusCode.OK, cached);
+                    return RESPONDED;
+                }
+            }
+            response = endpoint.getFirst().respond(httpReq);
+        } catch (InvalidHttpParametersException | IOException e) {
+            response = failed(e);
+        }
+        String responseETag = etag;
+        List<String> responseCacheKey = cacheKey;
+        BiFunction<JSONObject, Throwable, Void> respond = (json, failure) -> {
+            if (failure != null) {
+                respondWithFailure(failure, httpRes);
+            } else {
+                respondWithJSON(json, responseETag, responseCacheKey, httpRes);
+            }
+            return null;
+        };
+        if (response.isDone() || responseExecutor == null) {
+            return response.handle(respond);
+        }
+        // don't hold the thread that read the data while the response is written
+        return response.handleAsync(respond, responseExecutor);
+    }
+
+    /**
+     * Returns the key that the response to the given request is cached under: its path followed by
+     * its params, sorted by key, so that the order of the params in the request doesn't matter.
+     */
+    private static List<String> cacheKey(HTTPRequest httpReq) {
+        Map<String, String> params = new TreeMap<>(httpReq.getParams());
+        List<String> key = new ArrayList<>(1 + 2 * params.size());
+        key.add(httpReq.getURI());
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            key.add(param.getKey());
+            key.add(param.getValue());
+        }
+        return key;
+    }
+
+    /**
+     * Finds the endpoint of the given request, and sets the params in its path.
+     * 
+     * @throws RouteException
+     *             if no endpoint takes the path and method of the request
+     */
+    private static Pair<AsyncControllerMethod, TagMethod> route(HTTPRequest httpReq) throws RouteException {
         String reqURI = httpReq.getURI();
         HTTPRequest.Method httpMethod = httpReq.getMethod();
         Logger.log(httpMethod + " " + reqURI);
         
-        if (!routerMap.containsKey(reqURI)) {
-            respondWithJSONError(HTTPResponse.StatusCode.NOT_FOUND , reqURI + " is not a valid API endpoint", httpRes);
-            return;
+        Router.Route<Pair<AsyncControllerMethod, TagMethod>> route = router.find(reqURI);
+        if (route == null) {
+            throw new RouteException(StatusCode.NOT_FOUND, reqURI + " is not a valid API endpoint");
         }
-        if (routerMap.get(reqURI).getFirst() != httpMethod) {
+        Pair<AsyncControllerMethod, TagMethod> endpoint = route.getHandler(httpMethod);
+        if (endpoint == null) {
             // If we reach here, we know path is valid, so this must mean only the HTTP method is invalid.
-            respondWithJSONError(HTTPResponse.StatusCode.BAD_REQUEST, "Invalid HTTP Method for path: "
-                    + reqURI + ". Should be "+routerMap.get(reqURI).getFirst()+" instead of "+httpMethod, httpRes);
-            return;
+            StringBuilder methods = new StringBuilder();
+            for (HTTPRequest.Method method : route.getMethods()) {
+                methods.append(methods.length() == 0 ? "" : " or ").append(method);
+            }
+            throw new RouteException(StatusCode.BAD_REQUEST, "Invalid HTTP Method for path: "
+                    + reqURI + ". Should be "+methods+" instead of "+httpMethod);
         }
-        
+        if (route.hasParams()) {
+            httpReq.setPathParams(route.getParams(reqURI));
+        }
+        return endpoint;
+    }
+
+    /**
+     * Maps a failed controller method to an error response.
+     */
+    private static void respondWithFailure(Throwable failure, HTTPResponse httpRes) {
+        failure = unwrap(failure);
+        StatusCode code = failureStatus(failure);
+        if (code == null) {
+            // the server answers for anything else
+            throw new CompletionException(failure);
+        }
+        respondWithJSONError(code, failureMessage(failure, code), httpRes);
+        if (code == StatusCode.SERVER_ERROR) {
+            throw new IOError(failure);
+        }
+    }
+
+    /**
+     * Decides which failures of controller methods reach the client as which status code, or
+     * returns null for failures that the server answers for. This is the only place that does.
+     */
+    private static StatusCode failureStatus(Throwable failure) {
+        if (failure instanceof InvalidHttpParametersException) {
+            return StatusCode.BAD_REQUEST;
+        }
+        if (failure instanceof IOException) {
+            failure.printStackTrace(); // Print error message so we only reveal cause to devs and not users
+            return StatusCode.SERVER_ERROR;
+        }
+        return null;
+    }
+
+    private static String failureMessage(Throwable failure, StatusCode code) {
+        return code == StatusCode.SERVER_ERROR ? "Internal Server Error" : failure.getMessage();
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * Runs the sub-requests of a batch, each given as a "request" param that holds a request line
+     * without its version, e.g. "GET /friends/ids.json?user_id=1", whose query is encoded as it
+     * would be in a URL. Returns, for each sub-request in order, an object with the status code
+     * and the JSON body that it would have been answered with on its own.
+     * 
+     * GET requests run in parallel. A POST waits for the requests before it, and the requests
+     * after it wait for the POST, so that every request sees the writes sent before it.
+     */
+    private static CompletableFuture<JSONObject> batch(HTTPRequest httpReq) throws InvalidHttpParametersException {
+        List<String> lines = httpReq.getParamValues(BATCH_REQUEST_PARAM);
+        if (lines.isEmpty()) {
+            throw new InvalidHttpParametersException(BATCH_REQUEST_PARAM + " is a required parameter");
+        }
+        if (lines.size() > MAX_BATCH_REQUESTS) {
+            throw new InvalidHttpParametersException("A batch holds at most " + MAX_BATCH_REQUESTS
+                    + " requests. Was: " + lines.size());
+        }
+        List<CompletableFuture<JSONObject>> items = new ArrayList<>(lines.size());
+        // the last POST and the GET requests since, which the next POST waits for
+        List<CompletableFuture<JSONObject>> pending = new ArrayList<>();
+        CompletableFuture<?> lastWrite = RESPONDED;
+        for (String line : lines) {
+            HTTPRequest subReq;
+            try {
+                subReq = new HTTPRequest(new ByteArrayInputStream(
+                        (line + " " + DEFAULT_RESPONSE_VERSION + "\r\n\r\n").getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException | InvalidHttpFormattingException e) {
+                items.add(CompletableFuture.completedFuture(batchError(StatusCode.BAD_REQUEST,
+                        "Invalid batch request: " + line)));
+                continue;
+            }
+            CompletableFuture<JSONObject> item;
+            if (subReq.getMethod() == HTTPRequest.Method.GET) {
+                item = lastWrite.thenComposeAsync(ignored -> dispatch(subReq), batchExecutor);
+            } else {
+                item = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                        .thenComposeAsync(ignored -> dispatch(subReq), batchExecutor);
+                pending.clear();
+                lastWrite = item;
+            }
+            pending.add(item);
+            items.add(item);
+        }
+        return CompletableFuture.allOf(items.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<JSONObject> responses = new ArrayList<>(items.size());
+            for (CompletableFuture<JSONObject> item : items) {
+                responses.add(item.join());
+            }
+            return new JSONObject(responses);
+        });
+    }
+
+    /**
+     * Routes one sub-request of a batch to its controller method. The returned future never fails:
+     * failures become the error they would be answered with on their own.
+     */
+    private static CompletableFuture<JSONObject> dispatch(HTTPRequest subReq) {
+        CompletableFuture<JSONObject> response;
         try {
-            JSONObject response = routerMap.get(reqURI).getSecond().respond(httpReq);
-            httpRes.send(HTTPResponse.StatusCode.OK, response.toJson());
-        } catch (InvalidHttpParametersException e) {
-            respondWithJSONError(StatusCode.BAD_REQUEST, e.getMessage(), httpRes);
+            if (subReq.getURI().equals(BATCH_PATH)) {
+                return CompletableFuture.completedFuture(batchError(StatusCode.BAD_REQUEST,
+                        "Batches can't be nested"));
+            }
+            response = route(subReq).getFirst().respond(subReq);
+        } catch (RouteException e) {
+            return CompletableFuture.completedFuture(batchError(e.getStatusCode(), e.getMessage()));
+        } catch (InvalidHttpParametersException | IOException e) {
+            response = failed(e);
+        }
+        return response.handle((json, failure) -> {
+            if (failure == null) {
+                return batchItem(StatusCode.OK, json);
+            }
+            failure = unwrap(failure);
+            StatusCode code = failureStatus(failure);
+            if (code == null) {
+                // an item can't fail the rest of the batch
+                failure.printStackTrace();
+                code = StatusCode.SERVER_ERROR;
+            }
+            return batchError(code, failureMessage(failure, code));
+        });
+    }
+
+    private static JSONObject batchItem(StatusCode code, JSONObject body) {
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("status", new JSONObject(code.getNum()));
+        map.put("body", body);
+        return new JSONObject(map);
+    }
+
+    private static JSONObject batchError(StatusCode code, String errorMessage) {
+        return batchItem(code, errorJSON(errorMessage));
+    }
+
+    /**
+     * Streams the given response. With a cache key, the serialized response is also cached for the
+     * ETag, which is the version of the data it was made from.
+     */
+    private static void respondWithJSON(JSONObject response, String etag, List<String> cacheKey,
+            HTTPResponse httpRes) {
+        if (etag != null) {
+            httpRes.setHeader(HEADER_ETAG_KEY, etag);
+        }
+        // Large responses are sent chunked as they are written
+        OutputStream out = httpRes.stream(HTTPResponse.StatusCode.OK);
+        if (cacheKey != null) {
+            out = responseCache.record(cacheKey, etag, out);
+        }
+        try (JSONWriter body = new JSONWriter(out)) {
+            response.writeTo(body);
         } catch (IOException e) {
-            e.printStackTrace(); // Print error message so we only reveal cause to devs and not users
-            respondWithJSONError(StatusCode.SERVER_ERROR, "Internal Server Error", httpRes);
-            throw new IOError(e);
+            // The client is gone or part of the response is already sent, so the
+            // connection is closed without an error response
+            Logger.log("IOException when streaming response: " + e.getMessage());
         }
     }
     
     /**
-     * Assigns a particular HTTP method and controller method to an API endpoint path in our routerMap.
+     * Assigns a particular HTTP method and controller method to an API endpoint path in our router.
      */
     private static void addRoute(HTTPRequest.Method method, String path, ControllerMethod reqHandler) {
+        addRoute(method, path, reqHandler, null);
+    }
+
+    /**
+     * Like addRoute, and answers requests whose If-None-Match header holds the tag computed by
+     * tagHandler with 304 Not Modified, without calling reqHandler.
+     */
+    private static void addRoute(HTTPRequest.Method method, String path, ControllerMethod reqHandler,
+            TagMethod tagHandler) {
+        addAsyncRoute(method, path, req -> CompletableFuture.completedFuture(reqHandler.respond(req)),
+                tagHandler);
+    }
+
+    /**
+     * Like addRoute, for a controller method that returns its JSON response once it has read the
+     * data, e.g. from disk.
+     */
+    private static void addAsyncRoute(HTTPRequest.Method method, String path,
+            AsyncControllerMethod reqHandler, TagMethod tagHandler) {
         /* Thin method that hides the ugly syntax for creating a pair of this type over and over
            when creating routes */
-        routerMap.put(path, new Pair<HTTPRequest.Method, ControllerMethod>(method, reqHandler));
+        router.add(method, path, new Pair<AsyncControllerMethod, TagMethod>(reqHandler, tagHandler));
     }
     
     private static void respondWithJSONError(StatusCode code, String errorMessage, HTTPResponse res) {
+        res.send(code, errorJSON(errorMessage).toJsonBytes());
+    }
+
+    private static JSONObject errorJSON(String errorMessage) {
         Map<String, JSONObject> map = new HashMap<>();
         map.put("error", new JSONObject(errorMessage));
-        res.send(code, new JSONObject(map).toJson());
+        return new JSONObject(map);
     }
     
     /**
@@ -161,5 +837,30 @@ public class Tweeter {
     private interface ControllerMethod {
         JSONObject respond(HTTPRequest req) throws InvalidHttpParametersException, IOException;
     }
+
+    private interface AsyncControllerMethod {
+        CompletableFuture<JSONObject> respond(HTTPRequest req) throws InvalidHttpParametersException, IOException;
+    }
+
+    private interface TagMethod {
+        String tag(HTTPRequest req) throws InvalidHttpParametersException, IOException;
+    }
+
+    /**
+     * Thrown when no endpoint takes the path and method of a request.
+     */
+    private static class RouteException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final StatusCode statusCode;
+
+        public RouteException(StatusCode statusCode, String msg) {
+            super(msg);
+            this.statusCode = statusCode;
+        }
+
+        public StatusCode getStatusCode() {
+            return statusCode;
+        }
+    }
     
 }
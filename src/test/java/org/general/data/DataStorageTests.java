@@ -6,6 +6,8 @@ import static org.junit.Assert.assertNull;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 
 import org.junit.After;
 import org.junit.Before;
@@ -57,7 +59,8 @@ public class DataStorageTests {
     }
 
     @After
-    public void teardown() {
+    public void teardown() throws IOException {
+        storage.close();
         clearFile();
     }
 
@@ -91,4 +94,19 @@ public class DataStorageTests {
         reader.close();
     }
 
+    @Test
+    public void testAppendAll() throws IOException {
+        TestFruitEntry kiwi = new TestFruitEntry();
+        kiwi.id = 7L;
+        kiwi.name = "Kiwi";
+        kiwi.weight = 2.5;
+        storage.appendAllToFile(Arrays.asList(kiwi, apple));
+        storage.appendAllToFile(Collections.<TestFruitEntry>emptyList());
+        DataStorage<TestFruitEntry>.EntryReader reader = storage.new EntryReader();
+        assertEquals(reader.readAt(3), kiwi);
+        assertEquals(reader.readNext(), apple);
+        assertNull(reader.readNext());
+        reader.close();
+    }
+
 }
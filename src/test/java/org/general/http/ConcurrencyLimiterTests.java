@@ -0,0 +1,97 @@
+package org.general.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test cases for ConcurrencyLimiter.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class ConcurrencyLimiterTests {
+
+    @Test
+    public void testShedsWhenQueueIsFull() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1_000);
+        assertTrue(limiter.offer());
+        long first = limiter.acquire();
+        assertTrue(first >= 0);
+        // waits for the first, the next one finds the queue full
+        assertTrue(limiter.offer());
+        assertFalse(limiter.offer());
+        assertEquals(1, limiter.getShedCount());
+        limiter.withdraw();
+        limiter.release(first);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testShedsAfterQueueTimeout() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 20);
+        assertTrue(limiter.offer());
+        long first = limiter.acquire();
+        assertTrue(limiter.offer());
+        assertEquals(-1, limiter.acquire());
+        assertEquals(1, limiter.getShedCount());
+        assertEquals(0, limiter.getQueued());
+        limiter.release(first);
+        assertTrue(limiter.offer());
+        assertTrue(limiter.acquire() >= 0);
+        assertEquals(2, limiter.getAdmittedCount());
+    }
+
+    @Test
+    public void testQueuedRequestIsAdmittedOnRelease() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 5_000);
+        assertTrue(limiter.offer());
+        long first = limiter.acquire();
+        assertTrue(limiter.offer());
+        long[] second = new long[1];
+        Thread waiter = new Thread(() -> second[0] = limiter.acquire());
+        waiter.start();
+        Thread.sleep(50);
+        assertTrue(waiter.isAlive());
+        limiter.release(first);
+        waiter.join(5_000);
+        assertTrue(second[0] >= 0);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testAdaptiveLimitShrinksWhenLatencyRises() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 100, 0, 0);
+        // saturate at a steady latency so that the limit grows
+        for (int round = 0; round < 20; round++) {
+            runConcurrently(limiter, limiter.getLimit(), 1);
+        }
+        int grown = limiter.getLimit();
+        assertTrue("limit should grow, was " + grown, grown > 20);
+        // requests get much slower
+        for (int round = 0; round < 10; round++) {
+            runConcurrently(limiter, limiter.getLimit(), 20);
+        }
+        assertTrue("limit should shrink, was " + limiter.getLimit(), limiter.getLimit() < grown);
+    }
+
+    /**
+     * Admits count requests at once, holds them for the given latency and
+     * releases them.
+     */
+    private static void runConcurrently(ConcurrencyLimiter limiter, int count, long millis)
+            throws InterruptedException {
+        long[] admitted = new long[count];
+        for (int i = 0; i < count; i++) {
+            assertTrue(limiter.offer());
+            admitted[i] = limiter.acquire();
+        }
+        Thread.sleep(millis);
+        for (long at : admitted) {
+            limiter.release(at);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.general.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test cases for HPACK, with the examples of RFC 7541 Appendix C.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class HPACKTests {
+
+    private static byte[] hex(String s) {
+        s = s.replace(" ", "");
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(HPACK.Decoder decoder, String block)
+            throws HPACK.HPACKException {
+        byte[] bytes = hex(block);
+        return decoder.decode(bytes, 0, bytes.length, Integer.MAX_VALUE);
+    }
+
+    private static void assertRequests(String first, String second, String third)
+            throws HPACK.HPACKException {
+        HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"), decode(decoder, first));
+        // the authority now comes from the dynamic table
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, second));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, third));
+    }
+
+    @Test
+    public void testDecodesRequests() throws HPACK.HPACKException {
+        assertRequests("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+                "8286 84be 5808 6e6f 2d63 6163 6865",
+                "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65");
+    }
+
+    @Test
+    public void testDecodesHuffmanRequests() throws HPACK.HPACKException {
+        assertRequests("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+                "8286 84be 5886 a8eb 1064 9cbf",
+                "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf");
+    }
+
+    @Test
+    public void testEncodedHeadersDecode() throws HPACK.HPACKException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        HPACK.encodeStatus(block, 200);
+        HPACK.encodeStatus(block, 503);
+        HPACK.encode(block, "content-type", "application/json");
+        HPACK.encode(block, "x-long", new String(new char[200]).replace('\0', 'a'));
+        byte[] bytes = block.toByteArray();
+        // indexed, then a literal with the indexed name
+        assertEquals((byte) 0x88, bytes[0]);
+        HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+        List<String> headers = decoder.decode(bytes, 0, bytes.length, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(":status", "200", ":status", "503", "content-type",
+                "application/json"), headers.subList(0, 6));
+        assertEquals(200, headers.get(7).length());
+        assertNull(decoder.decode(bytes, 0, bytes.length, 100));
+    }
+
+    @Test
+    public void testRejectsMalformedBlocks() {
+        HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+        // index beyond both tables, a string longer than the block, padding
+        // that is not all ones, and a table larger than allowed
+        for (String block : new String[] { "be", "0003 6162", "0081 00", "3fe2 1f" }) {
+            try {
+                decode(decoder, block);
+                fail("Expected HPACKException for " + block);
+            } catch (HPACK.HPACKException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.general.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures request parsing throughput. Not a test; run main() with the test
+ * classes on the classpath:
+ *
+ * java org.general.http.HTTPRequestParserBenchmark [seconds per case]
+ *
+ * Each case parses a pipelined batch of requests over and over, either
+ * through {@link HTTPRequestParser} the way the transports do or through the
+ * stream constructor of {@link HTTPRequest}, and optionally reads the params
+ * the way a controller does.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class HTTPRequestParserBenchmark {
+
+    private static final int BATCH = 64;
+
+    private static final String GET = "GET /statuses/home_timeline.json?my_id=12&count=20 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: application/json,text/plain;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Connection: keep-alive\r\n\r\n";
+
+    private static final String POST_BODY = "my_id=12&status=Hello%20world%2C%20this%20is%20a%20status";
+    private static final String POST = "POST /statuses/update HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: " + POST_BODY.length() + "\r\n"
+            + "Connection: keep-alive\r\n\r\n" + POST_BODY;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Long.parseLong(args[0]) : 3) * 1000;
+        for (String name : new String[] { "GET", "POST" }) {
+            byte[] batch = repeat(name.equals("GET") ? GET : POST);
+            String key = name.equals("GET") ? "my_id" : "status";
+            // warm up, then measure
+            for (int round = 0; round < 2; round++) {
+                boolean report = round == 1;
+                run(report, name + " parser, head only", millis, () -> parse(batch, null));
+                run(report, name + " parser, read param", millis, () -> parse(batch, key));
+                run(report, name + " stream, read param", millis, () -> parseStream(batch, key));
+            }
+        }
+    }
+
+    private interface Case {
+        void run() throws Exception;
+    }
+
+    private static void run(boolean report, String name, long millis, Case c)
+            throws Exception {
+        long batches = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long now;
+        do {
+            c.run();
+            batches++;
+        } while ((now = System.nanoTime()) < deadline);
+        if (report) {
+            double seconds = (now - start) / 1e9;
+            System.out.printf("%-28s %,12.0f requests/s%n", name, batches * BATCH / seconds);
+        }
+    }
+
+    /**
+     * Feeds the batch in 1460 byte segments, as a channel would.
+     */
+    private static void parse(byte[] batch, String key) throws Exception {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        for (int offset = 0; offset < batch.length; offset += 1460) {
+            parser.append(ByteBuffer.wrap(batch, offset, Math.min(1460, batch.length - offset)));
+            HTTPRequest request;
+            while ((request = parser.next()) != null) {
+                sink = key == null ? request.getMethod() : request.getParamValue(key);
+            }
+        }
+    }
+
+    private static void parseStream(byte[] batch, String key) throws Exception {
+        InputStream in = new ByteArrayInputStream(batch);
+        for (int i = 0; i < BATCH; i++) {
+            sink = new HTTPRequest(in).getParamValue(key);
+        }
+    }
+
+    private static byte[] repeat(String request) {
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            batch.append(request);
+        }
+        return batch.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
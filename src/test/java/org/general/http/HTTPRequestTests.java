@@ -1,12 +1,20 @@
 package org.general.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -64,4 +72,215 @@ public class HTTPRequestTests {
         fail("Expected error not found.");
     }
 
+    @Test
+    public void testKeepAlive() throws Exception {
+        HTTPRequest req = generateRequest(HTTPRequest.Method.GET + " /path "
+                + DEFAULT_VERSION + "\n", "");
+        assertTrue(req.isKeepAlive());
+        req = generateRequest(HTTPRequest.Method.GET + " /path "
+                + DEFAULT_VERSION + "\nConnection: close\n", "");
+        assertFalse(req.isKeepAlive());
+        req = generateRequest(HTTPRequest.Method.GET + " /path HTTP/1.0\n", "");
+        assertFalse(req.isKeepAlive());
+        req = generateRequest(HTTPRequest.Method.GET + " /path HTTP/1.0\n"
+                + "Connection: keep-alive\n", "");
+        assertTrue(req.isKeepAlive());
+    }
+
+    @Test
+    public void testConsecutiveRequestsOnOneStream() throws Exception {
+        InputStream stream = new ByteArrayInputStream((HTTPRequest.Method.POST
+                + " /first " + DEFAULT_VERSION + "\r\n"
+                + "Content-Length: 6\r\n\r\n" + "id=123"
+                + HTTPRequest.Method.GET + " /second?id=456 " + DEFAULT_VERSION
+                + "\r\nHost: " + DEFAULT_HOST + ":8080\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        HTTPRequest first = new HTTPRequest(stream);
+        assertEquals("/first", first.getURI());
+        assertEquals("123", first.getParamValue("id"));
+        HTTPRequest second = new HTTPRequest(stream);
+        assertEquals("/second", second.getURI());
+        assertEquals("456", second.getParamValue("id"));
+        assertEquals(DEFAULT_HOST + ":8080", second.getHeaderValue("host"));
+        try {
+            new HTTPRequest(stream);
+            fail("Expected EOFException at end of stream.");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParserWithSplitInput() throws Exception {
+        byte[] bytes = ("POST /first HTTP/1.1\r\nContent-Length: 19\r\n\r\n"
+                + "status=caf%C3%A9+ok"
+                + "GET http://" + DEFAULT_HOST + "/second?a=1&b=2 HTTP/1.1\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+        HTTPRequestParser parser = new HTTPRequestParser();
+        List<HTTPRequest> requests = new ArrayList<>();
+        // one byte at a time, the worst case for finding request boundaries
+        for (byte b : bytes) {
+            parser.append(ByteBuffer.wrap(new byte[] { b }));
+            HTTPRequest request;
+            while ((request = parser.next()) != null) {
+                requests.add(request);
+            }
+        }
+        assertFalse(parser.hasBufferedBytes());
+        assertEquals(2, requests.size());
+        assertEquals("/first", requests.get(0).getURI());
+        assertEquals(19, requests.get(0).getBodyLength());
+        assertEquals("/second", requests.get(1).getURI());
+        assertEquals("http://" + DEFAULT_HOST + "/second?a=1&b=2",
+                requests.get(1).getAbsoluteURI());
+        assertEquals("2", requests.get(1).getParamValue("b"));
+    }
+
+    @Test
+    public void testParserRejectsMalformedParams() throws Exception {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        parser.append(ByteBuffer.wrap("GET /path?a=1&b HTTP/1.1\r\n\r\n"
+                .getBytes(StandardCharsets.UTF_8)));
+        try {
+            parser.next();
+            fail("Expected InvalidHttpFormattingException.");
+        } catch (HTTPRequest.InvalidHttpFormattingException e) {
+            // expected
+        }
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    public void testParserEnforcesLimits() throws Exception {
+        ServerConfig config = new ServerConfig("TestServer", 0).setMaxRequestLineLength(32)
+                .setMaxHeaderCount(2).setMaxBodySize(10);
+        assertLimit(config, "GET /" + repeat('a', 40) + " HTTP/1.1\r\n\r\n",
+                HTTPResponse.StatusCode.URI_TOO_LONG);
+        // caught before the line ends
+        assertLimit(config, "GET /" + repeat('a', 40), HTTPResponse.StatusCode.URI_TOO_LONG);
+        assertLimit(config, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n",
+                HTTPResponse.StatusCode.HEADER_FIELDS_TOO_LARGE);
+        assertLimit(config, "GET / HTTP/1.1\r\nA: " + repeat('a', 40) + "\r\n\r\n",
+                HTTPResponse.StatusCode.HEADER_FIELDS_TOO_LARGE);
+        assertLimit(config, "POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\n",
+                HTTPResponse.StatusCode.PAYLOAD_TOO_LARGE);
+
+        HTTPRequestParser parser = new HTTPRequestParser(config);
+        parser.append(ByteBuffer.wrap("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\n\r\n"
+                .getBytes(StandardCharsets.UTF_8)));
+        assertEquals("/", parser.next().getURI());
+    }
+
+    @Test
+    public void testParserReadDeadlines() throws Exception {
+        ServerConfig config = new ServerConfig("TestServer", 0).setHeaderTimeout(100)
+                .setBodyTimeout(1000);
+        HTTPRequestParser parser = new HTTPRequestParser(config);
+        assertEquals(0, parser.getReadDeadline(5));
+        parser.append(ByteBuffer.wrap("POST /a HTTP/1.1\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(null, parser.next());
+        assertEquals(105, parser.getReadDeadline(5));
+        // the clock does not restart as more of the head arrives
+        parser.append(ByteBuffer.wrap("Content-Length: 3\r\n\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(null, parser.next());
+        assertEquals(1050, parser.getReadDeadline(50));
+        parser.append(ByteBuffer.wrap("a=1".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("1", parser.next().getParamValue("a"));
+        assertEquals(0, parser.getReadDeadline(60));
+
+        parser.append(ByteBuffer.wrap("GET".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(null, parser.next());
+        parser.getReadDeadline(70);
+        HTTPRequest.RequestLimitException e = parser.timedOut();
+        assertEquals(HTTPResponse.StatusCode.REQUEST_TIMEOUT, e.getStatusCode());
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    public void testDecodesUtf8() throws Exception {
+        HTTPRequest req = generateRequest(HTTPRequest.Method.POST
+                + " /caf%C3%A9+menu " + DEFAULT_VERSION + "\n",
+                "status=caf%C3%A9+%F0%9F%98%80&bad=%zz%0A%E2%82");
+        // '+' is only a space in params
+        assertEquals("/caf\u00e9+menu", req.getURI());
+        assertEquals("caf\u00e9 \ud83d\ude00", req.getParamValue("status"));
+        // invalid and control escapes stay, a cut off character is replaced
+        assertEquals("%zz%0A\ufffd", req.getParamValue("bad"));
+        String plain = "/statuses/update";
+        assertTrue(plain == URLDecoder.decode(plain));
+    }
+
+    @Test
+    public void testRepeatedParams() throws Exception {
+        HTTPRequest req = generateRequest(HTTPRequest.Method.POST
+                + " /batch?request=first&other=1 " + DEFAULT_VERSION + "\n",
+                "request=GET+%2Fa%3Fid%3D1&request=third");
+        assertEquals(Arrays.asList("first", "GET /a?id=1", "third"),
+                req.getParamValues("request"));
+        // the body overrides the query for a single value
+        assertEquals("third", req.getParamValue("request"));
+        assertTrue(req.getParamValues("missing").isEmpty());
+        req.setPathParams(Collections.singletonMap("request", "path"));
+        assertEquals(Arrays.asList("path"), req.getParamValues("request"));
+    }
+
+    @Test
+    public void testMatchesIfNoneMatch() throws Exception {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        parser.append(ByteBuffer.wrap(("GET /a HTTP/1.1\r\nIf-None-Match: \"1-1\", W/\"7-2\"\r\n\r\n"
+                + "GET /a HTTP/1.1\r\nIf-None-Match: *\r\n\r\n"
+                + "GET /a HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+        HTTPRequest listed = parser.next();
+        assertTrue(listed.matchesIfNoneMatch("W/\"7-2\""));
+        assertTrue(listed.matchesIfNoneMatch("\"1-1\""));
+        assertFalse(listed.matchesIfNoneMatch("W/\"7-3\""));
+        assertTrue(parser.next().matchesIfNoneMatch("W/\"7-3\""));
+        assertFalse(parser.next().matchesIfNoneMatch("W/\"7-3\""));
+    }
+
+    @Test
+    public void testJsonBodyIsNotForm() throws Exception {
+        String body = "{\"my_id\": 1, \"statuses\": [\"a=b&c\"]}";
+        HTTPRequest req = new HTTPRequest(new ByteArrayInputStream((HTTPRequest.Method.POST
+                + " /statuses/update_batch?my_id=2 " + DEFAULT_VERSION + "\n"
+                + "Content-Type: Application/JSON; charset=utf-8\n"
+                + "Content-Length: " + body.length() + "\n\n" + body)
+                .getBytes(StandardCharsets.UTF_8)));
+        assertTrue(req.hasContentType(HTTPRequest.JSON_MEDIA_TYPE));
+        // only the query string holds params
+        assertEquals(Arrays.asList("2"), req.getParamValues("my_id"));
+        ByteBuffer buffer = req.getBodyBuffer();
+        assertEquals(0, buffer.position());
+        // read in place by JSONReader
+        assertTrue(buffer.hasArray());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals(body, new String(bytes, StandardCharsets.UTF_8));
+        assertFalse(generateRequest(HTTPRequest.Method.POST + " / " + DEFAULT_VERSION + "\n",
+                "a=b").hasContentType(HTTPRequest.JSON_MEDIA_TYPE));
+    }
+
+    private static void assertLimit(ServerConfig config, String request,
+            HTTPResponse.StatusCode expected) {
+        HTTPRequestParser parser = new HTTPRequestParser(config);
+        parser.append(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+        try {
+            parser.next();
+            fail("Expected RequestLimitException.");
+        } catch (HTTPRequest.RequestLimitException e) {
+            assertEquals(expected, e.getStatusCode());
+        } catch (HTTPRequest.InvalidHttpFormattingException e) {
+            fail("Expected RequestLimitException, got " + e.getMessage());
+        }
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
 }
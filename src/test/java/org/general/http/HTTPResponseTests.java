@@ -1,17 +1,25 @@
 package org.general.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.general.json.JSONObject;
 import org.junit.After;
@@ -126,4 +134,165 @@ public class HTTPResponseTests {
         }
     }
 
+    @Test
+    public void testContentLengthCountsBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setVersion("HTTP/1.1");
+        String body = "{\"text\": \"caf\u00e9\"}";
+        res.send(HTTPResponse.StatusCode.OK, body);
+        String sent = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        String head = sent.substring(0, sent.indexOf("\r\n\r\n") + 4);
+        assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(head.contains("\r\nContent-Length: "
+                + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"));
+        assertTrue(head.contains("\r\nDate: "));
+        assertEquals(body, sent.substring(head.length()));
+    }
+
+    @Test
+    public void testNotModifiedHasNoBody() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setDefaults("HTTP/1.1", "application/json");
+        res.setHeader("ETag", "W/\"7-2\"");
+        res.send(HTTPResponse.StatusCode.NOT_MODIFIED, (byte[]) null);
+        String sent = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(sent.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue(sent.contains("\r\nETag: W/\"7-2\"\r\n"));
+        assertFalse(sent.contains("Content-Length"));
+        assertFalse(sent.contains("Content-Type"));
+        assertTrue(sent.endsWith("\r\n\r\n"));
+
+        // never compressed, even with a threshold of 0 and a body given
+        for (boolean streamed : new boolean[] { false, true }) {
+            out.reset();
+            res = new HTTPResponse(out, "TestServer");
+            res.setVersion("HTTP/1.1");
+            res.setCompression(Compression.GZIP, 0, 6);
+            if (streamed) {
+                OutputStream stream = res.stream(HTTPResponse.StatusCode.NOT_MODIFIED);
+                stream.write(new byte[100_000]);
+                stream.close();
+            } else {
+                res.send(HTTPResponse.StatusCode.NOT_MODIFIED, "ignored");
+            }
+            sent = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+            assertFalse(sent.contains("Content-Encoding"));
+            assertFalse(sent.contains("Vary"));
+            assertTrue(sent.endsWith("\r\n\r\n"));
+            assertEquals(sent.length(), sent.indexOf("\r\n\r\n") + 4);
+        }
+
+        // nothing queued after the head
+        res = new HTTPResponse(null, "TestServer");
+        res.setVersion("HTTP/1.1");
+        res.setCompression(Compression.GZIP, 0, 6);
+        res.send(HTTPResponse.StatusCode.NOT_MODIFIED, "ignored");
+        assertEquals(1, res.toByteBuffers().length);
+    }
+
+    @Test
+    public void testSendInsteadOnlyAnswersUnsentResponses() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setVersion("HTTP/1.1");
+        res.setHeader("ETag", "W/\"7-2\"");
+        assertTrue(res.sendInstead(HTTPResponse.StatusCode.SERVER_ERROR, "failed"));
+        String sent = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(sent.startsWith("HTTP/1.1 500 "));
+        assertTrue(sent.contains("\r\nConnection: close\r\n"));
+        assertFalse(sent.contains("ETag"));
+
+        // a handler that finishes late doesn't answer again
+        out.reset();
+        assertFalse(res.send(HTTPResponse.StatusCode.OK, "late"));
+        assertFalse(res.sendInstead(HTTPResponse.StatusCode.SERVER_ERROR, "again"));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testGzipCompression() throws IOException {
+        assertEquals(Compression.GZIP, Compression.negotiate("gzip, deflate, br"));
+        assertEquals(Compression.DEFLATE, Compression.negotiate("gzip;q=0, deflate"));
+        assertEquals(null, Compression.negotiate("identity"));
+        assertEquals(null, Compression.negotiate(null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setVersion("HTTP/1.1");
+        res.setCompression(Compression.GZIP, 100, 6);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("{\"id\": ").append(i).append(", \"text\": \"caf\u00e9\"}");
+        }
+        res.send(HTTPResponse.StatusCode.OK, body.toString());
+        byte[] sent = out.toByteArray();
+        String head = new String(sent, StandardCharsets.ISO_8859_1);
+        int bodyStart = head.indexOf("\r\n\r\n") + 4;
+        head = head.substring(0, bodyStart);
+        assertTrue(head.contains("\r\nContent-Encoding: gzip\r\n"));
+        assertTrue(head.contains("\r\nContent-Length: " + (sent.length - bodyStart) + "\r\n"));
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(sent,
+                bodyStart, sent.length - bodyStart));
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            unzipped.write(buffer, 0, count);
+        }
+        assertEquals(body.toString(), new String(unzipped.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamSpillsToChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setVersion("HTTP/1.1");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            body.append(i).append(',');
+        }
+        byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        OutputStream stream = res.stream(HTTPResponse.StatusCode.OK);
+        for (int i = 0; i < bodyBytes.length; i += 1000) {
+            stream.write(bodyBytes, i, Math.min(1000, bodyBytes.length - i));
+        }
+        stream.close();
+        assertTrue(res.isSent());
+
+        byte[] sent = out.toByteArray();
+        String text = new String(sent, StandardCharsets.ISO_8859_1);
+        int pos = text.indexOf("\r\n\r\n") + 4;
+        String head = text.substring(0, pos);
+        assertTrue(head.contains("\r\nTransfer-Encoding: chunked\r\n"));
+        assertFalse(head.contains("Content-Length"));
+        ByteArrayOutputStream unchunked = new ByteArrayOutputStream();
+        while (true) {
+            int lineEnd = text.indexOf("\r\n", pos);
+            int size = Integer.parseInt(text.substring(pos, lineEnd), 16);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                break;
+            }
+            unchunked.write(sent, pos, size);
+            pos += size + 2;
+        }
+        assertEquals(sent.length, pos + 2);
+        assertEquals(body.toString(), new String(unchunked.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSmallStreamHasContentLength() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPResponse res = new HTTPResponse(out, "TestServer");
+        res.setVersion("HTTP/1.1");
+        OutputStream stream = res.stream(HTTPResponse.StatusCode.OK);
+        stream.write("{}".getBytes(StandardCharsets.UTF_8));
+        stream.close();
+        String sent = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(sent.contains("\r\nContent-Length: 2\r\n"));
+        assertTrue(sent.endsWith("\r\n\r\n{}"));
+    }
+
 }
@@ -0,0 +1,75 @@
+package org.general.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Test cases for ResponseCache.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class ResponseCacheTests {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testOnlyReturnsCurrentVersion() {
+        ResponseCache<String> cache = new ResponseCache<>(1024);
+        cache.put("/a", "1", bytes("old"));
+        assertArrayEquals(bytes("old"), cache.get("/a", "1"));
+        // a write moved the version on
+        assertNull(cache.get("/a", "2"));
+        assertNull(cache.get("/a", "1"));
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ResponseCache<String> cache = new ResponseCache<>(16 * 40);
+        byte[] body = new byte[40];
+        for (int i = 0; i < 16; i++) {
+            cache.put("/" + i, "v", body);
+        }
+        cache.get("/0", "v");
+        cache.put("/16", "v", body);
+        assertEquals(16 * 40, cache.getSize());
+        assertArrayEquals(body, cache.get("/0", "v"));
+        assertNull(cache.get("/1", "v"));
+        // too large for the cache
+        cache.put("/large", "v", new byte[41]);
+        assertNull(cache.get("/large", "v"));
+    }
+
+    @Test
+    public void testRecordsWhatIsWritten() throws IOException {
+        ResponseCache<String> cache = new ResponseCache<>(16 * 8);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        OutputStream out = cache.record("/a", "1", sent);
+        out.write(bytes("{\"ids\""));
+        out.write(':');
+        out.close();
+        assertEquals("{\"ids\":", new String(sent.toByteArray(), StandardCharsets.UTF_8));
+        assertArrayEquals(bytes("{\"ids\":"), cache.get("/a", "1"));
+
+        // the whole body is sent, but it is too large to cache
+        sent.reset();
+        out = cache.record("/b", "1", sent);
+        out.write(bytes("0123456789"));
+        out.close();
+        assertEquals(10, sent.size());
+        assertNull(cache.get("/b", "1"));
+    }
+}
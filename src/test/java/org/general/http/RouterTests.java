@@ -0,0 +1,94 @@
+package org.general.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test cases for Router.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class RouterTests {
+
+    private static Router<String> router() {
+        return new Router<String>()
+                .add(HTTPRequest.Method.GET, "/friends/ids.json", "friends")
+                .add(HTTPRequest.Method.POST, "/statuses/update", "update")
+                .add(HTTPRequest.Method.GET, "/statuses/show/{id}.json", "show")
+                .add(HTTPRequest.Method.POST, "/statuses/show/{id}.json", "edit")
+                .add(HTTPRequest.Method.GET, "/statuses/show/latest.json", "latest")
+                .add(HTTPRequest.Method.GET, "/users/{user}/statuses/{id}", "user status")
+                .add(HTTPRequest.Method.GET, "/", "root");
+    }
+
+    @Test
+    public void testFindsLiteralRoutes() {
+        Router<String> router = router();
+        assertEquals("friends", router.find("/friends/ids.json").getHandler(HTTPRequest.Method.GET));
+        assertNull(router.find("/friends/ids.json").getHandler(HTTPRequest.Method.POST));
+        assertEquals(Arrays.asList(HTTPRequest.Method.POST),
+                router.find("/statuses/update").getMethods());
+        assertEquals("root", router.find("/").getHandler(HTTPRequest.Method.GET));
+        assertFalse(router.find("/friends/ids.json").hasParams());
+        assertNull(router.find("/friends/ids"));
+        assertNull(router.find("/friends/ids.json/"));
+        assertNull(router.find("/friends"));
+        assertNull(router.find(""));
+        assertNull(router.find("friends/ids.json"));
+    }
+
+    @Test
+    public void testFindsParams() {
+        Router<String> router = router();
+        Router.Route<String> show = router.find("/statuses/show/42.json");
+        assertEquals("show", show.getHandler(HTTPRequest.Method.GET));
+        assertEquals("edit", show.getHandler(HTTPRequest.Method.POST));
+        assertTrue(show.hasParams());
+        assertEquals("42", show.getParams("/statuses/show/42.json").get("id"));
+        assertEquals("/statuses/show/{id}.json", show.getPattern());
+        // literals win over params
+        assertEquals("latest", router.find("/statuses/show/latest.json")
+                .getHandler(HTTPRequest.Method.GET));
+        // a param is never empty and keeps its suffix
+        assertNull(router.find("/statuses/show/.json"));
+        assertNull(router.find("/statuses/show/42"));
+
+        Router.Route<String> userStatus = router.find("/users/7/statuses/abc");
+        Map<String, String> params = userStatus.getParams("/users/7/statuses/abc");
+        assertEquals("7", params.get("user"));
+        assertEquals("abc", params.get("id"));
+        assertEquals(2, params.size());
+    }
+
+    @Test
+    public void testRejectsConflicts() {
+        Router<String> router = router();
+        try {
+            router.add(HTTPRequest.Method.GET, "/statuses/show/{id}.json", "again");
+            fail("Expected the route to be taken.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            router.add(HTTPRequest.Method.GET, "/statuses/show/{status}.json", "renamed");
+            fail("Expected the param names to conflict.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            router.add(HTTPRequest.Method.GET, "/statuses/{a}{b}", "two params");
+            fail("Expected a malformed pattern.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.general.http;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures URL decoding throughput against java.net.URLDecoder. Not a test;
+ * run main() with the test classes on the classpath:
+ *
+ * java org.general.http.URLDecoderBenchmark [seconds per case]
+ *
+ * Each case decodes a typical path or param value, as a String and as a byte
+ * range of a request the way {@link HTTPRequest} does.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class URLDecoderBenchmark {
+
+    private static final String[][] CASES = {
+            { "plain path", "/statuses/home_timeline.json" },
+            { "plain value", "12" },
+            { "ascii status", "Hello%20world%2C%20this%20is%20a%20status" },
+            { "form status", "Hello+world%2C+this+is+a+status" },
+            { "utf-8 status", "caf%C3%A9+%E2%98%95+%F0%9F%98%80+%E4%BD%A0%E5%A5%BD" },
+    };
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000;
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            for (String[] c : CASES) {
+                String in = c[1];
+                byte[] bytes = in.getBytes(StandardCharsets.UTF_8);
+                run(report, c[0] + ", string", millis, () -> sink = URLDecoder.decode(in, true));
+                run(report, c[0] + ", bytes", millis,
+                        () -> sink = URLDecoder.decode(bytes, 0, bytes.length, true));
+                run(report, c[0] + ", java.net", millis,
+                        () -> sink = java.net.URLDecoder.decode(in, "UTF-8"));
+            }
+        }
+    }
+
+    private interface Case {
+        void run() throws UnsupportedEncodingException;
+    }
+
+    private static void run(boolean report, String name, long millis, Case c)
+            throws UnsupportedEncodingException {
+        long decodes = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long now;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                c.run();
+            }
+            decodes += 1000;
+        } while ((now = System.nanoTime()) < deadline);
+        if (report) {
+            double seconds = (now - start) / 1e9;
+            System.out.printf("%-28s %,14.0f decodes/s%n", name, decodes / seconds);
+        }
+    }
+}
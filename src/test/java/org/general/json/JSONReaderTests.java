@@ -0,0 +1,171 @@
+package org.general.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.general.json.JSONReader.JSONParseException;
+import org.general.json.JSONReader.Token;
+import org.junit.Test;
+
+/**
+ * Test cases for JSONReader.
+ *
+ * @author marcelpuyat
+ *
+ */
+public class JSONReaderTests {
+
+    private static JSONReader reader(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return new JSONReader(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testReadsTokens() throws JSONParseException {
+        JSONReader reader = reader(" {\"ids\": [1, -2, 0, 9223372036854775807, -9223372036854775808],"
+                + "\n\t\"text\": \"q\\\" b\\\\ \\/ \\b\\f\\n\\r\\t \\u00e9\\ud83d\\ude00 caf\u00e9\","
+                + " \"ok\": true, \"no\": false, \"none\": null, \"pi\": -3.5e2, \"empty\": {}} ");
+        assertEquals(Token.BEGIN_OBJECT, reader.peek());
+        reader.beginObject();
+        assertEquals("ids", reader.nextName());
+        reader.beginArray();
+        long[] ids = new long[5];
+        for (int i = 0; reader.hasNext(); i++) {
+            assertEquals(Token.NUMBER, reader.peek());
+            ids[i] = reader.nextLong();
+        }
+        reader.endArray();
+        assertEquals(Arrays.toString(new long[] { 1, -2, 0, Long.MAX_VALUE, Long.MIN_VALUE }),
+                Arrays.toString(ids));
+        assertEquals("text", reader.nextName());
+        assertEquals("q\" b\\ / \b\f\n\r\t \u00e9\ud83d\ude00 caf\u00e9", reader.nextString());
+        assertEquals("ok", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("no", reader.nextName());
+        assertFalse(reader.nextBoolean());
+        assertEquals("none", reader.nextName());
+        assertEquals(Token.NULL, reader.peek());
+        reader.nextNull();
+        assertEquals("pi", reader.nextName());
+        assertEquals(-350.0, reader.nextDouble(), 0);
+        assertEquals("empty", reader.nextName());
+        reader.beginObject();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(Token.END_OBJECT, reader.peek());
+        reader.endObject();
+        assertEquals(Token.END_DOCUMENT, reader.peek());
+        reader.endDocument();
+    }
+
+    @Test
+    public void testSkipsValues() throws JSONParseException {
+        JSONReader reader = reader("{\"skip\": {\"a\": [1, {\"b\": \"\\u0041\\\"\"}], \"c\": null},"
+                + " \"also\": [[], [true, 1.5e-3]], \"keep\": 7}");
+        reader.beginObject();
+        Map<String, Long> kept = new HashMap<>();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("keep")) {
+                kept.put(name, reader.nextLong());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        assertEquals(Long.valueOf(7), kept.get("keep"));
+        assertEquals(1, kept.size());
+
+        // a name and its value together
+        reader = reader("{\"a\": [1, 2], \"b\": 3}");
+        reader.beginObject();
+        reader.skipValue();
+        assertEquals("b", reader.nextName());
+    }
+
+    @Test
+    public void testReadsBuffersInPlace() throws JSONParseException {
+        byte[] bytes = "xx[\"caf\u00e9\", 12]yy".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4).slice();
+        for (ByteBuffer json : new ByteBuffer[] { buffer, buffer.asReadOnlyBuffer() }) {
+            JSONReader reader = new JSONReader(json);
+            reader.beginArray();
+            assertEquals("caf\u00e9", reader.nextString());
+            assertEquals(12, reader.nextLong());
+            reader.endArray();
+            reader.endDocument();
+            assertEquals(0, json.position());
+        }
+    }
+
+    @Test
+    public void testWritesAndReadsBack() throws JSONParseException {
+        String text = "q\" b\\ \b\f\n\r\t \u0000\u001f\u007f\u0085 caf\u00e9 \ud83d\ude00";
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("text", new JSONObject(text));
+        map.put("ids", JSONObject.fromLongs(new long[] { Long.MIN_VALUE, 3 }));
+        byte[] json = new JSONObject(map).toJsonBytes();
+        JSONReader reader = new JSONReader(json, 0, json.length);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("text")) {
+                assertEquals(text, reader.nextString());
+            } else {
+                reader.beginArray();
+                assertEquals(Long.MIN_VALUE, reader.nextLong());
+                assertEquals(3, reader.nextLong());
+                reader.endArray();
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+    }
+
+    @Test
+    public void testRejectsMalformedJson() {
+        for (String json : new String[] { "", "[1,]", "[1 2]", "{\"a\" 1}", "{\"a\": 1,}",
+                "{1: 2}", "[01]", "[-]", "[1.]", "[1e]", "[tru]", "[\"a]", "[\"\\x\"]",
+                "[\"\\u12\"]", "[\"a\nb\"]", "[1] [2]", "[1", "{\"a\": 1", "]" }) {
+            try {
+                JSONReader reader = reader(json);
+                reader.skipValue();
+                reader.endDocument();
+                fail("Expected JSONParseException for " + json);
+            } catch (JSONParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsUnexpectedTokens() throws JSONParseException {
+        for (String json : new String[] { "[9223372036854775808]", "[-9223372036854775809]",
+                "[1.5]", "[1e3]", "[\"1\"]" }) {
+            JSONReader reader = reader(json);
+            reader.beginArray();
+            try {
+                reader.nextLong();
+                fail("Expected JSONParseException for " + json);
+            } catch (JSONParseException e) {
+                // expected
+            }
+        }
+        JSONReader reader = reader("[]");
+        reader.beginArray();
+        try {
+            reader.skipValue();
+            fail("Expected JSONParseException");
+        } catch (JSONParseException e) {
+            // the end of the array is not a value
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package org.general.json;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -58,6 +63,76 @@ public class JSONTests {
         assertTrue(person.toJsonObject().equals(correctResult));
     }
 
+    @Test
+    public void testLazyListWritesLikeToJson() {
+        List<Long> ids = Arrays.asList(3L, 1L, 2L);
+        JSONObject lazy = JSONObject.fromIterable(ids, JSONObject::new);
+        assertTrue(lazy.equals(JSONObject.fromNumbers(ids)));
+        assertEquals("[3, 1, 2]", lazy.toJson());
+        // iterated again on every write
+        assertEquals("[3, 1, 2]", lazy.toJson());
+
+        JSONObject longs = JSONObject.fromLongs(new long[] { 3, 1, 2 });
+        assertTrue(longs.equals(lazy));
+        assertEquals("[3, 1, 2]", longs.toJson());
+        assertEquals("[3, 1, 2]", new String(longs.toJsonBytes(), StandardCharsets.UTF_8));
+        assertEquals("[]", JSONObject.fromLongs(new long[0]).toJson());
+    }
+
+    @Test
+    public void testEscapes() {
+        assertEquals("\"plain caf\u00e9\"", new JSONObject("plain caf\u00e9").toJson());
+        assertEquals("\"\"", new JSONObject("").toJson());
+        assertEquals("\"q\\\" b\\\\ \\b\\f\\n\\r\\t \\u0000\\u001f\\u007f\\u0085 \u00a0\"",
+                new JSONObject("q\" b\\ \b\f\n\r\t \u0000\u001f\u007f\u0085 \u00a0").toJson());
+        assertEquals("\"\\n\\n\"", new JSONObject("\n\n").toJson());
+        assertEquals("null", new JSONObject((String) null).toJson());
+    }
+
+    @Test
+    public void testWriterMatchesToJson() throws Exception {
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("escapes", new JSONObject("q\" b\\ \b\f\n\r\t \u0000\u001f\u007f\u0085"));
+        map.put("utf-8", new JSONObject("caf\u00e9 \u20ac \ud83d\ude00 \ud83d"));
+        map.put("null", new JSONObject((String) null));
+        map.put("plain", new JSONObject("plain ascii, then caf\u00e9"));
+        // longer than the buffer of a writer with a stream
+        map.put("long", new JSONObject(new String(new char[10_000]).replace('\0', 'x')));
+        map.put("numbers", JSONObject.fromNumbers(Arrays.asList(0, -12, Long.MIN_VALUE,
+                Long.MAX_VALUE, 1.5, (short) 7)));
+        map.put("empty", JSONObject.fromStrings(Arrays.<String>asList()));
+        map.put("people", JSONObject.fromIterable(Arrays.asList(
+                new JSONSerializablePerson(TEST_NAME, TEST_AGE, TEST_ADDRESS, TEST_PETNAME_ONE),
+                new JSONSerializablePerson("Ginger", 3, "Manila"))));
+        JSONObject json = new JSONObject(map);
+
+        // through a stream, in pieces of the writer's buffer
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<JSONObject> many = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            many.add(json);
+        }
+        JSONObject large = new JSONObject(many);
+        try (JSONWriter writer = new JSONWriter(out)) {
+            large.writeTo(writer);
+        }
+        assertArrayEquals(large.toJson().getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+        JSONWriter writer = new JSONWriter();
+        writer.beginObject().name("ids").beginArray().value(1).value(2).endArray()
+                .name("next").value("a").endObject();
+        assertEquals("{\"ids\": [1, 2], \"next\": \"a\"}",
+                new String(writer.toByteArray(), StandardCharsets.UTF_8));
+        writer.reset();
+        writer.beginArray().endArray();
+        assertEquals("[]", new String(writer.toByteArray(), StandardCharsets.UTF_8));
+        writer.reset();
+        byte[] fragment = new JSONObject("a").toJsonBytes();
+        writer.beginArray().rawValue(fragment).value(1).rawValue(fragment).endArray();
+        assertEquals("[\"a\", 1, \"a\"]",
+                new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
     private JSONObject createCorrectResult() {
         Map<String, JSONObject> correctResult = new HashMap<>();
         correctResult.put("name", new JSONObject(TEST_NAME));
@@ -0,0 +1,142 @@
+package org.general.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.general.json.JSONObject.JSONable;
+
+/**
+ * Measures JSON serialization throughput and allocation. Not a test; run
+ * main() with the test classes on the classpath:
+ *
+ * java org.general.json.JSONWriterBenchmark [seconds per case]
+ *
+ * Each case serializes a 200-tweet timeline to a stream that discards it:
+ * through toJson and String.getBytes, and through a JSONWriter, from
+ * JSONObjects and from JSONables that write themselves. Allocation is
+ * measured per thread where the JVM supports it.
+ *
+ * @author marcelpuyat
+ *
+ */
+public class JSONWriterBenchmark {
+
+    private static final int TWEETS = 200;
+
+    private static class Tweet implements JSONable {
+        private final long id;
+        private final long user;
+        private final String text;
+        private final String time;
+
+        Tweet(long id, long user, String text, String time) {
+            this.id = id;
+            this.user = user;
+            this.text = text;
+            this.time = time;
+        }
+
+        @Override
+        public JSONObject toJsonObject() {
+            Map<String, JSONObject> map = new HashMap<>();
+            map.put("id", new JSONObject(id));
+            map.put("user", new JSONObject(user));
+            map.put("text", new JSONObject(text));
+            map.put("time", new JSONObject(time));
+            return new JSONObject(map);
+        }
+
+        @Override
+        public void writeTo(JSONWriter writer) throws IOException {
+            writer.beginObject().name("id").value(id).name("text").value(text)
+                    .name("time").value(time).name("user").value(user).endObject();
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static JSONObject timeline(Iterable<Tweet> tweets, boolean jsonables) {
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("tweets", jsonables ? JSONObject.fromIterable(tweets)
+                : JSONObject.fromIterable(tweets, Tweet::toJsonObject));
+        return new JSONObject(map);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000;
+        List<Tweet> tweets = new ArrayList<>();
+        for (int i = 0; i < TWEETS; i++) {
+            tweets.add(new Tweet(100_000 + i, i % 17, "Status number " + i
+                    + " says \"hello\" to everyone, caf\u00e9 included.",
+                    "Sun Oct 26 20:52:35 PDT 2014"));
+        }
+        OutputStream sink = new NullOutputStream();
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run(report, "toJson + getBytes", millis,
+                    () -> sink.write(timeline(tweets, false).toJson()
+                            .getBytes(StandardCharsets.UTF_8)));
+            run(report, "JSONWriter, JSONObjects", millis, () -> {
+                try (JSONWriter out = new JSONWriter(sink)) {
+                    timeline(tweets, false).writeTo(out);
+                }
+            });
+            run(report, "JSONWriter, JSONables", millis, () -> {
+                try (JSONWriter out = new JSONWriter(sink)) {
+                    timeline(tweets, true).writeTo(out);
+                }
+            });
+        }
+    }
+
+    private interface Case {
+        void run() throws IOException;
+    }
+
+    private static void run(boolean report, String name, long millis, Case c) throws IOException {
+        long writes = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long now;
+        do {
+            for (int i = 0; i < 100; i++) {
+                c.run();
+            }
+            writes += 100;
+        } while ((now = System.nanoTime()) < deadline);
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (report) {
+            double seconds = (now - start) / 1e9;
+            System.out.printf("%-26s %,10.0f timelines/s %,12d bytes allocated/timeline%n", name,
+                    writes / seconds, allocatedBefore < 0 ? -1 : allocated / writes);
+        }
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
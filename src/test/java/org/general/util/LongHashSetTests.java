@@ -0,0 +1,64 @@
+package org.general.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test cases for LongHashSet.
+ *
+ * @author marcelpuyat
+ *
+ */
+public class LongHashSetTests {
+
+    @Test
+    public void testMatchesHashSet() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        // a small range, so that adds and removes hit the same values and
+        // runs of colliding slots get long
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextInt(2_000) - 1_000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+            long probe = random.nextInt(2_000) - 1_000;
+            assertEquals(expected.contains(probe), set.contains(probe));
+        }
+        assertEquals(expected.size(), set.size());
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertArrayEquals(expected.stream().mapToLong(Long::longValue).sorted().toArray(),
+                values);
+    }
+
+    @Test
+    public void testZeroAndExtremes() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertEquals(3, set.size());
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertArrayEquals(new long[] { Long.MIN_VALUE, 0, Long.MAX_VALUE }, values);
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        assertEquals(2, set.size());
+    }
+}
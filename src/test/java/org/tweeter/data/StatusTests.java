@@ -0,0 +1,62 @@
+package org.tweeter.data;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.general.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Test cases for Status.
+ *
+ * @author Guoxing Li
+ *
+ */
+public class StatusTests {
+
+    private static List<Status> statuses() {
+        List<Status> statuses = new ArrayList<>();
+        statuses.add(new Status(0, 1, "plain", new Date(0)));
+        statuses.add(new Status(Long.MAX_VALUE, 42,
+                "q\" b\\ \b\f\n\r\t \u0000\u001f\u007f\u0085 caf\u00e9 \u20ac \ud83d\ude00",
+                new Date(1_400_000_000_000L)));
+        statuses.add(new Status(7, 0, "", new Date(1_400_000_000_001L)));
+        return statuses;
+    }
+
+    private static JSONObject timeline(List<Status> statuses) {
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("tweets", JSONObject.fromIterable(statuses));
+        return new JSONObject(map);
+    }
+
+    @Test
+    public void testWriteToMatchesToJsonObject() {
+        // writeTo writes the fields itself, in the order toJsonObject puts them in
+        List<JSONObject> objects = new ArrayList<>();
+        for (Status status : statuses()) {
+            objects.add(status.toJsonObject());
+        }
+        Map<String, JSONObject> map = new HashMap<>();
+        map.put("tweets", new JSONObject(objects));
+        assertArrayEquals(new JSONObject(map).toJsonBytes(),
+                timeline(statuses()).toJsonBytes());
+    }
+
+    @Test
+    public void testKeptJsonWritesTheSameTwice() {
+        List<Status> kept = statuses();
+        for (Status status : kept) {
+            status.keepJson();
+        }
+        byte[] expected = timeline(statuses()).toJsonBytes();
+        // the first write fills in the fragments, the second splices them in
+        assertArrayEquals(expected, timeline(kept).toJsonBytes());
+        assertArrayEquals(expected, timeline(kept).toJsonBytes());
+    }
+}